@@ -57,6 +57,7 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import java.nio.ByteBuffer;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
 
 public abstract class CameraActivity extends AppCompatActivity
     implements OnImageAvailableListener,
@@ -78,6 +79,10 @@ public abstract class CameraActivity extends AppCompatActivity
   private boolean useCamera2API;
   private boolean isProcessingFrame = false;
   private byte[][] yuvBytes = new byte[3][];
+  // false: yuvBytes[0] holds a whole NV21 frame from android.hardware.Camera
+  private boolean yuvPlanar = false;
+  private int uvRowStride;
+  private int uvPixelStride;
   private int[] rgbBytes = null;
   private int yRowStride;
   private Runnable postInferenceCallback;
@@ -247,6 +252,16 @@ public abstract class CameraActivity extends AppCompatActivity
     return yuvBytes[0];
   }
 
+  /** Copies the current frame, call before {@link #readyForNextImage()} releases it. */
+  protected void copyYuvFrame(final YuvFrame dst) {
+    if (yuvPlanar) {
+      dst.setPlanes(yuvBytes[0], yuvBytes[1], yuvBytes[2], previewWidth, previewHeight,
+          yRowStride, uvRowStride, uvPixelStride);
+    } else {
+      dst.setNv21(yuvBytes[0], previewWidth, previewHeight);
+    }
+  }
+
   /** Callback for android.hardware.Camera API */
   @Override
   public void onPreviewFrame(final byte[] bytes, final Camera camera) {
@@ -277,6 +292,7 @@ public abstract class CameraActivity extends AppCompatActivity
 
     isProcessingFrame = true;
     yuvBytes[0] = bytes;
+    yuvPlanar = false;
     yRowStride = previewWidth;
 
     imageConverter =
@@ -323,9 +339,10 @@ public abstract class CameraActivity extends AppCompatActivity
       Trace.beginSection("imageAvailable");
       final Plane[] planes = image.getPlanes();
       fillBytes(planes, yuvBytes);
+      yuvPlanar = true;
       yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
+      uvRowStride = planes[1].getRowStride();
+      uvPixelStride = planes[1].getPixelStride();
 
       imageConverter =
           new Runnable() {
@@ -44,6 +44,13 @@ class DetectionResult(): BaseObservable() {
 
         var time: Long = 0
 
+        /**
+         * 每个活体模型的置信度、耗时（毫秒），下标与 live/config.json 中的顺序一致
+         */
+        var modelConfidences: FloatArray = FloatArray(0)
+
+        var modelTimes: FloatArray = FloatArray(0)
+
         var threshold: Float = 0F
 
         @get:Bindable
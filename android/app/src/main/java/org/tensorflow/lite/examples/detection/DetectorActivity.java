@@ -25,12 +25,9 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.hardware.camera2.CameraCharacteristics;
@@ -50,39 +47,48 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
-
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Tasks;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
-import com.google.gson.Gson;
 import com.google.mlkit.vision.common.InputImage;
 import com.google.mlkit.vision.face.Face;
 import com.google.mlkit.vision.face.FaceDetection;
 import com.google.mlkit.vision.face.FaceDetector;
 import com.google.mlkit.vision.face.FaceDetectorOptions;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.tensorflow.lite.examples.detection.customview.OverlayView;
 import org.tensorflow.lite.examples.detection.customview.OverlayView.DrawCallback;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
+import org.tensorflow.lite.examples.detection.tflite.CentroidIndex;
+import org.tensorflow.lite.examples.detection.tflite.EmbeddingGallery;
+import org.tensorflow.lite.examples.detection.tflite.FaceGallery;
+import org.tensorflow.lite.examples.detection.tflite.HnswIndex;
+import org.tensorflow.lite.examples.detection.tflite.Int8Gallery;
+import org.tensorflow.lite.examples.detection.tflite.IvfPqGallery;
+import org.tensorflow.lite.examples.detection.tflite.Metric;
+import org.tensorflow.lite.examples.detection.tflite.Neighbor;
 import org.tensorflow.lite.examples.detection.tflite.SimilarityClassifier;
 import org.tensorflow.lite.examples.detection.tflite.TFLiteObjectDetectionAPIModel;
+import org.tensorflow.lite.examples.detection.tracking.FaceResultCache;
+import org.tensorflow.lite.examples.detection.tracking.FrameScheduler;
+import org.tensorflow.lite.examples.detection.tracking.LumaMotionEstimator;
 import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
 import org.tensorflow.lite.examples.engine.FaceBox;
 
@@ -114,7 +120,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   // image setting
   private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
-  private static final Size LIVE_INPUT_SIZE = new Size(640, 480);
   //private static final int CROP_SIZE = 320;
   //private static final Size CROP_SIZE = new Size(320, 320);
 
@@ -137,7 +142,47 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   // 存储人脸图
   private static final boolean SAVE_FACE_WHEN_ADD = true;
-  private static final String FACE_EMBEDDING_SUFFIX = ".embeddings";
+
+  // 人脸库很大时（数万张）用 HNSW 近似搜索代替逐个比对
+  private static final boolean USE_APPROXIMATE_INDEX = false;
+  // 每人多张人脸时先和每人的平均特征比，只对最像的几个人逐张比对
+  private static final boolean USE_CENTROID_PREFILTER = false;
+  // 比对方式，默认 L2。改用 COSINE 时注册时把特征归一化，比对只算点积，阈值按余弦距离单独设置
+  private static final Metric GALLERY_METRIC = Metric.L2;
+  private static final int RECALL_CHECK_SAMPLES = 200;
+  // 逐个比对时每累加 K 维检查一次，已超过阈值或当前最近距离就放弃这张
+  private static final int EARLY_ABANDON_BLOCK = 16;
+  // 按方差从大到小累加。合成数据上累加的维数和按存储顺序差不多，多一次下标间接寻址反而更慢
+  // （见 FaceGalleryScanBenchmark），在真实特征上测过之前默认关闭
+  private static final boolean SCAN_BY_VARIANCE = false;
+  // 内存受限设备：加载完成后把人脸库压缩为 IVF-PQ 编码（每张 16 字节）
+  // 启动代价：没有 gallery.ivfpq 时要在设备上训练 k-means，计算量随人数增长，1 千张约 3 GFLOP，
+  // 训练上限 2 万张时约 80 GFLOP（数十秒）；训练好的码本和编码存入 gallery.ivfpq，之后启动直接加载
+  private static final boolean USE_COMPRESSED_GALLERY = false;
+  // 人脸库特征存成 int8（每维 1 字节加每张一个缩放系数），比对用整数点积，有 NEON 时走 engine
+  // 启动代价：没有 gallery.int8 时量化一遍浮点库（每张一次遍历）并做一次一致性检查，之后直接加载 gallery.int8
+  private static final boolean USE_INT8_GALLERY = false;
+  private static final boolean USE_NATIVE_INT8_DOT = true;
+  private static final int INT8_CHECK_SAMPLES = 200;
+  // 人脸识别输入的归一化用 engine 里的 NEON 实现，库不可用时自动退回查表实现
+  private static final boolean USE_NATIVE_PREPROCESSING = true;
+  // 两个活体模型并发推理
+  private static final boolean LIVENESS_CONCURRENT = true;
+  // 活体级联：第一个模型的置信度离阈值超过 band 时不再跑第二个模型
+  private static final boolean LIVENESS_CASCADE = true;
+  private static final float LIVENESS_CASCADE_BAND = 0.1F;
+  // 识别结果缓存：按跟踪器的轨迹区分人脸，离上次识别的位置 IoU 低于 REUSE_IOU 或超时则重新识别
+  private static final float FACE_CACHE_REUSE_IOU = 0.7F;
+  private static final long FACE_CACHE_TTL_MS = 1000;
+  private static final int FACE_CACHE_MAX_FRAMES = 15;
+  // 检测间隔（帧）的上下限，以及块匹配可信的最大平均亮度差
+  private static final int DETECT_MIN_INTERVAL = 2;
+  private static final int DETECT_MAX_INTERVAL = 10;
+  private static final float MOTION_MAX_MEAN_DIFF = 20F;
+  // 活体引擎不是线程安全的，每个引擎同一时间只给一张人脸用，引擎数就是活体检测的并发上限
+  private static final int LIVENESS_ENGINES = 2;
+  // 流水线里同时在处理的帧数：转换、检测、特征/活体各占一帧
+  private static final int PIPELINE_FRAMES = 3;
 
   private static final float TEXT_SIZE_DIP = 10;
   OverlayView trackingOverlay;
@@ -147,22 +192,31 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   // 人脸识别
   private SimilarityClassifier detector;
-
-  private long lastProcessingTimeMs;
-  private Bitmap rgbFrameBitmap = null;
-  private Bitmap croppedBitmap = null;
-  private Bitmap liveInputImg = null;
-  private Bitmap cropCopyBitmap = null;
-
-  private boolean computingDetection = false;
-  private boolean canAddFace = false;
-  private boolean faceDetected = false;
+  private GalleryLoader galleryLoader;
+
+  private volatile long lastProcessingTimeMs;
+  private int cropWidth;
+  private int cropHeight;
+
+  // 流水线：转换 -> 检测 -> 特征/活体 -> 结果，每个阶段一个线程，相邻阶段同时处理不同的帧
+  // 阶段之间只交接最新的一帧，被顶掉的帧回到帧池；帧池空了说明流水线已满，新帧只做跟踪
+  private final ArrayBlockingQueue<PipelineFrame> freeFrames = new ArrayBlockingQueue<>(PIPELINE_FRAMES);
+  private FrameStage<PipelineFrame> convertStage;
+  private FrameStage<PipelineFrame> detectStage;
+  private FrameStage<PipelineFrame> embedStage;
+  private FrameStage<FrameResult> renderStage;
+  // 人脸的裁剪和活体检测分给这些线程并行做，与批量识别同时进行
+  private ExecutorService faceWorkers;
+  // 每 N 帧才做一次完整检测，N 随检测耗时自适应；中间的帧靠亮度块匹配推移人脸框
+  private final FrameScheduler frameScheduler = new FrameScheduler(DETECT_MIN_INTERVAL, DETECT_MAX_INTERVAL);
+  private final LumaMotionEstimator lumaMotion = new LumaMotionEstimator(MOTION_MAX_MEAN_DIFF);
+  private volatile boolean canAddFace = false;
+  private volatile boolean faceDetected = false;
   //private boolean adding = false;
 
   private long imageCounter = 0;
 
   private Matrix frameToCropTransform;
-  private Matrix frameToLiveTransform;
   private Matrix cropToFrameTransform;
   //private Matrix cropToPortraitTransform;
 
@@ -175,8 +229,15 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   // here the preview image is drawn in portrait way
   private Bitmap portraitBmp = null;
-  // here the face is cropped and drawn
-  private Bitmap faceBmp = null;
+  // here the face being added is cropped and drawn
+  private volatile Bitmap faceBmp = null;
+  // 批量识别的输入变换、特征和结果，逐帧复用，避免相机循环里产生垃圾
+  private Matrix[] faceTransforms = new Matrix[0];
+  private float[][] faceEmbeddings = new float[0][];
+  private Neighbor[] faceNeighbors = new Neighbor[0];
+  // 按跟踪器的轨迹 id 缓存，同一个人一段时间内不重复做识别和活体检测；轨迹丢失时删除
+  private final FaceResultCache faceCache = new FaceResultCache(
+          FACE_CACHE_REUSE_IOU, FACE_CACHE_TTL_MS, FACE_CACHE_MAX_FRAMES);
 
   private FloatingActionButton fabAdd;
   private FloatingActionButton fabSetting;
@@ -187,25 +248,55 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   // 活体检测
   private boolean liveFaceEnginePrepared = false;
   private EngineWrapper liveFaceEngine;
+  // 全部活体引擎（含 liveFaceEngine），空闲的在 freeLiveEngines 里，用时借出、用完归还
+  private final List<EngineWrapper> liveEngines = new ArrayList<>();
+  private final ArrayBlockingQueue<EngineWrapper> freeLiveEngines = new ArrayBlockingQueue<>(LIVENESS_ENGINES);
 
   // FIXME 使用 Preference 存储
   private static String settingPassword = "";
-  private static Float settingFacerecThreshold = 0.8F;
+  // 人脸识别阈值与 GALLERY_METRIC 同一尺度：L2 阈值是在未归一化的 MobileFaceNet 特征上调的，不能换算到余弦距离；
+  // 余弦距离（1 - cos）的阈值需要用实际录入的人脸单独校准
+  private static final float FACEREC_L2_THRESHOLD = 0.8F;
+  private static final float FACEREC_COSINE_THRESHOLD = 0.5F;
+  private static Float settingFacerecThreshold =
+          GALLERY_METRIC == Metric.COSINE ? FACEREC_COSINE_THRESHOLD : FACEREC_L2_THRESHOLD;
   private static Float settingLivebodyThreshold = 0.915F;
 
   @Override
   public synchronized void onResume() {
-    liveFaceEngine = new EngineWrapper(getAssets());
-    liveFaceEnginePrepared = liveFaceEngine.init();
-    if (!liveFaceEnginePrepared) {
-      Toast.makeText(this, "Engine init failed.", Toast.LENGTH_LONG).show();
+    if (liveEngines.isEmpty()) {
+      liveFaceEnginePrepared = true;
+      for (int i = 0; i < LIVENESS_ENGINES; i++) {
+        EngineWrapper engine = new EngineWrapper(getAssets());
+        liveFaceEnginePrepared &= engine.init();
+        engine.setConcurrent(LIVENESS_CONCURRENT);
+        liveEngines.add(engine);
+        freeLiveEngines.add(engine);
+      }
+      liveFaceEngine = liveEngines.get(0);
+      if (!liveFaceEnginePrepared) {
+        Toast.makeText(this, "Engine init failed.", Toast.LENGTH_LONG).show();
+      }
     }
+    setLivenessCascade();
     super.onResume();
   }
 
+  private void setLivenessCascade() {
+    for (EngineWrapper engine : liveEngines) {
+      engine.setCascade(LIVENESS_CASCADE, settingLivebodyThreshold, LIVENESS_CASCADE_BAND);
+    }
+  }
+
   @Override
   public synchronized void onDestroy() {
-    liveFaceEngine.destroy();
+    // 先停流水线，活体引擎要等特征/活体阶段处理完手上的帧再释放
+    quitPipeline();
+    for (EngineWrapper engine : liveEngines) {
+      engine.destroy();
+    }
+    liveEngines.clear();
+    freeLiveEngines.clear();
     if (btSock != null) {
       try {
           btSock.close();
@@ -311,6 +402,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   private void onAddClickDo() {
     canAddFace = true;
+    frameScheduler.requestDetection();
     //Toast.makeText(this, "click", Toast.LENGTH_LONG).show();
     if (!faceDetected) {
       Toast.makeText(this, "未检测到人脸", Toast.LENGTH_SHORT ).show();
@@ -366,7 +458,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
             new SettingItem(SETTING_DOORNAME, "设置门的名称，以便区分", "输入名称"),
             new SettingItem(SETTING_TESTOPEN, "测试蓝牙、继电器是否工作", "不填"),
             new SettingItem(SETTING_BLEMAC, "设置蓝牙继电器 MAC 地址", BT_MAC_ADDR_HARDCODE),
-            new SettingItem(SETTING_FACEREC_THRESHOLD, "设置人脸对比损失函数阈值", "输入 0 以上小数，默认 " + settingFacerecThreshold),
+            new SettingItem(SETTING_FACEREC_THRESHOLD, "设置人脸对比损失函数阈值（" + GALLERY_METRIC + " 距离）", "输入 0 以上小数，默认 " + settingFacerecThreshold),
             new SettingItem(SETTING_LIVEBOD_THRESHOLD, "设置活体检测结果阈值", "输入 0-1 之间小数，默认 " + settingLivebodyThreshold),
             new SettingItem(SETTING_SERVER_ADDR, "设置服务器地址", "http://192.168.5.16:9091"),
             new SettingItem(SETTING_DELETE_SOMEONE, "删除某个人已录入照片并停用", "输入录入时名称")
@@ -409,16 +501,24 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                       case SETTING_FACEREC_THRESHOLD:
                         if (!input.isEmpty()) {
                           settingFacerecThreshold = Float.parseFloat(etInput.getText().toString());
+                          configureGalleryScan();
                         }
                         break;
                       case SETTING_LIVEBOD_THRESHOLD:
                         if (!input.isEmpty()) {
                           settingLivebodyThreshold = Float.parseFloat(etInput.getText().toString());
+                          setLivenessCascade();
+                          faceCache.clear();
                         }
                         break;
                       case SETTING_TESTOPEN:
                         onTestSwitchClick();
                         break;
+                      case SETTING_DELETE_SOMEONE:
+                        if (!input.isEmpty()) {
+                          onDeleteSomeone(input);
+                        }
+                        break;
                     }
                     dlg.dismiss();
                   }
@@ -430,6 +530,19 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     dialog.show();
   }
 
+  private void onDeleteSomeone(String label) {
+    // 名字直接用作目录名，不能是 . .. 或带路径分隔符，否则会删到人脸目录以外的文件
+    if (!ImageUtils.isValidLabel(label)) {
+      Toast.makeText(this, "名字不能为空、. 或 ..，也不能包含 /", Toast.LENGTH_SHORT).show();
+      return;
+    }
+    int removed = detector.unregister(label);
+    int deleted = ImageUtils.deleteUserFiles(label);
+    asyncSaveGalleryFile();
+    Log.i(TAG, String.format("删除 %s，内存中 %d 张，文件 %d 个", label, removed, deleted));
+    Toast.makeText(this, String.format("已删除 %s 的 %d 张人脸", label, removed), Toast.LENGTH_SHORT).show();
+  }
+
   private void onTestSwitchClick() {
     blinkBluetoothSwitchAsync();
     Toast.makeText(this, "测试开关", Toast.LENGTH_SHORT).show();
@@ -464,100 +577,139 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   }
 
   private void asyncLoadBitmaps2RAM() {
-    AsyncTask.execute(new Runnable() {
+    String root = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + ImageUtils.APP_DATA_DIR;
+    int maxImgPerUser = USE_COMPRESSED_GALLERY ? ImageUtils.MAX_IMG_PER_USER_COMPRESSED : ImageUtils.MAX_IMG_PER_USER;
+    GalleryLoader.Storage storage = USE_COMPRESSED_GALLERY ? GalleryLoader.Storage.IVF_PQ
+            : USE_INT8_GALLERY ? GalleryLoader.Storage.INT8 : GalleryLoader.Storage.FLOAT;
+    galleryLoader = new GalleryLoader(new File(root), TF_OD_API_INPUT_SIZE, maxImgPerUser, storage, new GalleryLoader.Listener() {
       @Override
-      public void run() {
-        Log.i(TAG, "开始加载本地人脸");
-        int[] countArr = loadLocalBitmaps();
-        if (countArr.length >= 2) {
-          Log.i(TAG, String.format("完成人脸加载，共 %d 人，取了 %d 张", countArr[0], countArr[1]));
-        } else {
-          Log.i(TAG, "完成人脸加载");
+      public void onProgress(int doneIdentities, int totalIdentities) {
+        LOGGER.d("Gallery loading %d/%d", doneIdentities, totalIdentities);
+      }
+
+      @Override
+      public void onGalleryReady(final int identities, final int samples, long elapsedMs) {
+        Log.i(TAG, String.format("完成人脸加载，共 %d 人，取了 %d 张，耗时 %dms", identities, samples, elapsedMs));
+        if (USE_APPROXIMATE_INDEX || USE_CENTROID_PREFILTER) {
+          logIndexRecall();
         }
+        configureGalleryScan();
+        if (USE_COMPRESSED_GALLERY) {
+          compressGallery();
+        } else if (USE_INT8_GALLERY) {
+          quantizeGallery();
+        }
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            Toast.makeText(DetectorActivity.this, String.format("人脸库已加载，共 %d 人", identities), Toast.LENGTH_SHORT).show();
+          }
+        });
       }
     });
+    Log.i(TAG, "开始加载本地人脸");
+    // 加载线程会等到 onPreviewSizeChosen 创建好 detector 后才开始
+    galleryLoader.start();
   }
 
-  private int[] loadLocalBitmaps() {
-    if (detector == null) {
-      try {
-        // FIXME 等待相机、detector 初始化
-        Thread.sleep(2000);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+  // 用库中已有的人脸作为查询，检查近似搜索（HNSW 或按人预筛选）与逐个比对结果是否一致
+  private void logIndexRecall() {
+    if (!(detector.getGallery() instanceof FaceGallery)) {
+      return;
+    }
+    FaceGallery gallery = (FaceGallery) detector.getGallery();
+    float[][] queries = gallery.sampleEmbeddings(RECALL_CHECK_SAMPLES);
+    Log.i(TAG, String.format("%s recall@1: %.3f (%d queries)",
+            gallery.getIndex().getClass().getSimpleName(), gallery.measureIndexRecall(queries), queries.length));
+  }
+
+  // 逐个比对的提前终止设置；方差按当前人脸库计算，阈值变化后也要重新设置
+  private void configureGalleryScan() {
+    final float threshold = settingFacerecThreshold;
+    detector.updateGallery(gallery -> {
+      if (gallery instanceof FaceGallery) {
+        FaceGallery faceGallery = (FaceGallery) gallery;
+        faceGallery.setEarlyAbandon(EARLY_ABANDON_BLOCK);
+        faceGallery.setVarianceOrder(SCAN_BY_VARIANCE);
+        faceGallery.setMaxDistance(threshold);
       }
+    });
+  }
+
+  // 用已录入的人脸训练码本，之后以压缩库替换原始浮点库，并保存码本供下次启动直接加载
+  private void compressGallery() {
+    EmbeddingGallery current = detector.getGallery();
+    if (current instanceof IvfPqGallery) {
+      // 已从 gallery.ivfpq 加载
+      return;
     }
-    String root = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + ImageUtils.APP_DATA_DIR;
-    final File myDir = new File(root);
-    if (!myDir.exists()) {
-      LOGGER.i("directory not found, skip scan");
+    if (!(current instanceof FaceGallery) || current.size() < IvfPqGallery.MIN_TRAINING_SAMPLES) {
+      Log.i(TAG, "人脸数量不足，不压缩人脸库: " + current.size());
+      return;
     }
-    int subdirCount = 0;
-    int fileCount = 0;
-    File[] subdirs = myDir.listFiles(new DirectoryFilter());
-    for (int i = 0; i < subdirs.length; i++) {
-      LOGGER.d("Checking bitmaps in: %s", subdirs[i].getAbsolutePath());
-      if (!subdirs[i].exists()) {
-        continue;
-      }
-      subdirCount++;
-
-      // 过滤 png 文件，再查找 .embedding 文件，找不到则生成并存储
-      File[] files = subdirs[i].listFiles(new PngFilter());
-      LOGGER.d("Found %d bitmaps in: %s", files.length, subdirs[i].getAbsolutePath());
-      // FIXME 返回的文件不保证按名称字母排序
-      for (int j = files.length-1; j >= 0; j--) {
-        String filepath = files[j].getAbsolutePath();
-        LOGGER.i("Loading bitmap and embeddings to RAM, %d, file path: %s", j, filepath);
-        String label = subdirs[i].getName();
-        SimilarityClassifier.Recognition rec = new SimilarityClassifier.Recognition("0", label, 0.0F, new RectF());
-        Bitmap img = BitmapFactory.decodeFile(filepath);
-
-        Object embeddings = null;
-        final String embeddingsFilename = filepath + FACE_EMBEDDING_SUFFIX;
-        final File embeddingsFile = new File(embeddingsFilename);
-        if (embeddingsFile.exists()) {
-          embeddings = parseEmbeddingsFile(embeddingsFile);
-        } else if (img.getWidth() == TF_OD_API_INPUT_SIZE && img.getHeight() == TF_OD_API_INPUT_SIZE) {
-          embeddings = detector.generateEmbeddings(img);
-          ImageUtils.saveEmbeddingAsFile(embeddings, subdirs[i].getName(), files[j].getName() + FACE_EMBEDDING_SUFFIX);
-        }
-        if (embeddings != null) {
-          rec.setExtra(embeddings);
-          detector.register(label, rec);
-          LOGGER.i("Register success %s: %s", label, filepath);
-        }
-        // 最多取最后的 5 张，为了节约内存
-        if (files.length - j > ImageUtils.MAX_IMG_PER_USER) {
-          break;
-        }
-        fileCount++;
+    long start = SystemClock.uptimeMillis();
+    IvfPqGallery compressed = IvfPqGallery.train((FaceGallery) current, IvfPqGallery.DEFAULT_CODE_SIZE, IvfPqGallery.DEFAULT_NPROBE);
+    detector.setGallery(compressed);
+    Log.i(TAG, String.format("人脸库已压缩，%d 张，%d 字节，耗时 %dms",
+            compressed.size(), compressed.getStorageBytes(), SystemClock.uptimeMillis() - start));
+    galleryLoader.save();
+  }
+
+  // 人脸库量化为 int8：先在加载好的浮点库上比较两者的排序和比对耗时，再替换
+  // 查询取库中相邻两张人脸的中点，避免查询本身就在库里
+  private void quantizeGallery() {
+    EmbeddingGallery current = detector.getGallery();
+    if (current instanceof Int8Gallery) {
+      // 已从 gallery.int8 加载，只需选择比对实现
+      detector.updateGallery(gallery -> ((Int8Gallery) gallery).setUseNative(USE_NATIVE_INT8_DOT));
+      return;
+    }
+    if (!(current instanceof FaceGallery) || current.size() < 2) {
+      return;
+    }
+    FaceGallery reference = ((FaceGallery) current).copy();
+    reference.setIndex(null);
+    reference.setEarlyAbandon(0);
+    reference.setMaxDistance(Float.MAX_VALUE);
+    long start = SystemClock.uptimeMillis();
+    Int8Gallery quantized = Int8Gallery.quantize(reference);
+    quantized.setUseNative(USE_NATIVE_INT8_DOT);
+    long quantizeMs = SystemClock.uptimeMillis() - start;
+
+    float[][] samples = reference.sampleEmbeddings(INT8_CHECK_SAMPLES + 1);
+    float[][] queries = new float[samples.length - 1][reference.getDim()];
+    for (int i = 0; i < queries.length; i++) {
+      for (int d = 0; d < reference.getDim(); d++) {
+        queries[i][d] = (samples[i][d] + samples[i + 1][d]) / 2;
       }
     }
-    return new int[]{subdirCount, fileCount};
+    Neighbor nearest = new Neighbor();
+    start = SystemClock.uptimeMillis();
+    for (float[] query : queries) {
+      reference.findNearest(query, nearest);
+    }
+    long floatMs = SystemClock.uptimeMillis() - start;
+    start = SystemClock.uptimeMillis();
+    for (float[] query : queries) {
+      quantized.findNearest(query, nearest);
+    }
+    long int8Ms = SystemClock.uptimeMillis() - start;
+
+    Log.i(TAG, String.format("int8 人脸库：%d 张，%d 字节（浮点 %d 字节），量化 %dms；top1 一致 %.3f，top5 召回 %.3f；%d 次比对 浮点 %dms，int8(%s) %dms",
+            quantized.size(), quantized.getStorageBytes(), (long) reference.size() * reference.getDim() * 4, quantizeMs,
+            quantized.measureAgreement(reference, queries, 1), quantized.measureAgreement(reference, queries, 5),
+            queries.length, floatMs, quantized.getKernelName(), int8Ms));
+    detector.setGallery(quantized);
+    galleryLoader.save();
   }
 
-  private Object parseEmbeddingsFile(File f) {
-    try {
-      FileInputStream in = new FileInputStream(f);
-      BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-      String content = "";
-      String line = "";
-      while ((line = reader.readLine()) != null) {
-        content += line;
+  private void asyncSaveGalleryFile() {
+    AsyncTask.execute(new Runnable() {
+      @Override
+      public void run() {
+        galleryLoader.save();
       }
-      reader.close();
-
-      Log.d(TAG, "parsing file content to embeddings array: " + content);
-      Gson gson = new Gson();
-      return gson.fromJson(content, float[][].class);
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    return null;
+    });
   }
 
   private void btAsyncSendBytes(byte[] data) throws IOException {
@@ -636,6 +788,15 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                       TF_OD_API_LABELS_FILE,
                       TF_OD_API_INPUT_SIZE,
                       TF_OD_API_IS_QUANTIZED);
+      detector.setUseNativePreprocessing(USE_NATIVE_PREPROCESSING);
+      FaceGallery gallery = new FaceGallery(detector.getGallery().getDim(), GALLERY_METRIC);
+      if (USE_APPROXIMATE_INDEX) {
+        gallery.setIndex(new HnswIndex(gallery));
+      } else if (USE_CENTROID_PREFILTER) {
+        gallery.setIndex(new CentroidIndex(gallery));
+      }
+      detector.setGallery(gallery);
+      galleryLoader.onDetectorReady(detector);
       //cropSize = TF_OD_API_INPUT_SIZE;
     } catch (final IOException e) {
       e.printStackTrace();
@@ -654,8 +815,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
     LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-    rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-
 
     int targetW, targetH;
     if (sensorOrientation == 90 || sensorOrientation == 270) {
@@ -668,11 +827,10 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     }
     int cropW = (int) (targetW / 2.0);
     int cropH = (int) (targetH / 2.0);
+    cropWidth = cropW;
+    cropHeight = cropH;
 
-    croppedBitmap = Bitmap.createBitmap(cropW, cropH, Config.ARGB_8888);
-    liveInputImg = Bitmap.createBitmap(640, 480, Config.ARGB_8888);
     portraitBmp = Bitmap.createBitmap(targetW, targetH, Config.ARGB_8888);
-    faceBmp = Bitmap.createBitmap(TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE, Config.ARGB_8888);
 
     frameToCropTransform =
             ImageUtils.getTransformationMatrix(
@@ -680,12 +838,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                     cropW, cropH,
                     sensorOrientation, MAINTAIN_ASPECT);
 
-    frameToLiveTransform =
-            ImageUtils.getTransformationMatrix(
-                    previewWidth, previewHeight,
-                    LIVE_INPUT_SIZE.getWidth(), LIVE_INPUT_SIZE.getHeight(),
-                    sensorOrientation, MAINTAIN_ASPECT);
-
     cropToFrameTransform = new Matrix();
     frameToCropTransform.invert(cropToFrameTransform);
 
@@ -711,6 +863,73 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
             });
 
     tracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
+    // 前置摄像头的结果做过翻转（见 onFacesDetected），运动估计要先翻回传感器坐标
+    final boolean front = getCameraFacing() == CameraCharacteristics.LENS_FACING_FRONT;
+    final boolean rotated = sensorOrientation == 90 || sensorOrientation == 270;
+    lumaMotion.setMirror(front && !rotated, front && rotated);
+    tracker.setTrackListener(new MultiBoxTracker.TrackListener() {
+      @Override
+      public void onTrackStarted(int id, RectF location, String title) {
+        LOGGER.d("Track %d started at %s: %s", id, location, title);
+      }
+
+      @Override
+      public void onTrackUpdated(int id, RectF location, String title) {
+      }
+
+      @Override
+      public void onTrackLost(int id) {
+        LOGGER.d("Track %d lost", id);
+        faceCache.remove(id);
+      }
+    });
+
+    startPipeline(cropW, cropH);
+  }
+
+  private void startPipeline(int cropW, int cropH) {
+    quitPipeline();
+    freeFrames.clear();
+    for (int i = 0; i < PIPELINE_FRAMES; i++) {
+      freeFrames.add(new PipelineFrame(previewWidth, previewHeight, cropW, cropH));
+    }
+    renderStage = new FrameStage<>("render", this::updateResults, result -> { });
+    embedStage = new FrameStage<>("embed", this::onFacesDetected, frame -> {
+      // 被顶掉的帧如果带着录入请求，交给下一帧
+      if (frame.add) {
+        canAddFace = true;
+      }
+      releaseFrame(frame);
+    });
+    detectStage = new FrameStage<>("detect", this::detectFaces, this::releaseFrame);
+    convertStage = new FrameStage<>("convert", this::convertFrame, this::releaseFrame);
+    faceWorkers = Executors.newFixedThreadPool(LIVENESS_ENGINES);
+  }
+
+  private void quitPipeline() {
+    if (convertStage == null) {
+      return;
+    }
+    convertStage.quit();
+    detectStage.quit();
+    embedStage.quit();
+    renderStage.quit();
+    faceWorkers.shutdown();
+    convertStage = null;
+  }
+
+  private void releaseFrame(PipelineFrame frame) {
+    frame.faces = null;
+    frame.add = false;
+    freeFrames.offer(frame);
+  }
+
+  // 流水线的吞吐由最慢的阶段决定
+  private long pipelinePeriodMs() {
+    final float slowest = Math.max(
+            Math.max(convertStage.getAverageMs(), detectStage.getAverageMs()),
+            Math.max(embedStage.getAverageMs(), renderStage.getAverageMs()));
+    return (long) Math.ceil(slowest);
   }
 
 
@@ -718,62 +937,76 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   protected void processImage() {
     ++imageCounter;
     final long currImgCounter = imageCounter;
-    trackingOverlay.postInvalidate();
+    frameScheduler.onFrame(SystemClock.uptimeMillis());
+    lumaMotion.update(getLuminance(), getLuminanceStride(), previewWidth, previewHeight);
 
-    // No mutex needed as this method is not reentrant.
-    if (computingDetection) {
+    // 每一帧都用亮度平面估计人脸框的运动，送去检测的帧也不例外；检测结果到达时再校正推移后的位置
+    // 估计不准时下一帧立即检测
+    final boolean unreliable = tracker.propagate(currImgCounter, lumaMotion) > 0;
+
+    // 帧池空了说明流水线已满，这一帧和不检测的帧一样只推移人脸框
+    if (freeFrames.isEmpty() || !frameScheduler.shouldDetect(currImgCounter)) {
+      if (unreliable) {
+        frameScheduler.requestDetection();
+      }
+      trackingOverlay.postInvalidate();
       readyForNextImage();
       return;
     }
-    computingDetection = true;
+    // 只有相机线程从帧池取帧，isEmpty 之后 poll 不会落空
+    final PipelineFrame frame = freeFrames.poll();
+    frame.index = currImgCounter;
+    frame.startMs = SystemClock.uptimeMillis();
+    trackingOverlay.postInvalidate();
 
     LOGGER.v("Preparing image " + currImgCounter + " for detection in bg thread.");
 
-    rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
-
+    // 相机线程只拷贝 YUV，转 RGB 放到转换阶段
+    copyYuvFrame(frame.yuv);
     readyForNextImage();
+    convertStage.offer(frame);
+  }
 
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-
-    final Canvas liveCV = new Canvas(liveInputImg);
-    liveCV.drawBitmap(rgbFrameBitmap, frameToLiveTransform, null);
-
-    InputImage image = InputImage.fromBitmap(croppedBitmap, 0);
-    faceDetector
-            .process(image)
-            .addOnFailureListener(new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-
-              }
-            })
-            .addOnSuccessListener(new OnSuccessListener<List<Face>>() {
-              @Override
-              public void onSuccess(List<Face> faces) {
-                if (faces.size() == 0) {
-                  updateResults(currImgCounter, new LinkedList<>());
-                  LOGGER.v("---- no face detected %s", currImgCounter);
-                  canAddFace = false;
-                  faceDetected = false;
-                  lastRecognizedLabel = "";
-                  return;
-                }
-                LOGGER.v("---- face detected %s", currImgCounter);
-                faceDetected = true;
-                runInBackground(
-                        new Runnable() {
-                          @Override
-                          public void run() {
-                            onFacesDetected(currImgCounter, faces, canAddFace);
-                            canAddFace = false;
-                          }
-                        });
-              }
-
-            });
-
+  // 转换阶段：YUV -> RGB，再缩放旋转成检测输入
+  private void convertFrame(PipelineFrame frame) {
+    frame.yuv.toArgb(frame.argb);
+    frame.rgb.setPixels(frame.argb, 0, previewWidth, 0, 0, previewWidth, previewHeight);
+    final Canvas canvas = new Canvas(frame.cropped);
+    canvas.drawBitmap(frame.rgb, frameToCropTransform, null);
+    detectStage.offer(frame);
+  }
 
+  // 检测阶段：MLKit 人脸检测，在本阶段线程上等待结果
+  private void detectFaces(PipelineFrame frame) {
+    final List<Face> faces;
+    try {
+      faces = Tasks.await(faceDetector.process(InputImage.fromBitmap(frame.cropped, 0)));
+    } catch (ExecutionException e) {
+      LOGGER.e(e, "Face detection failed on img %d", frame.index);
+      releaseFrame(frame);
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      releaseFrame(frame);
+      return;
+    }
+    if (faces.isEmpty()) {
+      LOGGER.v("---- no face detected %s", frame.index);
+      canAddFace = false;
+      faceDetected = false;
+      lastRecognizedLabel = "";
+      // 没有人脸也要告诉跟踪器，没匹配上的轨迹才会计入丢失
+      tracker.trackBoxes(Collections.<RectF>emptyList(), frame.index, new int[0]);
+      renderStage.offer(new FrameResult(frame.index, frame.startMs, new LinkedList<>(), new int[0]));
+      releaseFrame(frame);
+      return;
+    }
+    LOGGER.v("---- face detected %s", frame.index);
+    faceDetected = true;
+    frame.faces = faces;
+    frame.add = canAddFace;
+    canAddFace = false;
+    embedStage.offer(frame);
   }
 
   @Override
@@ -794,12 +1027,21 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   @Override
   protected void setUseNNAPI(final boolean isChecked) {
-    runInBackground(() -> detector.setUseNNAPI(isChecked));
+    runOnEmbedStage(() -> detector.setUseNNAPI(isChecked));
   }
 
   @Override
   protected void setNumThreads(final int numThreads) {
-    runInBackground(() -> detector.setNumThreads(numThreads));
+    runOnEmbedStage(() -> detector.setNumThreads(numThreads));
+  }
+
+  // 识别模型只在特征/活体阶段的线程上使用，修改也放到那里
+  private void runOnEmbedStage(Runnable r) {
+    if (embedStage != null) {
+      embedStage.post(r);
+    } else {
+      runInBackground(r);
+    }
   }
 
 
@@ -877,7 +1119,8 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
             String filename = System.currentTimeMillis() + ".png";
             // 不要用 rec.getCrop() 因为尺寸不符
             ImageUtils.saveBitmap(faceBmp, label, filename);
-            ImageUtils.saveEmbeddingAsFile(rec.getExtra(), label,filename + FACE_EMBEDDING_SUFFIX);
+            ImageUtils.saveEmbeddingAsFile(rec.getExtra(), label,filename + GalleryLoader.FACE_EMBEDDING_SUFFIX);
+            asyncSaveGalleryFile();
           }
           //knownFaces.put(label, rec);
 
@@ -890,11 +1133,19 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   }
 
 
-  private void updateResults(long currImgCounter, final List<SimilarityClassifier.Recognition> mappedRecognitions) {
+  // 结果阶段：更新跟踪、弹出录入框、刷新界面
+  private void updateResults(FrameResult result) {
+    final List<SimilarityClassifier.Recognition> mappedRecognitions = result.recognitions;
 
-    tracker.trackResults(mappedRecognitions, currImgCounter);
+    // 人脸框已在识别阶段交给跟踪器，这里只更新各轨迹显示的识别结果
+    int r = 0;
+    for (SimilarityClassifier.Recognition recognition : mappedRecognitions) {
+      tracker.setTrackResult(result.trackIds[r++], recognition);
+    }
     trackingOverlay.postInvalidate();
-    computingDetection = false;
+    frameScheduler.onDetectionFinished(pipelinePeriodMs());
+    LOGGER.d("Img %d latency %dms, %s", result.index, SystemClock.uptimeMillis() - result.startMs, frameScheduler.getStatString());
+    LOGGER.d("%s; %s; %s; %s", convertStage.getStatString(), detectStage.getStatString(), embedStage.getStatString(), renderStage.getStatString());
     //adding = false;
 
 
@@ -912,20 +1163,181 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
               @Override
               public void run() {
                 showFrameInfo(previewWidth + "x" + previewHeight);
-                showCropInfo(croppedBitmap.getWidth() + "x" + croppedBitmap.getHeight());
+                showCropInfo(cropWidth + "x" + cropHeight);
                 showInference(lastProcessingTimeMs + "ms");
               }
             });
 
   }
 
-  private void onFacesDetected(long currImgCounter, List<Face> faces, boolean add) {
-    cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-    final Canvas canvas = new Canvas(cropCopyBitmap);
-    final Paint paint = new Paint();
-    paint.setColor(Color.RED);
-    paint.setStyle(Style.STROKE);
-    paint.setStrokeWidth(2.0f);
+  private void ensureFaceResultCapacity(int n) {
+    if (faceEmbeddings.length >= n) {
+      return;
+    }
+    faceTransforms = new Matrix[n];
+    faceEmbeddings = new float[n][detector.getGallery().getDim()];
+    faceNeighbors = new Neighbor[n];
+    for (int i = 0; i < n; i++) {
+      faceTransforms[i] = new Matrix();
+      faceNeighbors[i] = new Neighbor();
+    }
+  }
+
+  // 一张人脸的工作单元：位置、采样变换和自己的裁剪图，在任意工作线程上做裁剪和活体检测
+  private static class PendingFace {
+    final RectF boundingBox;
+    // 显示、跟踪用的人脸框（前置摄像头已翻转）和所属轨迹，没有跟踪时为 -1
+    final RectF displayBox;
+    final int trackId;
+    // 在本帧批量识别中的下标，命中缓存时为 -1
+    final int slot;
+    final FaceResultCache.Entry cached;
+    // 竖屏图中的人脸框、竖屏图 -> 112x112 输入的变换、活体检测用的框
+    final RectF faceBB;
+    final Matrix portraitToInput;
+    final FaceBox faceBox;
+    Bitmap crop;
+    Bitmap faceBmp;
+    float liveConfidence;
+    boolean realFace;
+
+    PendingFace(RectF boundingBox, RectF displayBox, int trackId, FaceResultCache.Entry cached) {
+      this.boundingBox = boundingBox;
+      this.displayBox = displayBox;
+      this.trackId = trackId;
+      this.slot = -1;
+      this.cached = cached;
+      this.faceBB = null;
+      this.portraitToInput = null;
+      this.faceBox = null;
+      this.liveConfidence = cached.getLiveConfidence();
+      this.realFace = cached.isRealFace();
+    }
+
+    PendingFace(RectF boundingBox, RectF displayBox, int trackId, int slot, RectF faceBB, Matrix portraitToInput, FaceBox faceBox) {
+      this.boundingBox = boundingBox;
+      this.displayBox = displayBox;
+      this.trackId = trackId;
+      this.slot = slot;
+      this.cached = null;
+      this.faceBB = faceBB;
+      this.portraitToInput = portraitToInput;
+      this.faceBox = faceBox;
+    }
+  }
+
+  // 把本帧需要计算的人脸分给工作线程，返回的 Future 与人脸顺序一致
+  private List<Future<?>> submitFaces(List<PendingFace> pendingFaces, boolean add, long currImgCounter) {
+    final List<Future<?>> futures = new ArrayList<>(pendingFaces.size());
+    for (PendingFace pending : pendingFaces) {
+      if (pending.cached == null) {
+        futures.add(faceWorkers.submit(() -> processFace(pending, add, currImgCounter)));
+      }
+    }
+    return futures;
+  }
+
+  // 按人脸原来的顺序等待全部完成
+  private void joinFaces(List<Future<?>> futures, long currImgCounter) {
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+      } catch (ExecutionException e) {
+        LOGGER.e(e, "Face work failed on img %d", currImgCounter);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  // 一张人脸的裁剪和活体检测；portraitBmp 在这之前画好，这里只读
+  private void processFace(PendingFace pending, boolean add, long currImgCounter) {
+    final RectF faceBB = pending.faceBB;
+    if (add) {
+      // 录入时还要保存 112x112 的人脸图
+      pending.faceBmp = Bitmap.createBitmap(TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE, Config.ARGB_8888);
+      new Canvas(pending.faceBmp).drawBitmap(portraitBmp, pending.portraitToInput, null);
+      // DetectorActivity: face left: 118, right: 506 top: 188, bottom: 646, width: 388, height: 458, portrait width: 480, portrait height: 640
+      pending.crop = Bitmap.createBitmap(portraitBmp,
+              (int) faceBB.left,
+              (int) faceBB.top,
+              (int) faceBB.width(),
+              (int) faceBB.height());
+    }
+
+    // 活体检测
+    LOGGER.i("Running face live check on face " + currImgCounter);
+    final FaceBox faceBox = pending.faceBox;
+    final EngineWrapper engine;
+    try {
+      engine = freeLiveEngines.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    final DetectionResult liveDetectResult;
+    final long[] cascadeStats;
+    try {
+      liveDetectResult = engine.detect(portraitBmp, faceBox);
+      cascadeStats = LIVENESS_CASCADE ? engine.getCascadeStats() : null;
+    } finally {
+      freeLiveEngines.offer(engine);
+    }
+    liveDetectResult.setThreshold(settingLivebodyThreshold);
+    pending.liveConfidence = liveDetectResult.getConfidence();
+    pending.realFace = liveDetectResult.getConfidence() > liveDetectResult.getThreshold();
+
+    LOGGER.i("Face live check result on img %d: confidence: %.4f, threshold: %.4f, real? %b, width: %d, height: %d, face left: %d, top: %d, right: %d, bottom: %d, data size: %d, time: %dms, models: %s %sms",
+            currImgCounter, liveDetectResult.getConfidence(), liveDetectResult.getThreshold(), pending.realFace, portraitBmp.getWidth(), portraitBmp.getHeight(), faceBox.getLeft(), faceBox.getTop(), faceBox.getRight(), faceBox.getBottom(), portraitBmp.getByteCount(), liveDetectResult.getTime(),
+            Arrays.toString(liveDetectResult.getModelConfidences()), Arrays.toString(liveDetectResult.getModelTimes()));
+    if (cascadeStats != null) {
+      LOGGER.d("Live cascade exits [real, fake, full]: %s", Arrays.toString(cascadeStats));
+    }
+  }
+
+  // 流水线中一帧的全部缓冲区，在帧池里循环使用
+  private static class PipelineFrame {
+    final YuvFrame yuv = new YuvFrame();
+    final int[] argb;
+    final Bitmap rgb;
+    final Bitmap cropped;
+    long index;
+    long startMs;
+    List<Face> faces;
+    boolean add;
+
+    PipelineFrame(int width, int height, int cropW, int cropH) {
+      argb = new int[width * height];
+      rgb = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+      cropped = Bitmap.createBitmap(cropW, cropH, Config.ARGB_8888);
+    }
+  }
+
+  // 交给结果阶段的一帧识别结果
+  private static class FrameResult {
+    final long index;
+    final long startMs;
+    final List<SimilarityClassifier.Recognition> recognitions;
+    // 每个结果对应的轨迹 id，没有跟踪时为 -1
+    final int[] trackIds;
+
+    FrameResult(long index, long startMs, List<SimilarityClassifier.Recognition> recognitions, int[] trackIds) {
+      this.index = index;
+      this.startMs = startMs;
+      this.recognitions = recognitions;
+      this.trackIds = trackIds;
+    }
+  }
+
+  // 特征/活体阶段：活体检测、批量识别，处理完把帧还给帧池，结果交给结果阶段
+  private void onFacesDetected(PipelineFrame frame) {
+    final long currImgCounter = frame.index;
+    final List<Face> faces = frame.faces;
+    final boolean add = frame.add;
+    // 先取人脸库版本再识别：识别期间有人注册/删除时，本帧的结果记在旧版本下，下一帧自然失效
+    final long galleryVersion = detector.getGalleryVersion();
+    final float recognizeThreshold = settingFacerecThreshold;
 
     float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
     switch (MODE) {
@@ -941,8 +1353,8 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     //final List<Classifier.Recognition> results = new ArrayList<>();
 
     // Note this can be done only once
-    int sourceW = rgbFrameBitmap.getWidth();
-    int sourceH = rgbFrameBitmap.getHeight();
+    int sourceW = frame.rgb.getWidth();
+    int sourceH = frame.rgb.getHeight();
     int targetW = portraitBmp.getWidth();
     int targetH = portraitBmp.getHeight();
     Matrix transform = createTransform(
@@ -951,28 +1363,72 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
             targetW,
             targetH,
             sensorOrientation);
-    final Canvas cv = new Canvas(portraitBmp);
-
-    // draws the original image in portrait mode.
-    cv.drawBitmap(rgbFrameBitmap, transform, null);
-
-    final Canvas cvFace = new Canvas(faceBmp);
+    // 竖屏图只在活体检测、录入时才需要，所有人脸都命中缓存的帧不用绘制
+    boolean portraitDrawn = false;
+    final long now = SystemClock.uptimeMillis();
 
     boolean saved = false;
 
+    // 先在本线程算出所有人脸的位置和采样变换，再并行做裁剪、活体检测，最后一次性批量识别
+    final List<PendingFace> pendingFaces = new ArrayList<>(faces.size());
+    ensureFaceResultCapacity(faces.size());
+    int recognizeCount = 0;
+
+    // 先把本帧所有人脸框交给跟踪器关联，每张人脸至多对应一条轨迹，识别结果按轨迹 id 缓存
+    final List<RectF> frameBoxes = new ArrayList<>(faces.size());
+    final List<RectF> displayBoxes = new ArrayList<>(faces.size());
     for (Face face : faces) {
+      // maps crop coordinates to original
+      final RectF frameBox = new RectF(face.getBoundingBox());
+      cropToFrameTransform.mapRect(frameBox);
+      frameBoxes.add(frameBox);
+
+      final RectF displayBox = new RectF(frameBox);
+      if (getCameraFacing() == CameraCharacteristics.LENS_FACING_FRONT) {
+
+        // camera is frontal so the image is flipped horizontally
+        // flips horizontally
+        Matrix flip = new Matrix();
+        if (sensorOrientation == 90 || sensorOrientation == 270) {
+          flip.postScale(1, -1, previewWidth / 2.0f, previewHeight / 2.0f);
+        }
+        else {
+          flip.postScale(-1, 1, previewWidth / 2.0f, previewHeight / 2.0f);
+        }
+        //flip.postScale(1, -1, targetW / 2.0f, targetH / 2.0f);
+        flip.mapRect(displayBox);
+
+      }
+      displayBoxes.add(displayBox);
+    }
+    final int[] trackIds = new int[faces.size()];
+    tracker.trackBoxes(displayBoxes, currImgCounter, trackIds);
+
+    for (int f = 0; f < faces.size(); f++) {
+      final Face face = faces.get(f);
       LOGGER.i("FACE: " + face.toString());
 
       LOGGER.i("Running detection on face " + currImgCounter);
 //      results = detector.recognizeImage(croppedBitmap);
 
-      final RectF boundingBox = new RectF(face.getBoundingBox());
+      final RectF boundingBox = frameBoxes.get(f);
+      final RectF displayBox = displayBoxes.get(f);
+      final int trackId = trackIds[f];
 //      final boolean goodConfidence = result.getConfidence() >= minimumConfidence;
       final boolean goodConfidence = true; //face.get;
       if (boundingBox != null && goodConfidence) {
 
-        // maps crop coordinates to original
-        cropToFrameTransform.mapRect(boundingBox);
+        // 同一个人没怎么动时直接沿用上次的识别、活体结果；录入时总要重新计算特征
+        final FaceResultCache.Entry cached = add ? null : faceCache.lookup(trackId, boundingBox, now, galleryVersion);
+        if (cached != null) {
+          pendingFaces.add(new PendingFace(boundingBox, displayBox, trackId, cached));
+          continue;
+        }
+        if (!portraitDrawn) {
+          // draws the original image in portrait mode.
+          new Canvas(portraitBmp).drawBitmap(frame.rgb, transform, null);
+          portraitDrawn = true;
+        }
 
         // maps original coordinates to portrait coordinates
         RectF faceBB = new RectF(boundingBox);
@@ -986,16 +1442,13 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         matrix.postTranslate(-faceBB.left, -faceBB.top);
         matrix.postScale(sx, sy);
 
-        cvFace.drawBitmap(portraitBmp, matrix, null);
+        // 模型输入像素 -> 相机帧像素：先求 帧->竖屏->人脸输入 的变换，再取逆
+        final Matrix frameToInput = new Matrix(transform);
+        frameToInput.postConcat(matrix);
+        frameToInput.invert(faceTransforms[recognizeCount]);
 
         //canvas.drawRect(faceBB, paint);
 
-        String label = "";
-        float confidence = -1f;
-        Integer color = Color.BLUE;
-        Object extra = null;
-        Bitmap crop = null;
-
         if (add) {
 //          if (face.getSmilingProbability() == null) {
 //            Toast.makeText(this, "笑一下呗", Toast.LENGTH_SHORT ).show();
@@ -1005,18 +1458,9 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
           if (faceBB.left + faceBB.width() > portraitBmp.getWidth()) {
             Toast.makeText(this, "脸部在屏幕边缘", Toast.LENGTH_SHORT ).show();
             continue;
-          } else {
-            // DetectorActivity: face left: 118, right: 506 top: 188, bottom: 646, width: 388, height: 458, portrait width: 480, portrait height: 640
-            crop = Bitmap.createBitmap(portraitBmp,
-                    (int) faceBB.left,
-                    (int) faceBB.top,
-                    (int) faceBB.width(),
-                    (int) faceBB.height());
           }
         }
 
-        // 活体检测
-        LOGGER.i("Running face live check on face " + currImgCounter);
         /**
          *    1       2       3       4        5          6          7            8
          * <p>
@@ -1034,174 +1478,108 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         FaceBox faceBox = new FaceBox((int)(portraitBmp.getWidth()-faceBB.right), (int) faceBB.top, (int) (portraitBmp.getWidth()-faceBB.left), (int) faceBB.bottom, 0F);
 //        FaceBox faceBox = NewFaceBoxFrom(faceBB);
 
-        DetectionResult liveDetectResult = liveFaceEngine.detect(getYUVByBitmap(portraitBmp), portraitBmp.getWidth(), portraitBmp.getHeight(), 1, faceBox);
-        liveDetectResult.setThreshold(settingLivebodyThreshold);
-        boolean realFace =  liveDetectResult.getConfidence() > liveDetectResult.getThreshold();
-
-        LOGGER.i("Face live check result on img %d: confidence: %.4f, threshold: %.4f, real? %b, width: %d, height: %d, face left: %d, top: %d, right: %d, bottom: %d, data size: %d, time: %dms",
-                currImgCounter, liveDetectResult.getConfidence(), liveDetectResult.getThreshold(), realFace, portraitBmp.getWidth(), portraitBmp.getHeight(), faceBox.getLeft(), faceBox.getTop(), faceBox.getRight(), faceBox.getBottom(), portraitBmp.getByteCount(), liveDetectResult.getTime());
+        pendingFaces.add(new PendingFace(boundingBox, displayBox, trackId, recognizeCount++, faceBB, matrix, faceBox));
+      }
+    }
 
-        // 人脸识别
-        final long startTime = SystemClock.uptimeMillis();
-        final List<SimilarityClassifier.Recognition> resultsAux = detector.recognizeImage(faceBmp, add);
-        lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+    // 裁剪、活体检测在工作线程上进行，同时本线程做批量识别；识别模型只在本线程使用
+    final List<Future<?>> faceWork = submitFaces(pendingFaces, add, currImgCounter);
 
-        if (resultsAux.size() > 0) {
+    // 人脸识别
+    final long startTime = SystemClock.uptimeMillis();
+    if (recognizeCount > 0) {
+      detector.recognizeFrame(frame.yuv, faceTransforms, recognizeCount, faceEmbeddings, faceNeighbors);
+    }
+    lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
 
-          SimilarityClassifier.Recognition result = resultsAux.get(0);
+    joinFaces(faceWork, currImgCounter);
+    if (add && !pendingFaces.isEmpty()) {
+      // 录入框对应第一张人脸
+      faceBmp = pendingFaces.get(0).faceBmp;
+    }
 
-          extra = result.getExtra();
-//          Object extra = result.getExtra();
-//          if (extra != null) {
-//            LOGGER.i("embeeding retrieved " + extra.toString());
-//          }
+    final int[] resultTrackIds = new int[pendingFaces.size()];
+    for (int i = 0; i < pendingFaces.size(); i++) {
+      final PendingFace pending = pendingFaces.get(i);
+      final RectF boundingBox = pending.boundingBox;
+      final boolean realFace = pending.realFace;
+      String label = "";
+      float confidence = -1f;
+      Integer color = Color.BLUE;
+      Object extra = null;
+
+      final String nearestLabel;
+      final float conf;
+      if (pending.cached != null) {
+        nearestLabel = pending.cached.getLabel();
+        conf = pending.cached.getDistance();
+      } else {
+        final Neighbor nearest = faceNeighbors[pending.slot];
+        nearestLabel = nearest.getRow() >= 0 ? nearest.getLabel() : null;
+        conf = nearest.getDistance();
+        if (add) {
+          // 特征数组逐帧复用，录入时要拷贝一份
+          extra = new float[][]{faceEmbeddings[pending.slot].clone()};
+        } else {
+          faceCache.put(pending.trackId, boundingBox, nearestLabel, conf, pending.liveConfidence, realFace, now, galleryVersion);
+        }
+      }
 
-          float conf = result.getDistance();
-          if (conf < settingFacerecThreshold) {
-            confidence = conf;
-            label = result.getTitle();
-            if (result.getId().equals("0")) {
-              color = Color.GREEN;
-              // lastRecognizedLabel 用来防止同一个人一直开关
-              // 人脸移出屏幕、或者换一个人时，才会再开一次
+      if (conf < recognizeThreshold) {
+        confidence = conf;
+        label = nearestLabel == null ? "" : nearestLabel;
+        if (nearestLabel != null) {
+          color = Color.GREEN;
+          // lastRecognizedLabel 用来防止同一个人一直开关
+          // 人脸移出屏幕、或者换一个人时，才会再开一次
 
 //              if (realFace && lastRecognizedLabel != label) {
 //                lastRecognizedLabel = label;
 //                Log.i(TAG, label + " 识别成功，开门中...");
 //                blinkBluetoothSwitchAsync();
 //              }
-              if (realFace) {
-                Log.i(TAG, label + " 识别成功，开门中...");
-                blinkBluetoothSwitchAsync();
-              }
-            } else {
-              color = Color.RED;
-            }
-          }
-          if (!realFace) {
-            color = Color.BLACK;
-            confidence = liveDetectResult.getConfidence();
-            if (label.isEmpty()) {
-              label = "假脸！";
-            } else {
-              label += "，假脸！";
-            }
+          if (realFace) {
+            Log.i(TAG, label + " 识别成功，开门中...");
+            blinkBluetoothSwitchAsync();
           }
+        } else {
+          color = Color.RED;
         }
-
-        if (getCameraFacing() == CameraCharacteristics.LENS_FACING_FRONT) {
-
-          // camera is frontal so the image is flipped horizontally
-          // flips horizontally
-          Matrix flip = new Matrix();
-          if (sensorOrientation == 90 || sensorOrientation == 270) {
-            flip.postScale(1, -1, previewWidth / 2.0f, previewHeight / 2.0f);
-          }
-          else {
-            flip.postScale(-1, 1, previewWidth / 2.0f, previewHeight / 2.0f);
-          }
-          //flip.postScale(1, -1, targetW / 2.0f, targetH / 2.0f);
-          flip.mapRect(boundingBox);
-
+      }
+      if (!realFace) {
+        color = Color.BLACK;
+        confidence = pending.liveConfidence;
+        if (label.isEmpty()) {
+          label = "假脸！";
+        } else {
+          label += "，假脸！";
         }
-
-        final SimilarityClassifier.Recognition result = new SimilarityClassifier.Recognition(
-                "0", label, confidence, boundingBox);
-
-        result.setColor(color);
-        result.setLocation(boundingBox);
-        result.setExtra(extra);
-        result.setCrop(crop);
-        mappedRecognitions.add(result);
-
       }
 
+      final SimilarityClassifier.Recognition result = new SimilarityClassifier.Recognition(
+              "0", label, confidence, pending.displayBox);
 
+      result.setColor(color);
+      result.setLocation(pending.displayBox);
+      result.setExtra(extra);
+      result.setCrop(pending.crop);
+      mappedRecognitions.add(result);
+      resultTrackIds[i] = pending.trackId;
+    }
+    faceCache.endFrame();
+    LOGGER.d(faceCache.getStatString());
+    if (detector.getGallery() instanceof FaceGallery) {
+      LOGGER.d(((FaceGallery) detector.getGallery()).getScanStatString());
     }
 
     //    if (saved) {
 //      lastSaved = System.currentTimeMillis();
 //    }
 
-    updateResults(currImgCounter, mappedRecognitions);
-
-
-  }
-  /*
-   * 获取位图的YUV数据
-   */
-  public static byte[] getYUVByBitmap(Bitmap bitmap) {
-    if (bitmap == null) {
-      return null;
-    }
-    int width = bitmap.getWidth();
-    int height = bitmap.getHeight();
-
-    int size = width * height;
+    final FrameResult result = new FrameResult(currImgCounter, frame.startMs, mappedRecognitions, resultTrackIds);
+    releaseFrame(frame);
+    renderStage.offer(result);
 
-    int pixels[] = new int[size];
-    bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
 
-    // byte[] data = convertColorToByte(pixels);
-    byte[] data = rgb2YCbCr420(pixels, width, height);
-
-    return data;
-  }
-
-  public static byte[] rgb2YCbCr420(int[] pixels, int width, int height) {
-    int len = width * height;
-    // yuv格式数组大小，y亮度占len长度，u,v各占len/4长度。
-    byte[] yuv = new byte[len * 3 / 2];
-    int y, u, v;
-    for (int i = 0; i < height; i++) {
-      for (int j = 0; j < width; j++) {
-        // 屏蔽ARGB的透明度值
-        int rgb = pixels[i * width + j] & 0x00FFFFFF;
-        // 像素的颜色顺序为bgr，移位运算。
-        int r = rgb & 0xFF;
-        int g = (rgb >> 8) & 0xFF;
-        int b = (rgb >> 16) & 0xFF;
-        // 套用公式
-        y = ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
-        u = ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
-        v = ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
-        // rgb2yuv
-        // y = (int) (0.299 * r + 0.587 * g + 0.114 * b);
-        // u = (int) (-0.147 * r - 0.289 * g + 0.437 * b);
-        // v = (int) (0.615 * r - 0.515 * g - 0.1 * b);
-        // RGB转换YCbCr
-        // y = (int) (0.299 * r + 0.587 * g + 0.114 * b);
-        // u = (int) (-0.1687 * r - 0.3313 * g + 0.5 * b + 128);
-        // if (u > 255)
-        // u = 255;
-        // v = (int) (0.5 * r - 0.4187 * g - 0.0813 * b + 128);
-        // if (v > 255)
-        // v = 255;
-        // 调整
-        y = y < 16 ? 16 : (y > 255 ? 255 : y);
-        u = u < 0 ? 0 : (u > 255 ? 255 : u);
-        v = v < 0 ? 0 : (v > 255 ? 255 : v);
-        // 赋值
-        yuv[i * width + j] = (byte) y;
-        yuv[len + (i >> 1) * width + (j & ~1) + 0] = (byte) u;
-        yuv[len + +(i >> 1) * width + (j & ~1) + 1] = (byte) v;
-      }
-    }
-    return yuv;
-  }
-
-
-  //过滤所有以 .png 结尾的文件
-  class PngFilter implements FilenameFilter {
-    public boolean accept(File dir, String name) {
-      return (name.endsWith(".png"));
-    }
-  }
-
-  //过滤所有目录
-  class DirectoryFilter implements FileFilter {
-    public boolean accept(File f) {
-      return f.isDirectory();
-    }
   }
 }
@@ -1,9 +1,11 @@
 package org.tensorflow.lite.examples.detection
 
 import android.content.res.AssetManager
+import android.graphics.Bitmap
 import org.tensorflow.lite.examples.engine.FaceBox
 import org.tensorflow.lite.examples.engine.FaceDetector
 import org.tensorflow.lite.examples.engine.Live
+import java.nio.ByteBuffer
 
 
 class EngineWrapper(private var assetManager: AssetManager) {
@@ -13,6 +15,29 @@ class EngineWrapper(private var assetManager: AssetManager) {
         return live.loadModel(assetManager) == 0
     }
 
+    /**
+     * 两个活体模型并发推理
+     */
+    fun setConcurrent(concurrent: Boolean) {
+        live.setConcurrent(concurrent)
+    }
+
+    /**
+     * 级联模式：第一个模型的置信度不在 threshold ± band 内时跳过其余模型
+     */
+    fun setCascade(cascade: Boolean, threshold: Float, band: Float) {
+        live.setCascade(cascade, threshold, band)
+    }
+
+    /**
+     * 级联各出口累计次数：[提前判真, 提前判假, 完整集成]
+     */
+    fun getCascadeStats(): LongArray {
+        val stats = LongArray(3)
+        live.getCascadeStats(stats)
+        return stats
+    }
+
     fun destroy() {
         live.destroy()
     }
@@ -22,7 +47,28 @@ class EngineWrapper(private var assetManager: AssetManager) {
         val begin = System.currentTimeMillis()
         box.confidence = detectLive(yuv, width, height, orientation, box)
         val end = System.currentTimeMillis()
-        return DetectionResult(box, end - begin, true)
+        return withModelStats(DetectionResult(box, end - begin, true))
+    }
+
+    fun detect(yuv: ByteBuffer, width: Int, height: Int, orientation: Int, box: FaceBox): DetectionResult {
+        val begin = System.currentTimeMillis()
+        box.confidence = live.detect(yuv, width, height, orientation, box)
+        val end = System.currentTimeMillis()
+        return withModelStats(DetectionResult(box, end - begin, true))
+    }
+
+    fun detect(bitmap: Bitmap, box: FaceBox): DetectionResult {
+        val begin = System.currentTimeMillis()
+        box.confidence = live.detect(bitmap, box)
+        val end = System.currentTimeMillis()
+        return withModelStats(DetectionResult(box, end - begin, true))
+    }
+
+    private fun withModelStats(result: DetectionResult): DetectionResult {
+        result.modelConfidences = FloatArray(live.modelCount)
+        result.modelTimes = FloatArray(live.modelCount)
+        live.getModelStats(result.modelConfidences, result.modelTimes)
+        return result
     }
 
     private fun detectLive(
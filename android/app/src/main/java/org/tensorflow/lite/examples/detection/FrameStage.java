@@ -0,0 +1,114 @@
+package org.tensorflow.lite.examples.detection;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One stage of the camera frame pipeline, running on a thread of its own.
+ *
+ * <p>The hand-off into a stage holds a single frame. Offering a frame while the previous one is
+ * still waiting replaces it, so a slow stage always continues with the newest frame instead of
+ * working through a backlog; the replaced frame is passed to the {@link DropListener} so its buffers
+ * can be reused. Because each stage has its own thread, consecutive stages work on different frames
+ * at the same time.
+ */
+public class FrameStage<T> {
+  public interface Worker<T> {
+    /** Called on the stage thread for each frame that was not replaced while waiting. */
+    void process(T frame);
+  }
+
+  public interface DropListener<T> {
+    /** Called with a frame that was replaced before the stage got to it. */
+    void onDropped(T frame);
+  }
+
+  // weight of the newest sample in the moving average
+  private static final float SMOOTHING = 0.2f;
+
+  private final String name;
+  private final Worker<T> worker;
+  private final DropListener<T> dropListener;
+  private final HandlerThread thread;
+  private final Handler handler;
+  private final AtomicReference<T> pending = new AtomicReference<>();
+  private final Runnable drain =
+      new Runnable() {
+        @Override
+        public void run() {
+          final T frame = pending.getAndSet(null);
+          if (frame != null) {
+            final long start = SystemClock.uptimeMillis();
+            worker.process(frame);
+            onProcessed(SystemClock.uptimeMillis() - start);
+          }
+        }
+      };
+
+  private long processed;
+  private long dropped;
+  private float averageMs;
+
+  public FrameStage(
+      final String name, final Worker<T> worker, final DropListener<T> dropListener) {
+    this.name = name;
+    this.worker = worker;
+    this.dropListener = dropListener;
+    thread = new HandlerThread(name);
+    thread.start();
+    handler = new Handler(thread.getLooper());
+  }
+
+  /** Hands {@code frame} to the stage, replacing a frame that is still waiting. */
+  public void offer(final T frame) {
+    final T replaced = pending.getAndSet(frame);
+    if (replaced == null) {
+      // every empty -> full transition schedules exactly one drain
+      handler.post(drain);
+    } else {
+      synchronized (this) {
+        dropped++;
+      }
+      dropListener.onDropped(replaced);
+    }
+  }
+
+  /** Runs {@code r} on the stage thread, between frames. */
+  public void post(final Runnable r) {
+    handler.post(r);
+  }
+
+  /** Stops the thread after the work already queued; a frame still waiting is dropped. */
+  public void quit() {
+    thread.quitSafely();
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    final T frame = pending.getAndSet(null);
+    if (frame != null) {
+      dropListener.onDropped(frame);
+    }
+  }
+
+  /** Moving average of the time spent on one frame. */
+  public synchronized float getAverageMs() {
+    return averageMs;
+  }
+
+  public synchronized String getStatString() {
+    return String.format(
+        Locale.US, "%s: %.1fms/frame, %d processed, %d dropped",
+        name, averageMs, processed, dropped);
+  }
+
+  private synchronized void onProcessed(final long elapsedMs) {
+    processed++;
+    averageMs = averageMs == 0 ? elapsedMs : averageMs + SMOOTHING * (elapsedMs - averageMs);
+  }
+}
@@ -0,0 +1,412 @@
+package org.tensorflow.lite.examples.detection;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.tensorflow.lite.examples.detection.env.ImageUtils;
+import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.tflite.EmbeddingGallery;
+import org.tensorflow.lite.examples.detection.tflite.FaceGallery;
+import org.tensorflow.lite.examples.detection.tflite.GalleryFile;
+import org.tensorflow.lite.examples.detection.tflite.Int8Gallery;
+import org.tensorflow.lite.examples.detection.tflite.IvfPqGallery;
+import org.tensorflow.lite.examples.detection.tflite.SimilarityClassifier;
+
+/**
+ * Loads the enrolled faces under {@code mp-face-imgs} into the classifier at start-up.
+ *
+ * <p>Loading waits for {@link #onDetectorReady} instead of sleeping, reads the binary gallery file
+ * when there is one, and otherwise fans the per-identity directories out over a bounded pool. A
+ * cached {@code .embeddings} file is used as is; the PNG is only decoded when the embedding has to
+ * be generated. Progress and completion are published through {@link Listener}.
+ *
+ * <p>A compressed gallery ({@link Storage}) is saved with its codebooks to a file of its own and
+ * loaded from it directly, so it is only trained once. Until then the float gallery is loaded and
+ * the caller compresses it; saving the compressed gallery then replaces the float file.
+ */
+public class GalleryLoader {
+  private static final Logger LOGGER = new Logger();
+
+  public static final String FACE_EMBEDDING_SUFFIX = ".embeddings";
+
+  public interface Listener {
+    /** Called on a loader thread after each identity has been registered. */
+    void onProgress(int doneIdentities, int totalIdentities);
+
+    /** Called on a loader thread once every identity has been registered. */
+    void onGalleryReady(int identities, int samples, long elapsedMs);
+  }
+
+  /** Which gallery the caller keeps in memory, and so which file is loaded and saved. */
+  public enum Storage {
+    FLOAT(GalleryFile.FILENAME),
+    IVF_PQ(GalleryFile.IVF_PQ_FILENAME),
+    INT8(GalleryFile.INT8_FILENAME);
+
+    final String filename;
+
+    Storage(final String filename) {
+      this.filename = filename;
+    }
+  }
+
+  private final File root;
+  private final int inputSize;
+  private final int maxImgPerUser;
+  private final Storage storage;
+  private final int numThreads;
+  private final Listener listener;
+
+  private final CountDownLatch detectorReady = new CountDownLatch(1);
+  private volatile SimilarityClassifier detector;
+  private final AtomicInteger doneIdentities = new AtomicInteger();
+  // 加载线程和注册/删除后的保存可能同时发生，保存逐个进行，文件总是对应最后一次保存时的人脸库
+  private final Object saveLock = new Object();
+  private volatile int totalIdentities;
+  private volatile boolean ready;
+  // 扫描时有人加载失败或被中断，内存中的人脸库不完整，不能存盘，否则之后启动只加载这部分、不再扫描
+  private volatile boolean incomplete;
+
+  public GalleryLoader(
+          final File root,
+          final int inputSize,
+          final int maxImgPerUser,
+          final Storage storage,
+          final Listener listener) {
+    this.root = root;
+    this.inputSize = inputSize;
+    this.maxImgPerUser = maxImgPerUser;
+    this.storage = storage;
+    this.numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    this.listener = listener;
+  }
+
+  /** Unblocks loading; call once the classifier has been created. */
+  public void onDetectorReady(final SimilarityClassifier detector) {
+    this.detector = detector;
+    detectorReady.countDown();
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  /** Loaded fraction of identities, 0..1. */
+  public float getProgress() {
+    final int total = totalIdentities;
+    if (ready) {
+      return 1f;
+    }
+    return total == 0 ? 0f : doneIdentities.get() / (float) total;
+  }
+
+  /** Starts loading on a background thread. */
+  public void start() {
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          detectorReady.await();
+        } catch (InterruptedException e) {
+          LOGGER.w("Interrupted while waiting for the detector");
+          return;
+        }
+        final long start = SystemClock.uptimeMillis();
+        final int[] counts = load();
+        ready = true;
+        listener.onGalleryReady(counts[0], counts[1], SystemClock.uptimeMillis() - start);
+      }
+    }, "gallery-loader");
+    thread.setPriority(Thread.NORM_PRIORITY - 1);
+    thread.start();
+  }
+
+  /**
+   * Writes the current gallery to the file of its kind. The files of the other kinds no longer
+   * match the enrolled faces and are deleted; the next start with another {@link Storage} migrates
+   * from the .embeddings files again. Nothing is written when the scan at start-up missed some
+   * identities, so the next start scans again instead of loading the partial gallery.
+   */
+  public void save() {
+    final SimilarityClassifier detector = this.detector;
+    if (detector == null) {
+      return;
+    }
+    if (incomplete) {
+      LOGGER.w("Gallery scan was incomplete, not saving it");
+      return;
+    }
+    synchronized (saveLock) {
+      save(detector.getGallery());
+    }
+  }
+
+  private void save(final EmbeddingGallery gallery) {
+    final Storage saved;
+    final File file;
+    try {
+      if (gallery instanceof FaceGallery) {
+        saved = Storage.FLOAT;
+        file = new File(root, saved.filename);
+        GalleryFile.save((FaceGallery) gallery, file);
+      } else if (gallery instanceof IvfPqGallery) {
+        saved = Storage.IVF_PQ;
+        file = new File(root, saved.filename);
+        GalleryFile.save((IvfPqGallery) gallery, file);
+      } else if (gallery instanceof Int8Gallery) {
+        saved = Storage.INT8;
+        file = new File(root, saved.filename);
+        GalleryFile.save((Int8Gallery) gallery, file);
+      } else {
+        LOGGER.w("Don't know how to save %s", gallery.getClass().getSimpleName());
+        return;
+      }
+    } catch (IOException e) {
+      LOGGER.e(e, "Failed to save gallery file");
+      return;
+    }
+    LOGGER.i("Saved %d embeddings to %s", gallery.size(), file.getAbsolutePath());
+    for (final Storage other : Storage.values()) {
+      final File stale = new File(root, other.filename);
+      if (other != saved && stale.exists() && !stale.delete()) {
+        LOGGER.w("Failed to delete stale gallery file %s", stale);
+      }
+    }
+  }
+
+  private int[] load() {
+    if (!root.exists()) {
+      LOGGER.i("directory not found, skip scan");
+      return new int[]{0, 0};
+    }
+
+    // 压缩库直接加载保存的码本和编码，不用重新训练
+    if (storage != Storage.FLOAT) {
+      final int[] counts = loadCompressed();
+      if (counts != null) {
+        return counts;
+      }
+    }
+
+    // 优先从二进制人脸库加载，不存在时扫描 .embeddings 目录，并一次性迁移为二进制库
+    final File galleryFile = new File(root, GalleryFile.FILENAME);
+    if (galleryFile.exists() && detector.getGallery() instanceof FaceGallery) {
+      final int[] rows = {-1};
+      detector.updateGallery(gallery -> {
+        try {
+          rows[0] = GalleryFile.load(galleryFile, (FaceGallery) gallery);
+        } catch (IOException e) {
+          LOGGER.e(e, "Failed to load gallery file, rescanning %s", root);
+          gallery.clear();
+        }
+      });
+      if (rows[0] >= 0) {
+        LOGGER.i("Loaded %d embeddings from %s", rows[0], galleryFile.getAbsolutePath());
+        totalIdentities = detector.getGallery().labelCount();
+        doneIdentities.set(totalIdentities);
+        return new int[]{totalIdentities, rows[0]};
+      }
+    }
+
+    // 扫描不完整时 save 不写文件，下次启动重新扫描
+    final int[] counts = scan();
+    save();
+    return counts;
+  }
+
+  // 读取 storage 对应的压缩库并替换 detector 的人脸库，文件不存在或不可用时返回 null
+  private int[] loadCompressed() {
+    final File file = new File(root, storage.filename);
+    if (!file.exists()) {
+      return null;
+    }
+    final EmbeddingGallery current = detector.getGallery();
+    final EmbeddingGallery gallery;
+    try {
+      gallery = storage == Storage.IVF_PQ
+              ? GalleryFile.loadIvfPq(file, current.getDim(), current.getMetric())
+              : GalleryFile.loadInt8(file, current.getDim(), current.getMetric());
+    } catch (IOException e) {
+      LOGGER.e(e, "Failed to load %s, falling back to the float gallery", file);
+      return null;
+    }
+    detector.setGallery(gallery);
+    LOGGER.i("Loaded %d embeddings from %s", gallery.size(), file.getAbsolutePath());
+    totalIdentities = gallery.labelCount();
+    doneIdentities.set(totalIdentities);
+    return new int[]{totalIdentities, gallery.size()};
+  }
+
+  private int[] scan() {
+    final File[] subdirs = root.listFiles(new DirectoryFilter());
+    if (subdirs == null || subdirs.length == 0) {
+      return new int[]{0, 0};
+    }
+    totalIdentities = subdirs.length;
+
+    final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    final CompletionService<Identity> completion = new ExecutorCompletionService<>(executor);
+    for (final File subdir : subdirs) {
+      completion.submit(new Callable<Identity>() {
+        @Override
+        public Identity call() {
+          return loadIdentity(subdir);
+        }
+      });
+    }
+
+    // 各线程只读文件、算特征，注册统一在这里进行；已经算完的人一次发布，人脸库只复制一次
+    // 某个人加载失败时跳过他继续加载其他人
+    int identities = 0;
+    int samples = 0;
+    try {
+      for (int done = 0; done < subdirs.length; ) {
+        final List<Identity> batch = new ArrayList<>();
+        int taken = 1;
+        addLoaded(batch, completion.take());
+        Future<Identity> ready;
+        while (done + taken < subdirs.length && (ready = completion.poll()) != null) {
+          addLoaded(batch, ready);
+          taken++;
+        }
+        detector.updateGallery(gallery -> {
+          for (final Identity identity : batch) {
+            for (final float[][] embeddings : identity.embeddings) {
+              gallery.add(identity.label, embeddings[0]);
+            }
+          }
+        });
+        for (final Identity identity : batch) {
+          if (!identity.embeddings.isEmpty()) {
+            identities++;
+            samples += identity.embeddings.size();
+          }
+        }
+        for (int i = 0; i < taken; i++) {
+          listener.onProgress(doneIdentities.incrementAndGet(), subdirs.length);
+        }
+        done += taken;
+      }
+    } catch (InterruptedException e) {
+      LOGGER.w("Interrupted while loading gallery");
+      incomplete = true;
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+    return new int[]{identities, samples};
+  }
+
+  // 取出一个人的加载结果；失败时记录并跳过，人脸库标记为不完整
+  private void addLoaded(final List<Identity> batch, final Future<Identity> future)
+          throws InterruptedException {
+    try {
+      batch.add(future.get());
+    } catch (ExecutionException e) {
+      LOGGER.e(e.getCause(), "Failed to load an identity, skipping it");
+      incomplete = true;
+    }
+  }
+
+  private Identity loadIdentity(final File subdir) {
+    final Identity identity = new Identity(subdir.getName());
+    final File[] files = subdir.listFiles(new PngFilter());
+    if (files == null) {
+      return identity;
+    }
+    // 文件名为时间戳，取最新的几张
+    Arrays.sort(files, Collections.<File>reverseOrder());
+    LOGGER.d("Found %d bitmaps in: %s", files.length, subdir.getAbsolutePath());
+    for (int i = 0; i < files.length && identity.embeddings.size() < maxImgPerUser; i++) {
+      final float[][] embeddings = loadEmbeddings(subdir, files[i]);
+      if (embeddings != null) {
+        identity.embeddings.add(embeddings);
+      }
+    }
+    return identity;
+  }
+
+  private float[][] loadEmbeddings(final File subdir, final File png) {
+    final File embeddingsFile = new File(png.getAbsolutePath() + FACE_EMBEDDING_SUFFIX);
+    if (embeddingsFile.exists()) {
+      final float[][] embeddings = parseEmbeddingsFile(embeddingsFile);
+      if (embeddings != null) {
+        return embeddings;
+      }
+    }
+
+    // 没有缓存的特征才需要解码图片
+    final Bitmap img = BitmapFactory.decodeFile(png.getAbsolutePath());
+    if (img == null || img.getWidth() != inputSize || img.getHeight() != inputSize) {
+      return null;
+    }
+    // 识别模型内部有 Interpreter 池，可以和相机线程并发调用
+    final float[][] embeddings = detector.generateEmbeddings(img);
+    img.recycle();
+    ImageUtils.saveEmbeddingAsFile(embeddings, subdir.getName(), png.getName() + FACE_EMBEDDING_SUFFIX);
+    return embeddings;
+  }
+
+  private static float[][] parseEmbeddingsFile(final File f) {
+    try {
+      final Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f)));
+      try {
+        return new Gson().fromJson(reader, float[][].class);
+      } finally {
+        reader.close();
+      }
+    } catch (IOException | JsonParseException e) {
+      LOGGER.e(e, "Failed to parse embeddings: %s", f.getAbsolutePath());
+    }
+    return null;
+  }
+
+  private static class Identity {
+    final String label;
+    final List<float[][]> embeddings = new ArrayList<>();
+
+    Identity(final String label) {
+      this.label = label;
+    }
+  }
+
+  //过滤所有以 .png 结尾的文件
+  private static class PngFilter implements FilenameFilter {
+    public boolean accept(File dir, String name) {
+      return (name.endsWith(".png"));
+    }
+  }
+
+  //过滤所有目录
+  private static class DirectoryFilter implements FileFilter {
+    public boolean accept(File f) {
+      return f.isDirectory();
+    }
+  }
+}
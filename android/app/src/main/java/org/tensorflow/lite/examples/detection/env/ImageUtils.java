@@ -20,6 +20,7 @@ import android.graphics.Matrix;
 import android.os.Environment;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
 import com.google.gson.Gson;
@@ -27,6 +28,8 @@ import com.google.gson.Gson;
 /** Utility class for manipulating images. */
 public class ImageUtils {
   public static final int MAX_IMG_PER_USER = 5;
+  // 压缩人脸库（IVF-PQ）每张只占几十字节，可以多存一些角度
+  public static final int MAX_IMG_PER_USER_COMPRESSED = 20;
   public static final String APP_DATA_DIR = "mp-face-imgs";
 
   // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
@@ -86,6 +89,59 @@ public class ImageUtils {
     }
   }
 
+  /**
+   * Whether {@code label} can name a directory directly under {@link #APP_DATA_DIR}: not empty,
+   * not "." or "..", and without path separators.
+   */
+  public static boolean isValidLabel(final String label) {
+    return label != null
+        && !label.isEmpty()
+        && !label.equals(".")
+        && !label.equals("..")
+        && label.indexOf('/') < 0
+        && label.indexOf('\\') < 0;
+  }
+
+  /**
+   * Deletes the images and embeddings saved for one label. Labels that are not {@link
+   * #isValidLabel valid} or don't resolve to a directory directly under {@link #APP_DATA_DIR}
+   * delete nothing.
+   *
+   * @return the number of files deleted.
+   */
+  public static int deleteUserFiles(final String subdir) {
+    if (!isValidLabel(subdir)) {
+      LOGGER.w("Refusing to delete files of label: %s", subdir);
+      return 0;
+    }
+    final File root = new File(Environment.getExternalStorageDirectory(), APP_DATA_DIR);
+    final File dir;
+    try {
+      dir = new File(root, subdir).getCanonicalFile();
+      if (!root.getCanonicalFile().equals(dir.getParentFile())) {
+        LOGGER.w("Refusing to delete dir outside %s: %s", root.getAbsolutePath(), dir);
+        return 0;
+      }
+    } catch (final IOException e) {
+      LOGGER.e(e, "Failed to resolve dir of label: %s", subdir);
+      return 0;
+    }
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      return 0;
+    }
+    int deleted = 0;
+    for (final File file : files) {
+      if (file.isFile() && file.delete()) {
+        deleted++;
+      }
+    }
+    if (!dir.delete()) {
+      LOGGER.w("Failed to delete dir: %s", dir.getAbsolutePath());
+    }
+    return deleted;
+  }
+
   /**
    * Saves a Bitmap object to disk for analysis.
    *
@@ -142,7 +198,7 @@ public class ImageUtils {
     }
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
+  public static int YUV2RGB(int y, int u, int v) {
     // Adjust and check YUV values
     y = (y - 16) < 0 ? 0 : (y - 16);
     u -= 128;
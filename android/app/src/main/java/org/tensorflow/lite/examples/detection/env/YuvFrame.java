@@ -0,0 +1,89 @@
+package org.tensorflow.lite.examples.detection.env;
+
+/**
+ * Private copy of one camera frame in YUV 4:2:0, either NV21 (android.hardware.Camera) or three
+ * strided planes (Camera2), so pixels can still be sampled after the camera buffer is released.
+ * Arrays are reused across frames.
+ */
+public class YuvFrame {
+  private int width;
+  private int height;
+  private byte[] y = new byte[0];
+  private byte[] u = new byte[0];
+  private byte[] v = new byte[0];
+  private int uOffset;
+  private int vOffset;
+  private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
+
+  /** Copies an NV21 frame: Y plane followed by interleaved V/U. */
+  public void setNv21(final byte[] data, final int width, final int height) {
+    final int size = ImageUtils.getYUVByteSize(width, height);
+    y = copy(data, size, y);
+    u = y;
+    v = y;
+    vOffset = width * height;
+    uOffset = vOffset + 1;
+    yRowStride = width;
+    uvRowStride = width;
+    uvPixelStride = 2;
+    this.width = width;
+    this.height = height;
+  }
+
+  /** Copies the three planes of a YUV_420_888 image. */
+  public void setPlanes(
+      final byte[] yData, final byte[] uData, final byte[] vData, final int width,
+      final int height, final int yRowStride, final int uvRowStride, final int uvPixelStride) {
+    if (u == y) {
+      // previously NV21, stop sharing the Y array
+      u = new byte[0];
+      v = new byte[0];
+    }
+    y = copy(yData, yData.length, y);
+    u = copy(uData, uData.length, u);
+    v = copy(vData, vData.length, v);
+    uOffset = 0;
+    vOffset = 0;
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+    this.width = width;
+    this.height = height;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** ARGB of frame pixel (x, y), opaque black outside the frame. */
+  public int argbAt(final int x, final int y) {
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      return 0xff000000;
+    }
+    final int uv = (y >> 1) * uvRowStride + (x >> 1) * uvPixelStride;
+    return ImageUtils.YUV2RGB(
+        0xff & this.y[y * yRowStride + x], 0xff & u[uOffset + uv], 0xff & v[vOffset + uv]);
+  }
+
+  /** Converts the whole frame to ARGB; {@code out} holds at least width * height pixels. */
+  public void toArgb(final int[] out) {
+    if (u == y) {
+      ImageUtils.convertYUV420SPToARGB8888(y, width, height, out);
+    } else {
+      ImageUtils.convertYUV420ToARGB8888(
+          y, u, v, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+    }
+  }
+
+  private static byte[] copy(final byte[] src, final int length, final byte[] dst) {
+    final byte[] out = dst.length >= length ? dst : new byte[length];
+    System.arraycopy(src, 0, out, 0, length);
+    return out;
+  }
+}
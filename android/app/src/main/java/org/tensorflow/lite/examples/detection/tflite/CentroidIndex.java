@@ -0,0 +1,241 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+
+/**
+ * Two-stage matcher over the rows of a {@link FaceGallery}: one centroid per identity, then the
+ * samples of the best identities only.
+ *
+ * <p>Stage one scores the query against the centroid of every identity and keeps the {@code
+ * candidates} nearest ones. Stage two re-ranks the individual samples of those identities exactly,
+ * so a query reads one vector per identity plus the samples of a few, instead of every sample.
+ * Centroids are the mean of an identity's samples, or its normalized mean under {@link
+ * Metric#COSINE}, and are updated incrementally as rows are added and removed.
+ *
+ * <p>The result is exact unless the nearest sample belongs to an identity whose centroid is not
+ * among the candidates, e.g. someone enrolled from very different poses; raise {@code candidates}
+ * if {@link FaceGallery#measureIndexRecall} reports misses.
+ */
+public class CentroidIndex implements NearestNeighborIndex {
+  public static final int DEFAULT_CANDIDATES = 8;
+
+  private final FaceGallery gallery;
+  private final int dim;
+  private final int candidates;
+
+  // per row: label index, -1 if the row is not in the index
+  private int[] rowLabels = new int[0];
+  // per label: sum of its samples, the centroid scored in stage one, and its rows
+  private float[] sums = new float[0];
+  private float[] centroids = new float[0];
+  private int[] counts = new int[0];
+  private int[][] labelRows = new int[0][];
+
+  // scratch
+  private final float[] vector;
+  private final IntFloatHeap labelHeap;
+  private final IntFloatHeap rowHeap = new IntFloatHeap(8, true);
+  private int[] picked = new int[0];
+
+  public CentroidIndex(final FaceGallery gallery) {
+    this(gallery, DEFAULT_CANDIDATES);
+  }
+
+  /** @param candidates identities whose samples are re-ranked per query. */
+  public CentroidIndex(final FaceGallery gallery, final int candidates) {
+    if (candidates < 1) {
+      throw new IllegalArgumentException("Need at least one candidate identity");
+    }
+    this.gallery = gallery;
+    this.dim = gallery.getDim();
+    this.candidates = candidates;
+    this.vector = new float[dim];
+    this.labelHeap = new IntFloatHeap(candidates + 1, true);
+  }
+
+  @Override
+  public void add(final int row) {
+    ensureRowCapacity(row + 1);
+    final int label = gallery.labelIndex(row);
+    ensureLabelCapacity(label + 1);
+    rowLabels[row] = label;
+
+    final int base = label * dim;
+    gallery.getEmbedding(row, vector);
+    for (int i = 0; i < dim; i++) {
+      sums[base + i] += vector[i];
+    }
+    final int[] rows = labelRows[label];
+    if (counts[label] == rows.length) {
+      labelRows[label] = Arrays.copyOf(rows, Math.max(4, rows.length * 2));
+    }
+    labelRows[label][counts[label]++] = row;
+    updateCentroid(label);
+  }
+
+  @Override
+  public void remove(final int row) {
+    if (row >= rowLabels.length || rowLabels[row] < 0) {
+      return;
+    }
+    final int label = rowLabels[row];
+    rowLabels[row] = -1;
+
+    final int base = label * dim;
+    gallery.getEmbedding(row, vector);
+    for (int i = 0; i < dim; i++) {
+      sums[base + i] -= vector[i];
+    }
+    final int[] rows = labelRows[label];
+    for (int i = 0; i < counts[label]; i++) {
+      if (rows[i] == row) {
+        rows[i] = rows[--counts[label]];
+        break;
+      }
+    }
+    if (counts[label] == 0) {
+      // don't let rounding leave a residue in an empty sum
+      Arrays.fill(sums, base, base + dim, 0);
+    }
+    updateCentroid(label);
+  }
+
+  @Override
+  public void rebuild() {
+    rowLabels = new int[0];
+    sums = new float[0];
+    centroids = new float[0];
+    counts = new int[0];
+    labelRows = new int[0][];
+    final int rows = gallery.rowCount();
+    ensureRowCapacity(rows);
+    for (int row = 0; row < rows; row++) {
+      if (gallery.isLive(row)) {
+        add(row);
+      }
+    }
+  }
+
+  @Override
+  public CentroidIndex copyFor(final FaceGallery gallery) {
+    final CentroidIndex copy = new CentroidIndex(gallery, candidates);
+    copy.rowLabels = rowLabels.clone();
+    copy.sums = sums.clone();
+    copy.centroids = centroids.clone();
+    copy.counts = counts.clone();
+    copy.labelRows = new int[labelRows.length][];
+    for (int label = 0; label < labelRows.length; label++) {
+      copy.labelRows[label] = labelRows[label].clone();
+    }
+    return copy;
+  }
+
+  @Override
+  public int search(final float[] query, final int k, final int[] rows, final float[] distances) {
+    if (k <= 0) {
+      return 0;
+    }
+    // stage one: nearest centroids, worst on top of the heap
+    labelHeap.clear();
+    for (int label = 0; label < counts.length; label++) {
+      if (counts[label] == 0) {
+        continue;
+      }
+      final float d = centroidDistance(query, label);
+      if (labelHeap.size() < candidates) {
+        labelHeap.push(label, d);
+      } else if (d < labelHeap.peekKey()) {
+        labelHeap.pop();
+        labelHeap.push(label, d);
+      }
+    }
+    int n = 0;
+    if (picked.length < candidates) {
+      picked = new int[candidates];
+    }
+    while (!labelHeap.isEmpty()) {
+      picked[n++] = labelHeap.pop();
+    }
+
+    // stage two: every sample of the candidate identities, exactly
+    rowHeap.clear();
+    for (int c = 0; c < n; c++) {
+      final int label = picked[c];
+      final int[] labelRows = this.labelRows[label];
+      for (int i = 0; i < counts[label]; i++) {
+        final int row = labelRows[i];
+        final float d = gallery.distance(query, row);
+        if (rowHeap.size() < k) {
+          rowHeap.push(row, d);
+        } else if (d < rowHeap.peekKey()) {
+          rowHeap.pop();
+          rowHeap.push(row, d);
+        }
+      }
+    }
+    final int found = rowHeap.size();
+    for (int i = found - 1; i >= 0; i--) {
+      distances[i] = rowHeap.peekKey();
+      rows[i] = rowHeap.pop();
+    }
+    return found;
+  }
+
+  // Ranking key of the query against a centroid, on the same scale as FaceGallery.distance.
+  private float centroidDistance(final float[] query, final int label) {
+    final int base = label * dim;
+    float distance = 0;
+    if (gallery.getMetric() == Metric.COSINE) {
+      for (int i = 0; i < dim; i++) {
+        distance -= query[i] * centroids[base + i];
+      }
+    } else {
+      for (int i = 0; i < dim; i++) {
+        final float diff = query[i] - centroids[base + i];
+        distance += diff * diff;
+      }
+    }
+    return distance;
+  }
+
+  private void updateCentroid(final int label) {
+    final int base = label * dim;
+    final int count = counts[label];
+    if (count == 0) {
+      Arrays.fill(centroids, base, base + dim, 0);
+      return;
+    }
+    final float scale = 1f / count;
+    for (int i = 0; i < dim; i++) {
+      centroids[base + i] = sums[base + i] * scale;
+    }
+    if (gallery.getMetric() == Metric.COSINE) {
+      Metric.normalize(centroids, base, dim);
+    }
+  }
+
+  private void ensureRowCapacity(final int rows) {
+    if (rows <= rowLabels.length) {
+      return;
+    }
+    final int capacity = Math.max(rows, rowLabels.length * 2);
+    final int old = rowLabels.length;
+    rowLabels = Arrays.copyOf(rowLabels, capacity);
+    Arrays.fill(rowLabels, old, capacity, -1);
+  }
+
+  private void ensureLabelCapacity(final int labels) {
+    if (labels <= counts.length) {
+      return;
+    }
+    final int capacity = Math.max(labels, Math.max(16, counts.length * 2));
+    final int old = counts.length;
+    sums = Arrays.copyOf(sums, capacity * dim);
+    centroids = Arrays.copyOf(centroids, capacity * dim);
+    counts = Arrays.copyOf(counts, capacity);
+    labelRows = Arrays.copyOf(labelRows, capacity);
+    for (int label = old; label < capacity; label++) {
+      labelRows[label] = new int[0];
+    }
+  }
+}
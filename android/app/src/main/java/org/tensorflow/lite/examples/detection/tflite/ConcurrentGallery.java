@@ -0,0 +1,123 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Copy-on-write holder of the enrolled-face gallery, so recognition never blocks on registration.
+ *
+ * <p>Readers take the current {@link #snapshot()} and search it without locking; a published
+ * snapshot is never modified again. Writers queue an {@link Edit} and the writer that holds the
+ * write lock applies every queued edit to one copy of the snapshot and publishes it, so writers
+ * arriving together share a single copy. Each publish increments {@link #getVersion()}, which
+ * callers caching recognition results can key on.
+ */
+public class ConcurrentGallery {
+  /** A change applied to a private copy of the gallery. */
+  public interface Edit {
+    void apply(EmbeddingGallery gallery);
+  }
+
+  private static class PendingEdit {
+    final Edit edit;
+    boolean done;
+    RuntimeException error;
+
+    PendingEdit(final Edit edit) {
+      this.edit = edit;
+    }
+  }
+
+  private volatile EmbeddingGallery snapshot;
+  private final AtomicLong version = new AtomicLong();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final ConcurrentLinkedQueue<PendingEdit> pending = new ConcurrentLinkedQueue<>();
+  private long copies;
+  private long edits;
+
+  public ConcurrentGallery(final EmbeddingGallery gallery) {
+    this.snapshot = gallery;
+  }
+
+  /** The current gallery. It must not be modified; go through {@link #update} instead. */
+  public EmbeddingGallery snapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Number of snapshots published so far. It is incremented after the new snapshot is visible, so
+   * a reader that reads the version before {@link #snapshot()} never pairs a new version with an
+   * old snapshot.
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Applies {@code edit} and publishes the result before returning. Edits queued by other threads
+   * in the meantime are applied to the same copy.
+   *
+   * @throws RuntimeException thrown by {@code edit}; edits batched with it are still published.
+   */
+  public void update(final Edit edit) {
+    final PendingEdit mine = new PendingEdit(edit);
+    pending.add(mine);
+    writeLock.lock();
+    try {
+      if (!mine.done) {
+        publishPending();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    if (mine.error != null) {
+      throw mine.error;
+    }
+  }
+
+  /** Publishes {@code gallery} as the new snapshot, after any queued edits. */
+  public void replace(final EmbeddingGallery gallery) {
+    writeLock.lock();
+    try {
+      publishPending();
+      snapshot = gallery;
+      version.incrementAndGet();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /** Copies made vs. edits applied, i.e. how well writes are being batched. */
+  public String getStatString() {
+    writeLock.lock();
+    try {
+      return "gallery v" + version.get() + ": " + edits + " edits in " + copies + " copies";
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  // called with writeLock held
+  private void publishPending() {
+    EmbeddingGallery copy = null;
+    PendingEdit next;
+    while ((next = pending.poll()) != null) {
+      if (copy == null) {
+        copy = snapshot.copy();
+        copies++;
+      }
+      try {
+        next.edit.apply(copy);
+      } catch (RuntimeException e) {
+        next.error = e;
+      }
+      next.done = true;
+      edits++;
+    }
+    if (copy != null) {
+      snapshot = copy;
+      version.incrementAndGet();
+    }
+  }
+}
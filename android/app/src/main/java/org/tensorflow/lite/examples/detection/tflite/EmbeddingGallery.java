@@ -0,0 +1,62 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Storage and lookup of enrolled face embeddings behind {@link SimilarityClassifier#register} and
+ * {@link SimilarityClassifier#recognizeImage}. Implementations differ in how samples are encoded.
+ */
+public interface EmbeddingGallery {
+
+  int getDim();
+
+  Metric getMetric();
+
+  /** Number of live samples. */
+  int size();
+
+  /** Number of distinct labels that still own at least one sample. */
+  int labelCount();
+
+  int samplesOf(String label);
+
+  /**
+   * Stores one embedding for {@code label}, normalized first under {@link Metric#COSINE}.
+   *
+   * @return the row the embedding was stored at.
+   */
+  int add(String label, float[] embedding);
+
+  /**
+   * Removes every sample of {@code label}.
+   *
+   * @return the number of samples removed.
+   */
+  int remove(String label);
+
+  /** Reclaims the space of removed samples. Rows may be renumbered. */
+  void compact();
+
+  void clear();
+
+  /**
+   * Returns an independent copy: mutating either gallery afterwards does not affect the other.
+   * {@link ConcurrentGallery} applies writes to a copy and publishes it as the new snapshot.
+   */
+  EmbeddingGallery copy();
+
+  /**
+   * Looks for the sample nearest to {@code query}; {@code out} receives the distance in the
+   * gallery's {@link #getMetric() metric}.
+   *
+   * @return false if no sample is near enough (the gallery is empty, or a gallery bound excludes
+   *     every sample), in which case {@code out} is cleared.
+   */
+  boolean findNearest(float[] query, Neighbor out);
+
+  /**
+   * Finds the {@code k} labels nearest to {@code query}, each with its nearest sample.
+   *
+   * @param out receives the labels nearest first; needs at least {@code k} holders.
+   * @return the number of holders filled, fewer than {@code k} if fewer labels are near enough.
+   */
+  int findNearest(float[] query, int k, Neighbor[] out);
+}
@@ -0,0 +1,689 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enrolled face embeddings packed into one contiguous float array.
+ *
+ * <p>Row {@code r} occupies {@code data[r * dim, (r + 1) * dim)} and {@code rowLabels[r]} points
+ * into the label table, so {@link #findNearest} is a linear scan over primitive memory instead of
+ * walking boxed {@code float[][]} objects. Removed rows are tombstoned with label index -1 and
+ * dropped by {@link #compact()}.
+ *
+ * <p>Under {@link Metric#COSINE} rows are L2-normalized as they are stored and ranked by dot
+ * product with the query, which needs no normalization since its norm does not change the order.
+ * The norm of every row is kept, so {@link #getRawEmbedding} still returns what was added and the
+ * saved gallery does not depend on the metric it was built under.
+ *
+ * <p>The exhaustive scan can abandon a row early ({@link #setEarlyAbandon}): every {@code K}
+ * dimensions the partial squared distance is compared with the best row so far, or with {@link
+ * #setMaxDistance the distance bound}, and the row is dropped once it can no longer win. Summing
+ * high-variance dimensions first ({@link #setVarianceOrder}) makes the partial sum grow faster.
+ *
+ * <p>An optional {@link NearestNeighborIndex} replaces the exhaustive scan once the gallery grows
+ * too large for it; the gallery keeps the index in sync with every mutation. Concurrent searches
+ * are safe as long as nothing mutates the gallery; with an index they take turns on its scratch.
+ */
+public class FaceGallery implements EmbeddingGallery {
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int REMOVED = -1;
+  // rows asked from the index per label wanted by a top-k query, since labels repeat among them
+  private static final int INDEX_ROWS_PER_LABEL = 4;
+
+  private final int dim;
+  private final Metric metric;
+
+  private float[] data;
+  private int[] rowLabels;
+  // norm of every row before it was normalized, only under COSINE
+  private float[] rowNorms;
+  // rows in use, including tombstoned ones
+  private int rowCount;
+  private int removedCount;
+
+  private final LabelTable labels;
+
+  private NearestNeighborIndex index;
+  private final int[] indexRows = new int[1];
+  private final float[] indexDistances = new float[1];
+
+  // exhaustive scan settings, see setEarlyAbandon/setVarianceOrder/setMaxDistance
+  private int abandonBlock;
+  private int[] scanOrder;
+  private float maxDistance = Float.MAX_VALUE;
+  // dimensions summed vs. rows compared by early-abandon scans of this gallery
+  private final AtomicLong scanDims = new AtomicLong();
+  private final AtomicLong scanComparisons = new AtomicLong();
+
+  public FaceGallery(final int dim) {
+    this(dim, Metric.L2);
+  }
+
+  public FaceGallery(final int dim, final Metric metric) {
+    this.dim = dim;
+    this.metric = metric;
+    this.data = new float[INITIAL_CAPACITY * dim];
+    this.rowLabels = new int[INITIAL_CAPACITY];
+    this.rowNorms = metric == Metric.COSINE ? new float[INITIAL_CAPACITY] : null;
+    this.labels = new LabelTable();
+  }
+
+  private FaceGallery(final FaceGallery other) {
+    this.dim = other.dim;
+    this.metric = other.metric;
+    this.data = other.data.clone();
+    this.rowLabels = other.rowLabels.clone();
+    this.rowNorms = other.rowNorms == null ? null : other.rowNorms.clone();
+    this.rowCount = other.rowCount;
+    this.removedCount = other.removedCount;
+    this.labels = other.labels.copy();
+    this.index = other.index == null ? null : other.index.copyFor(this);
+    this.abandonBlock = other.abandonBlock;
+    this.scanOrder = other.scanOrder;
+    this.maxDistance = other.maxDistance;
+  }
+
+  @Override
+  public FaceGallery copy() {
+    return new FaceGallery(this);
+  }
+
+  @Override
+  public int getDim() {
+    return dim;
+  }
+
+  @Override
+  public Metric getMetric() {
+    return metric;
+  }
+
+  /** Routes {@link #findNearest} through {@code index}, or back to the linear scan if null. */
+  public void setIndex(final NearestNeighborIndex index) {
+    this.index = index;
+    if (index != null) {
+      index.rebuild();
+    }
+  }
+
+  public NearestNeighborIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * Makes the exhaustive scan check the partial distance every {@code blockDims} dimensions and
+   * give up on rows that can no longer be the nearest. 0 sums every dimension of every row.
+   */
+  public void setEarlyAbandon(final int blockDims) {
+    this.abandonBlock = Math.max(0, blockDims);
+  }
+
+  /**
+   * Makes the early-abandon scan sum dimensions by decreasing variance over the current rows, or
+   * in storage order if false. The order is not updated as rows change; call again after the
+   * gallery changed a lot.
+   */
+  public void setVarianceOrder(final boolean enable) {
+    scanOrder = enable ? varianceOrder() : null;
+  }
+
+  /**
+   * Samples farther than {@code maxDistance} (in the gallery's metric) are never reported, and
+   * the early-abandon scan drops rows as soon as they exceed it. {@link Float#MAX_VALUE} disables.
+   */
+  public void setMaxDistance(final float maxDistance) {
+    this.maxDistance = maxDistance;
+  }
+
+  /** Average dimensions summed per row by the early-abandon scan, out of {@link #getDim()}. */
+  public float getDimsPerComparison() {
+    final long comparisons = scanComparisons.get();
+    return comparisons == 0 ? dim : scanDims.get() / (float) comparisons;
+  }
+
+  public void resetScanStats() {
+    scanDims.set(0);
+    scanComparisons.set(0);
+  }
+
+  public String getScanStatString() {
+    return String.format(
+        Locale.US, "scan: %.1f of %d dims per comparison (%d comparisons)",
+        getDimsPerComparison(), dim, scanComparisons.get());
+  }
+
+  @Override
+  public int size() {
+    return rowCount - removedCount;
+  }
+
+  @Override
+  public int labelCount() {
+    return labels.liveCount();
+  }
+
+  @Override
+  public int samplesOf(final String label) {
+    return labels.samplesOf(label);
+  }
+
+  @Override
+  public int add(final String label, final float[] embedding) {
+    if (embedding.length != dim) {
+      throw new IllegalArgumentException(
+          "Embedding has " + embedding.length + " dimensions, gallery expects " + dim);
+    }
+    ensureRowCapacity(rowCount + 1);
+
+    final int row = rowCount++;
+    final int idx = labels.intern(label);
+    System.arraycopy(embedding, 0, data, row * dim, dim);
+    if (metric == Metric.COSINE) {
+      rowNorms[row] = Metric.norm(data, row * dim, dim);
+      Metric.normalize(data, row * dim, dim);
+    }
+    rowLabels[row] = idx;
+    labels.addSample(idx);
+    if (index != null) {
+      index.add(row);
+    }
+    return row;
+  }
+
+  /**
+   * Bulk-appends {@code rowLabels.length} rows read from {@code vectors}, with {@code rowLabels}
+   * indexing into {@code labelNames}. Used to load a packed gallery in one copy.
+   */
+  public void addAll(final FloatBuffer vectors, final int[] rowLabels, final String[] labelNames) {
+    final int rows = rowLabels.length;
+    ensureRowCapacity(rowCount + rows);
+    final int[] interned = new int[labelNames.length];
+    for (int i = 0; i < labelNames.length; i++) {
+      interned[i] = labels.intern(labelNames[i]);
+    }
+    final int first = rowCount;
+    vectors.get(data, first * dim, rows * dim);
+    for (int i = 0; i < rows; i++) {
+      final int idx = interned[rowLabels[i]];
+      this.rowLabels[first + i] = idx;
+      labels.addSample(idx);
+      if (metric == Metric.COSINE) {
+        rowNorms[first + i] = Metric.norm(data, (first + i) * dim, dim);
+        Metric.normalize(data, (first + i) * dim, dim);
+      }
+    }
+    rowCount += rows;
+    if (index != null) {
+      for (int row = first; row < rowCount; row++) {
+        index.add(row);
+      }
+    }
+  }
+
+  /**
+   * Removes every sample of {@code label}. Rows are only tombstoned; the array is compacted once
+   * tombstones outnumber live rows.
+   */
+  @Override
+  public int remove(final String label) {
+    final int idx = labels.find(label);
+    if (idx < 0 || labels.samples(idx) == 0) {
+      return 0;
+    }
+    int removed = 0;
+    for (int row = 0; row < rowCount; row++) {
+      if (rowLabels[row] == idx) {
+        rowLabels[row] = REMOVED;
+        removed++;
+        if (index != null) {
+          index.remove(row);
+        }
+      }
+    }
+    labels.clearSamples(idx);
+    removedCount += removed;
+    if (removedCount > size()) {
+      compact();
+    }
+    return removed;
+  }
+
+  /** Drops tombstoned rows and shrinks the backing arrays to fit. */
+  @Override
+  public void compact() {
+    if (removedCount == 0) {
+      return;
+    }
+    int dst = 0;
+    for (int src = 0; src < rowCount; src++) {
+      if (rowLabels[src] == REMOVED) {
+        continue;
+      }
+      if (dst != src) {
+        System.arraycopy(data, src * dim, data, dst * dim, dim);
+        rowLabels[dst] = rowLabels[src];
+        if (rowNorms != null) {
+          rowNorms[dst] = rowNorms[src];
+        }
+      }
+      dst++;
+    }
+    rowCount = dst;
+    removedCount = 0;
+
+    final int capacity = Math.max(INITIAL_CAPACITY, rowCount);
+    if (capacity < rowLabels.length) {
+      data = Arrays.copyOf(data, capacity * dim);
+      rowLabels = Arrays.copyOf(rowLabels, capacity);
+      if (rowNorms != null) {
+        rowNorms = Arrays.copyOf(rowNorms, capacity);
+      }
+    }
+    // rows were renumbered
+    if (index != null) {
+      index.rebuild();
+    }
+  }
+
+  @Override
+  public void clear() {
+    rowCount = 0;
+    removedCount = 0;
+    labels.clear();
+    if (index != null) {
+      index.rebuild();
+    }
+  }
+
+  @Override
+  public boolean findNearest(final float[] query, final Neighbor out) {
+    int bestRow = -1;
+    float best = Float.MAX_VALUE;
+    final NearestNeighborIndex index = this.index;
+    if (index != null) {
+      synchronized (index) {
+        if (index.search(query, 1, indexRows, indexDistances) > 0) {
+          bestRow = indexRows[0];
+          best = indexDistances[0];
+        }
+      }
+    } else {
+      bestRow = scanNearest(query, true);
+      if (bestRow >= 0) {
+        best = distance(query, bestRow);
+      }
+    }
+
+    final float distance = bestRow < 0 ? Float.MAX_VALUE : reportedDistance(query, best);
+    if (bestRow < 0 || distance > maxDistance) {
+      out.clear();
+      return false;
+    }
+    out.set(labels.get(rowLabels[bestRow]), distance, bestRow);
+    return true;
+  }
+
+  /**
+   * Labels are reported once, with their nearest sample. The exhaustive scan keeps the best key per
+   * label and a heap of k labels selects the result, so nothing is sorted. With an index only the
+   * rows it returns are considered, {@code k * 4} of them.
+   */
+  @Override
+  public int findNearest(final float[] query, final int k, final Neighbor[] out) {
+    if (k <= 0) {
+      return 0;
+    }
+    final float[] labelBest = new float[labels.size()];
+    final int[] labelRow = new int[labels.size()];
+    Arrays.fill(labelRow, -1);
+    final NearestNeighborIndex index = this.index;
+    if (index != null) {
+      final int want = Math.min(size(), k * INDEX_ROWS_PER_LABEL);
+      final int[] rows = new int[want];
+      final float[] keys = new float[want];
+      final int n;
+      synchronized (index) {
+        n = index.search(query, want, rows, keys);
+      }
+      for (int i = 0; i < n; i++) {
+        final int label = rowLabels[rows[i]];
+        if (labelRow[label] < 0 || keys[i] < labelBest[label]) {
+          labelBest[label] = keys[i];
+          labelRow[label] = rows[i];
+        }
+      }
+    } else {
+      for (int row = 0; row < rowCount; row++) {
+        final int label = rowLabels[row];
+        if (label == REMOVED) {
+          continue;
+        }
+        final float key = distance(query, row);
+        if (labelRow[label] < 0 || key < labelBest[label]) {
+          labelBest[label] = key;
+          labelRow[label] = row;
+        }
+      }
+    }
+
+    // bounded heap keeps the k nearest labels, worst on top
+    final IntFloatHeap nearest = new IntFloatHeap(k + 1, true);
+    for (int label = 0; label < labelRow.length; label++) {
+      if (labelRow[label] < 0) {
+        continue;
+      }
+      if (nearest.size() < k) {
+        nearest.push(label, labelBest[label]);
+      } else if (labelBest[label] < nearest.peekKey()) {
+        nearest.pop();
+        nearest.push(label, labelBest[label]);
+      }
+    }
+    // pop worst first; labels beyond maxDistance are dropped
+    int count = nearest.size();
+    final int found = count;
+    for (int i = found - 1; i >= 0; i--) {
+      final float distance = reportedDistance(query, nearest.peekKey());
+      final int label = nearest.pop();
+      if (distance > maxDistance) {
+        count = i;
+        continue;
+      }
+      out[i].set(labels.get(label), distance, labelRow[label]);
+    }
+    return count;
+  }
+
+  // Turns a ranking key of distance() into the distance findNearest reports.
+  private float reportedDistance(final float[] query, final float key) {
+    if (metric == Metric.L2) {
+      return (float) Math.sqrt(key);
+    }
+    // key is -dot(query, unit row), the query's norm is only divided out for the winner
+    final float norm = Metric.norm(query, 0, dim);
+    return norm > 0 ? 1 + key / norm : 1;
+  }
+
+  /**
+   * Fraction of {@code queries} for which the index returns the same top-1 row as the exhaustive
+   * scan (recall@1). Returns 1 when no index is set.
+   */
+  public float measureIndexRecall(final float[][] queries) {
+    if (index == null || queries.length == 0) {
+      return 1f;
+    }
+    int hits = 0;
+    for (final float[] query : queries) {
+      final int expected = scanNearest(query, false);
+      synchronized (index) {
+        final int n = index.search(query, 1, indexRows, indexDistances);
+        if (expected < 0 ? n == 0 : n > 0 && (indexRows[0] == expected
+            || indexDistances[0] <= distance(query, expected))) {
+          hits++;
+        }
+      }
+    }
+    return hits / (float) queries.length;
+  }
+
+  /**
+   * Exhaustive scan, returns the nearest live row or -1. Rows beyond {@link #maxDistance} may be
+   * skipped if {@code bounded}.
+   */
+  private int scanNearest(final float[] query, final boolean bounded) {
+    if (abandonBlock > 0) {
+      return scanEarlyAbandon(query, bounded ? squaredBound(query) : Float.MAX_VALUE);
+    }
+    final float[] data = this.data;
+    final int[] rowLabels = this.rowLabels;
+    final int dim = this.dim;
+
+    if (metric == Metric.COSINE) {
+      return scanMaxDot(query);
+    }
+    float best = Float.MAX_VALUE;
+    int bestRow = -1;
+    for (int row = 0, base = 0; row < rowCount; row++, base += dim) {
+      if (rowLabels[row] == REMOVED) {
+        continue;
+      }
+      float distance = 0;
+      for (int i = 0; i < dim; i++) {
+        final float diff = query[i] - data[base + i];
+        distance += diff * diff;
+      }
+      if (distance < best) {
+        best = distance;
+        bestRow = row;
+      }
+    }
+    return bestRow;
+  }
+
+  /** Exhaustive scan over unit rows, returns the live row with the largest dot product or -1. */
+  private int scanMaxDot(final float[] query) {
+    final float[] data = this.data;
+    final int[] rowLabels = this.rowLabels;
+    final int dim = this.dim;
+
+    float best = -Float.MAX_VALUE;
+    int bestRow = -1;
+    for (int row = 0, base = 0; row < rowCount; row++, base += dim) {
+      if (rowLabels[row] == REMOVED) {
+        continue;
+      }
+      float dot = 0;
+      for (int i = 0; i < dim; i++) {
+        dot += query[i] * data[base + i];
+      }
+      if (dot > best) {
+        best = dot;
+        bestRow = row;
+      }
+    }
+    return bestRow;
+  }
+
+  /**
+   * Exhaustive L2 scan that drops a row once its partial sum reaches the best so far, which starts
+   * at {@code squaredBound}. Under {@link Metric#COSINE} the raw query is compared with unit rows,
+   * where {@code |q - r|^2 = |q|^2 + 1 - 2 q.r} orders rows like the dot product does.
+   */
+  private int scanEarlyAbandon(final float[] query, final float squaredBound) {
+    final float[] data = this.data;
+    final int[] rowLabels = this.rowLabels;
+    final int[] order = this.scanOrder;
+    final int dim = this.dim;
+    final int block = abandonBlock;
+
+    float best = squaredBound;
+    int bestRow = -1;
+    long dims = 0;
+    int comparisons = 0;
+    for (int row = 0, base = 0; row < rowCount; row++, base += dim) {
+      if (rowLabels[row] == REMOVED) {
+        continue;
+      }
+      float distance = 0;
+      int i = 0;
+      while (i < dim) {
+        final int end = Math.min(i + block, dim);
+        if (order == null) {
+          for (; i < end; i++) {
+            final float diff = query[i] - data[base + i];
+            distance += diff * diff;
+          }
+        } else {
+          for (; i < end; i++) {
+            final int d = order[i];
+            final float diff = query[d] - data[base + d];
+            distance += diff * diff;
+          }
+        }
+        if (distance >= best) {
+          break;
+        }
+      }
+      dims += i;
+      comparisons++;
+      if (distance < best) {
+        best = distance;
+        bestRow = row;
+      }
+    }
+    scanDims.addAndGet(dims);
+    scanComparisons.addAndGet(comparisons);
+    return bestRow;
+  }
+
+  // maxDistance as a squared L2 distance between query and row, the scale scanEarlyAbandon sums in
+  private float squaredBound(final float[] query) {
+    if (maxDistance == Float.MAX_VALUE) {
+      return Float.MAX_VALUE;
+    }
+    if (metric == Metric.L2) {
+      return maxDistance * maxDistance;
+    }
+    // cos >= 1 - maxDistance, i.e. q.r >= |q| (1 - maxDistance)
+    final float norm = Metric.norm(query, 0, dim);
+    return norm * norm + 1 - 2 * norm * (1 - maxDistance);
+  }
+
+  // Dimensions sorted by decreasing variance over the live rows.
+  private int[] varianceOrder() {
+    final double[] sum = new double[dim];
+    final double[] sumSquares = new double[dim];
+    final int n = size();
+    for (int row = 0, base = 0; row < rowCount; row++, base += dim) {
+      if (rowLabels[row] == REMOVED) {
+        continue;
+      }
+      for (int i = 0; i < dim; i++) {
+        final double v = data[base + i];
+        sum[i] += v;
+        sumSquares[i] += v * v;
+      }
+    }
+    final Integer[] dims = new Integer[dim];
+    final double[] variance = new double[dim];
+    for (int i = 0; i < dim; i++) {
+      dims[i] = i;
+      variance[i] = n == 0 ? 0 : sumSquares[i] / n - (sum[i] / n) * (sum[i] / n);
+    }
+    Arrays.sort(dims, (a, b) -> Double.compare(variance[b], variance[a]));
+    final int[] order = new int[dim];
+    for (int i = 0; i < dim; i++) {
+      order[i] = dims[i];
+    }
+    return order;
+  }
+
+  // rows including tombstones, for index implementations
+  int rowCount() {
+    return rowCount;
+  }
+
+  boolean isLive(final int row) {
+    return rowLabels[row] != REMOVED;
+  }
+
+  /** Index of the label owning {@code row} in the gallery's label table. */
+  int labelIndex(final int row) {
+    return rowLabels[row];
+  }
+
+  /**
+   * Ranking key between {@code query} and {@code row}, smaller is nearer: the squared L2 distance,
+   * or the negated dot product under {@link Metric#COSINE}.
+   */
+  float distance(final float[] query, final int row) {
+    final int base = row * dim;
+    if (metric == Metric.COSINE) {
+      float dot = 0;
+      for (int i = 0; i < dim; i++) {
+        dot += query[i] * data[base + i];
+      }
+      return -dot;
+    }
+    float distance = 0;
+    for (int i = 0; i < dim; i++) {
+      final float diff = query[i] - data[base + i];
+      distance += diff * diff;
+    }
+    return distance;
+  }
+
+  /** Ranking key between two rows, as {@link #distance(float[], int)}. */
+  float distance(final int rowA, final int rowB) {
+    final int a = rowA * dim;
+    final int b = rowB * dim;
+    if (metric == Metric.COSINE) {
+      float dot = 0;
+      for (int i = 0; i < dim; i++) {
+        dot += data[a + i] * data[b + i];
+      }
+      return -dot;
+    }
+    float distance = 0;
+    for (int i = 0; i < dim; i++) {
+      final float diff = data[a + i] - data[b + i];
+      distance += diff * diff;
+    }
+    return distance;
+  }
+
+  /** Copies the embedding stored at {@code row} into {@code out}, normalized under COSINE. */
+  public void getEmbedding(final int row, final float[] out) {
+    System.arraycopy(data, row * dim, out, 0, dim);
+  }
+
+  /** Copies the embedding at {@code row} as it was added, before any normalization. */
+  public void getRawEmbedding(final int row, final float[] out) {
+    getEmbedding(row, out);
+    if (rowNorms != null) {
+      final float norm = rowNorms[row];
+      for (int i = 0; i < dim; i++) {
+        out[i] *= norm;
+      }
+    }
+  }
+
+  /** Copies up to {@code n} live embeddings spread evenly over the gallery. */
+  public float[][] sampleEmbeddings(final int n) {
+    final int count = Math.min(n, size());
+    final float[][] out = new float[count][dim];
+    if (count == 0) {
+      return out;
+    }
+    final int step = Math.max(1, size() / count);
+    int live = 0;
+    int taken = 0;
+    for (int row = 0; row < rowCount && taken < count; row++) {
+      if (rowLabels[row] != REMOVED && live++ % step == 0) {
+        getEmbedding(row, out[taken++]);
+      }
+    }
+    return out;
+  }
+
+  /** Label of {@code row}, or null if the row was removed. */
+  public String getLabel(final int row) {
+    final int idx = rowLabels[row];
+    return idx == REMOVED ? null : labels.get(idx);
+  }
+
+  private void ensureRowCapacity(final int rows) {
+    if (rows <= rowLabels.length) {
+      return;
+    }
+    final int capacity = Math.max(rows, rowLabels.length * 2);
+    data = Arrays.copyOf(data, capacity * dim);
+    rowLabels = Arrays.copyOf(rowLabels, capacity);
+    if (rowNorms != null) {
+      rowNorms = Arrays.copyOf(rowNorms, capacity);
+    }
+  }
+}
@@ -0,0 +1,443 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Binary on-disk form of the galleries, replacing one Gson file per face.
+ *
+ * <p>Every file starts with the same header and ends with the label table:
+ *
+ * <pre>
+ * header   int magic, int version, int dim, int rows, int labels, int crc32, int metric, 4 bytes 0
+ * payload  depends on the magic, see below
+ * labels   per label: uint16 byte length + UTF-8 bytes
+ * </pre>
+ *
+ * A {@link FaceGallery} ("FGAL", {@link #FILENAME}) stores {@code float32[rows][dim]} raw vectors
+ * followed by {@code int32[rows]} label indices; they are never normalized on disk, so the file
+ * loads into a gallery of either metric. The compressed galleries store their trained
+ * state, so they are not retrained or requantized at every start:
+ *
+ * <pre>
+ * IVF-PQ ("FGPQ")  int nlist, int m, int ks, int nprobe, int32[nlist] list sizes,
+ *                  float32[nlist][dim] coarse centroids, float32[m][ks][dim / m] codebooks,
+ *                  int32[rows] label indices, uint8[rows][m] codes; rows grouped by list
+ * int8 ("FGI8")    float32[rows] scales, float32[rows] squared norms, int32[rows] label indices,
+ *                  int8[rows][dim] codes
+ * </pre>
+ *
+ * Everything is little-endian and the CRC covers all bytes after the header. Files are read
+ * through {@link FileChannel#map}, so loading is one bulk copy of the vector block into the
+ * gallery instead of parsing text.
+ */
+public final class GalleryFile {
+  public static final String FILENAME = "gallery.bin";
+  public static final String IVF_PQ_FILENAME = "gallery.ivfpq";
+  public static final String INT8_FILENAME = "gallery.int8";
+
+  private static final int MAGIC = 0x4C414746; // "FGAL"
+  private static final int IVF_PQ_MAGIC = 0x51504746; // "FGPQ"
+  private static final int INT8_MAGIC = 0x38494746; // "FGI8"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 32;
+  private static final int IVF_PQ_PARAMS_BYTES = 16;
+
+  private GalleryFile() {}
+
+  /** Writes the part of a file between the header and the label table. */
+  private interface Payload {
+    void write(ChunkWriter writer) throws IOException;
+  }
+
+  /**
+   * Appends every sample stored in {@code file} to {@code gallery}.
+   *
+   * @return the number of samples loaded.
+   * @throws IOException if the file is unreadable, corrupt or of another dimension.
+   */
+  public static int load(final File file, final FaceGallery gallery) throws IOException {
+    final ByteBuffer buffer = map(file);
+    final int dim = gallery.getDim();
+    final int rows = checkHeader(buffer, MAGIC, dim, null);
+    final int labelCount = buffer.getInt(16);
+    if ((long) rows * (dim + 1) * 4 > buffer.limit() - HEADER_BYTES) {
+      throw new IOException("Truncated gallery file");
+    }
+
+    buffer.position(HEADER_BYTES + rows * dim * 4);
+    final int[] rowLabels = readInts(buffer, rows);
+    final String[] labels = readLabels(buffer, labelCount, rowLabels);
+    buffer.position(HEADER_BYTES);
+    gallery.addAll(buffer.asFloatBuffer(), rowLabels, labels);
+    return rows;
+  }
+
+  /** Writes the live samples of {@code gallery} to {@code file}, replacing it atomically. */
+  public static void save(final FaceGallery gallery, final File file) throws IOException {
+    final int dim = gallery.getDim();
+    final LabelTable labels = new LabelTable();
+    final int[] rowLabels = new int[gallery.size()];
+    int rows = 0;
+    for (int r = 0; r < gallery.rowCount(); r++) {
+      if (gallery.isLive(r)) {
+        rowLabels[rows++] = labels.intern(gallery.getLabel(r));
+      }
+    }
+    final int count = rows;
+    write(file, MAGIC, dim, rows, gallery.getMetric(), labels, writer -> {
+      final float[] row = new float[dim];
+      for (int r = 0; r < gallery.rowCount(); r++) {
+        if (gallery.isLive(r)) {
+          gallery.getRawEmbedding(r, row);
+          for (int d = 0; d < dim; d++) {
+            writer.ensure(4).putFloat(row[d]);
+          }
+        }
+      }
+      writeInts(writer, rowLabels, count);
+    });
+  }
+
+  /**
+   * Reads an IVF-PQ gallery with its codebooks.
+   *
+   * @throws IOException if the file is unreadable, corrupt, or of another dimension or metric.
+   */
+  public static IvfPqGallery loadIvfPq(final File file, final int dim, final Metric metric)
+      throws IOException {
+    final ByteBuffer buffer = map(file);
+    final int rows = checkHeader(buffer, IVF_PQ_MAGIC, dim, metric);
+    final int labelCount = buffer.getInt(16);
+    buffer.position(HEADER_BYTES);
+    if (buffer.remaining() < IVF_PQ_PARAMS_BYTES) {
+      throw new IOException("Truncated gallery file");
+    }
+    final int nlist = buffer.getInt();
+    final int m = buffer.getInt();
+    final int ks = buffer.getInt();
+    final int nprobe = buffer.getInt();
+    if (nlist < 1 || m < 1 || dim % m != 0 || ks < 1 || ks > ProductQuantizer.MAX_CENTROIDS
+        || nprobe < 1) {
+      throw new IOException("Corrupt IVF-PQ parameters");
+    }
+    final long payload = (long) nlist * 4 + (long) (nlist + ks) * dim * 4 + (long) rows * (4 + m);
+    if (payload > buffer.remaining()) {
+      throw new IOException("Truncated gallery file");
+    }
+
+    final int[] listSizes = readInts(buffer, nlist);
+    final float[] coarse = readFloats(buffer, nlist * dim);
+    final float[] codebooks = readFloats(buffer, ks * dim);
+    final int[] rowLabels = readInts(buffer, rows);
+    final byte[] codes = new byte[rows * m];
+    buffer.get(codes);
+    final String[] labels = readLabels(buffer, labelCount, rowLabels);
+    long listed = 0;
+    for (final int size : listSizes) {
+      if (size < 0) {
+        throw new IOException("Corrupt list size " + size);
+      }
+      listed += size;
+    }
+    if (listed != rows) {
+      throw new IOException("Lists hold " + listed + " rows, expected " + rows);
+    }
+
+    final IvfPqGallery gallery = new IvfPqGallery(
+        dim, metric, coarse, nlist, new ProductQuantizer(dim, m, ks, codebooks), nprobe);
+    int row = 0;
+    for (int list = 0; list < nlist; list++) {
+      for (int i = 0; i < listSizes[list]; i++, row++) {
+        gallery.addEncoded(labels[rowLabels[row]], list, codes, row * m);
+      }
+    }
+    return gallery;
+  }
+
+  /** Writes the codebooks and the live samples of {@code gallery} to {@code file}. */
+  public static void save(final IvfPqGallery gallery, final File file) throws IOException {
+    final int dim = gallery.getDim();
+    final int nlist = gallery.listCount();
+    final ProductQuantizer pq = gallery.quantizer();
+    final int m = pq.getCodeSize();
+    final LabelTable labels = new LabelTable();
+    final int[] listSizes = new int[nlist];
+    final int[] rowLabels = new int[gallery.size()];
+    int rows = 0;
+    for (int list = 0; list < nlist; list++) {
+      for (int i = 0; i < gallery.listSize(list); i++) {
+        final int row = gallery.listRow(list, i);
+        if (gallery.isLive(row)) {
+          rowLabels[rows++] = labels.intern(gallery.getLabel(row));
+          listSizes[list]++;
+        }
+      }
+    }
+    final int count = rows;
+    write(file, IVF_PQ_MAGIC, dim, rows, gallery.getMetric(), labels, writer -> {
+      writer.ensure(IVF_PQ_PARAMS_BYTES)
+          .putInt(nlist)
+          .putInt(m)
+          .putInt(pq.getCentroidCount())
+          .putInt(gallery.getNprobe());
+      writeInts(writer, listSizes, nlist);
+      writeFloats(writer, gallery.coarseCentroids());
+      writeFloats(writer, pq.getCodebooks());
+      writeInts(writer, rowLabels, count);
+      final byte[] code = new byte[m];
+      for (int list = 0; list < nlist; list++) {
+        for (int i = 0; i < gallery.listSize(list); i++) {
+          final int row = gallery.listRow(list, i);
+          if (gallery.isLive(row)) {
+            gallery.getCode(row, code, 0);
+            writer.ensure(m).put(code);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Reads an int8 gallery.
+   *
+   * @throws IOException if the file is unreadable, corrupt, or of another dimension or metric.
+   */
+  public static Int8Gallery loadInt8(final File file, final int dim, final Metric metric)
+      throws IOException {
+    final ByteBuffer buffer = map(file);
+    final int rows = checkHeader(buffer, INT8_MAGIC, dim, metric);
+    final int labelCount = buffer.getInt(16);
+    if ((long) rows * (dim + 3 * 4) > buffer.limit() - HEADER_BYTES) {
+      throw new IOException("Truncated gallery file");
+    }
+
+    buffer.position(HEADER_BYTES);
+    final float[] scales = readFloats(buffer, rows);
+    final float[] norms = readFloats(buffer, rows);
+    final int[] rowLabels = readInts(buffer, rows);
+    final byte[] codes = new byte[rows * dim];
+    buffer.get(codes);
+    final String[] labels = readLabels(buffer, labelCount, rowLabels);
+
+    final Int8Gallery gallery = new Int8Gallery(dim, metric);
+    for (int row = 0; row < rows; row++) {
+      gallery.addEncoded(labels[rowLabels[row]], codes, row * dim, scales[row], norms[row]);
+    }
+    return gallery;
+  }
+
+  /** Writes the live samples of {@code gallery} to {@code file}, replacing it atomically. */
+  public static void save(final Int8Gallery gallery, final File file) throws IOException {
+    final int dim = gallery.getDim();
+    final LabelTable labels = new LabelTable();
+    final int[] liveRows = new int[gallery.size()];
+    final int[] rowLabels = new int[gallery.size()];
+    int rows = 0;
+    for (int r = 0; r < gallery.rowCount(); r++) {
+      if (gallery.isLive(r)) {
+        rowLabels[rows] = labels.intern(gallery.getLabel(r));
+        liveRows[rows++] = r;
+      }
+    }
+    final int count = rows;
+    write(file, INT8_MAGIC, dim, rows, gallery.getMetric(), labels, writer -> {
+      for (int i = 0; i < count; i++) {
+        writer.ensure(4).putFloat(gallery.getScale(liveRows[i]));
+      }
+      for (int i = 0; i < count; i++) {
+        writer.ensure(4).putFloat(gallery.getSquaredNorm(liveRows[i]));
+      }
+      writeInts(writer, rowLabels, count);
+      final byte[] codes = new byte[dim];
+      for (int i = 0; i < count; i++) {
+        gallery.getCodes(liveRows[i], codes, 0);
+        writer.ensure(dim).put(codes);
+      }
+    });
+  }
+
+  private static void write(
+      final File file, final int magic, final int dim, final int rows, final Metric metric,
+      final LabelTable labels, final Payload payload) throws IOException {
+    // a temp file of its own per save, so concurrent saves never write into each other's file
+    final File tmp =
+        File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+    try {
+      final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+      try {
+        final ChunkWriter writer = new ChunkWriter(out.getChannel(), HEADER_BYTES);
+        payload.write(writer);
+        for (int i = 0; i < labels.size(); i++) {
+          final byte[] bytes = labels.get(i).getBytes(StandardCharsets.UTF_8);
+          writer.ensure(2 + bytes.length).putShort((short) bytes.length).put(bytes);
+        }
+        writer.flush();
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(magic);
+        header.putInt(VERSION);
+        header.putInt(dim);
+        header.putInt(rows);
+        header.putInt(labels.size());
+        header.putInt((int) writer.crc.getValue());
+        header.putInt(metric.ordinal());
+        header.rewind();
+        out.getChannel().write(header, 0);
+        out.getChannel().force(true);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to replace " + file);
+      }
+    } catch (IOException | RuntimeException e) {
+      tmp.delete();
+      throw e;
+    }
+  }
+
+  private static ByteBuffer map(final File file) throws IOException {
+    final FileInputStream in = new FileInputStream(file);
+    try {
+      final FileChannel channel = in.getChannel();
+      // the mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+          .order(ByteOrder.LITTLE_ENDIAN);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Validates the header and the CRC and returns the row count. {@code metric} is only checked
+   * when not null, for the compressed galleries, whose codes only make sense under the metric they
+   * were built for.
+   */
+  private static int checkHeader(
+      final ByteBuffer buffer, final int magic, final int dim, final Metric metric)
+      throws IOException {
+    if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != magic) {
+      throw new IOException("Not a gallery file");
+    }
+    final int version = buffer.getInt(4);
+    if (version != VERSION) {
+      throw new IOException("Unsupported gallery file version " + version);
+    }
+    final int fileDim = buffer.getInt(8);
+    if (fileDim != dim) {
+      throw new IOException("Gallery file has dimension " + fileDim + ", expected " + dim);
+    }
+    final int rows = buffer.getInt(12);
+    final int labelCount = buffer.getInt(16);
+    if (rows < 0 || labelCount < 0) {
+      throw new IOException("Truncated gallery file");
+    }
+    final int fileMetric = buffer.getInt(24);
+    if (metric != null && fileMetric != metric.ordinal()) {
+      throw new IOException("Gallery file was written for another metric than " + metric);
+    }
+    final int payload = buffer.limit() - HEADER_BYTES;
+    if ((int) checksum(buffer, HEADER_BYTES, payload) != buffer.getInt(20)) {
+      throw new IOException("Gallery file checksum mismatch");
+    }
+    return rows;
+  }
+
+  // Reads the label table at the buffer's position and checks that rowLabels index into it.
+  private static String[] readLabels(
+      final ByteBuffer buffer, final int labelCount, final int[] rowLabels) throws IOException {
+    final String[] labels = new String[labelCount];
+    for (int i = 0; i < labelCount; i++) {
+      final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+      buffer.get(bytes);
+      labels[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+    for (final int idx : rowLabels) {
+      if (idx < 0 || idx >= labelCount) {
+        throw new IOException("Corrupt label index " + idx);
+      }
+    }
+    return labels;
+  }
+
+  private static int[] readInts(final ByteBuffer buffer, final int count) {
+    final int[] values = new int[count];
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + count * 4);
+    return values;
+  }
+
+  private static float[] readFloats(final ByteBuffer buffer, final int count) {
+    final float[] values = new float[count];
+    buffer.asFloatBuffer().get(values);
+    buffer.position(buffer.position() + count * 4);
+    return values;
+  }
+
+  private static void writeInts(final ChunkWriter writer, final int[] values, final int count)
+      throws IOException {
+    for (int i = 0; i < count; i++) {
+      writer.ensure(4).putInt(values[i]);
+    }
+  }
+
+  private static void writeFloats(final ChunkWriter writer, final float[] values)
+      throws IOException {
+    for (final float value : values) {
+      writer.ensure(4).putFloat(value);
+    }
+  }
+
+  private static long checksum(final ByteBuffer buffer, final int offset, final int length) {
+    // CRC32.update(ByteBuffer) needs API 26, stream the mapping through a small chunk instead
+    final CRC32 crc = new CRC32();
+    final byte[] chunk = new byte[64 * 1024];
+    final ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    int remaining = length;
+    while (remaining > 0) {
+      final int n = Math.min(chunk.length, remaining);
+      view.get(chunk, 0, n);
+      crc.update(chunk, 0, n);
+      remaining -= n;
+    }
+    return crc.getValue();
+  }
+
+  /** Streams the payload through a fixed buffer while updating the CRC. */
+  private static class ChunkWriter {
+    private final FileChannel channel;
+    private final ByteBuffer chunk = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private long position;
+
+    ChunkWriter(final FileChannel channel, final long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    ByteBuffer ensure(final int bytes) throws IOException {
+      if (chunk.remaining() < bytes) {
+        flush();
+      }
+      return chunk;
+    }
+
+    void flush() throws IOException {
+      chunk.flip();
+      crc.update(chunk.array(), 0, chunk.limit());
+      while (chunk.hasRemaining()) {
+        position += channel.write(chunk, position);
+      }
+      chunk.clear();
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hierarchical Navigable Small World graph over the rows of a {@link FaceGallery}.
+ *
+ * <p>Vectors are read from the gallery, the index only stores the graph. Removed rows stay in the
+ * graph as routing nodes and are filtered from results until the gallery compacts and rebuilds.
+ *
+ * <p>Distances are the gallery's ranking keys, so the graph serves either {@link Metric}; under
+ * {@link Metric#COSINE} it is a maximum inner product search over unit vectors.
+ *
+ * <p>Recall/speed is tuned with {@code m} (links per node), {@code efConstruction} (beam width
+ * while inserting) and {@code efSearch} (beam width while querying). Larger is more accurate and
+ * slower.
+ */
+public class HnswIndex implements NearestNeighborIndex {
+  public static final int DEFAULT_M = 16;
+  public static final int DEFAULT_EF_CONSTRUCTION = 200;
+  public static final int DEFAULT_EF_SEARCH = 64;
+
+  private final FaceGallery gallery;
+  private final int m;
+  private final int efConstruction;
+  private int efSearch;
+  private final double levelMult;
+  private final Random random = new Random(42);
+
+  // per row: top level, -1 if the row is not in the graph
+  private int[] levels = new int[0];
+  // per row, per level: [count, neighbor1, neighbor2, ...]
+  private int[][][] links = new int[0][][];
+  private boolean[] deleted = new boolean[0];
+  private int entryPoint = -1;
+  private int maxLevel = -1;
+
+  // search scratch
+  private int[] visited = new int[0];
+  private int visitEpoch;
+  private final IntFloatHeap candidates = new IntFloatHeap(64, false);
+  private final IntFloatHeap results = new IntFloatHeap(64, true);
+  private int[] found = new int[64];
+  private float[] foundDistances = new float[64];
+  private int[] selected = new int[64];
+  private float[] query;
+
+  public HnswIndex(final FaceGallery gallery) {
+    this(gallery, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH);
+  }
+
+  public HnswIndex(
+      final FaceGallery gallery, final int m, final int efConstruction, final int efSearch) {
+    if (m < 2 || efConstruction < 1 || efSearch < 1) {
+      throw new IllegalArgumentException("Invalid HNSW parameters");
+    }
+    this.gallery = gallery;
+    this.m = m;
+    this.efConstruction = Math.max(efConstruction, m);
+    this.efSearch = efSearch;
+    this.levelMult = 1.0 / Math.log(m);
+    this.query = new float[gallery.getDim()];
+  }
+
+  public void setEfSearch(final int efSearch) {
+    this.efSearch = Math.max(1, efSearch);
+  }
+
+  public int getEfSearch() {
+    return efSearch;
+  }
+
+  @Override
+  public void add(final int row) {
+    ensureCapacity(row + 1);
+    final int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMult);
+    levels[row] = level;
+    deleted[row] = false;
+    links[row] = new int[level + 1][];
+    for (int l = 0; l <= level; l++) {
+      links[row][l] = new int[maxLinks(l) + 1];
+    }
+    if (entryPoint < 0) {
+      entryPoint = row;
+      maxLevel = level;
+      return;
+    }
+
+    gallery.getEmbedding(row, query);
+    int ep = entryPoint;
+    float epDistance = gallery.distance(query, ep);
+    for (int l = maxLevel; l > level; l--) {
+      ep = greedyClosest(query, ep, l);
+    }
+    for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+      epDistance = gallery.distance(query, ep);
+      final int count = searchLayer(query, ep, epDistance, efConstruction, l);
+      final int max = maxLinks(l);
+      final int picked = selectNeighbors(found, foundDistances, count, m, selected);
+      final int[] own = links[row][l];
+      for (int i = 0; i < picked; i++) {
+        own[++own[0]] = selected[i];
+      }
+      for (int i = 0; i < picked; i++) {
+        connect(selected[i], row, l, max);
+      }
+      ep = found[0];
+    }
+    if (level > maxLevel) {
+      maxLevel = level;
+      entryPoint = row;
+    }
+  }
+
+  @Override
+  public void remove(final int row) {
+    if (row < deleted.length) {
+      deleted[row] = true;
+    }
+  }
+
+  @Override
+  public void rebuild() {
+    levels = new int[0];
+    links = new int[0][][];
+    deleted = new boolean[0];
+    visited = new int[0];
+    entryPoint = -1;
+    maxLevel = -1;
+    final int rows = gallery.rowCount();
+    ensureCapacity(rows);
+    for (int row = 0; row < rows; row++) {
+      if (gallery.isLive(row)) {
+        add(row);
+      }
+    }
+  }
+
+  @Override
+  public HnswIndex copyFor(final FaceGallery gallery) {
+    final HnswIndex copy = new HnswIndex(gallery, m, efConstruction, efSearch);
+    copy.random.setSeed(random.nextLong());
+    copy.levels = levels.clone();
+    copy.links = new int[links.length][][];
+    for (int row = 0; row < links.length; row++) {
+      if (links[row] != null) {
+        copy.links[row] = new int[links[row].length][];
+        for (int l = 0; l < links[row].length; l++) {
+          copy.links[row][l] = links[row][l].clone();
+        }
+      }
+    }
+    copy.deleted = deleted.clone();
+    copy.visited = new int[visited.length];
+    copy.entryPoint = entryPoint;
+    copy.maxLevel = maxLevel;
+    if (copy.selected.length < selected.length) {
+      copy.selected = new int[selected.length];
+    }
+    return copy;
+  }
+
+  @Override
+  public int search(final float[] query, final int k, final int[] rows, final float[] distances) {
+    if (entryPoint < 0 || k <= 0) {
+      return 0;
+    }
+    int ep = entryPoint;
+    for (int l = maxLevel; l > 0; l--) {
+      ep = greedyClosest(query, ep, l);
+    }
+    final int count =
+        searchLayer(query, ep, gallery.distance(query, ep), Math.max(efSearch, k), 0);
+    int n = 0;
+    for (int i = 0; i < count && n < k; i++) {
+      if (!deleted[found[i]]) {
+        rows[n] = found[i];
+        distances[n] = foundDistances[i];
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private int maxLinks(final int level) {
+    return level == 0 ? 2 * m : m;
+  }
+
+  private int greedyClosest(final float[] q, int ep, final int level) {
+    float epDistance = gallery.distance(q, ep);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      final int[] neighbors = links[ep][level];
+      for (int i = 1; i <= neighbors[0]; i++) {
+        final float d = gallery.distance(q, neighbors[i]);
+        if (d < epDistance) {
+          epDistance = d;
+          ep = neighbors[i];
+          changed = true;
+        }
+      }
+    }
+    return ep;
+  }
+
+  /**
+   * Beam search on one layer. Leaves the best {@code ef} nodes in {@link #found} sorted by
+   * ascending distance and returns their count.
+   */
+  private int searchLayer(
+      final float[] q, final int ep, final float epDistance, final int ef, final int level) {
+    if (++visitEpoch == Integer.MAX_VALUE) {
+      Arrays.fill(visited, 0);
+      visitEpoch = 1;
+    }
+    candidates.clear();
+    results.clear();
+    candidates.push(ep, epDistance);
+    results.push(ep, epDistance);
+    visited[ep] = visitEpoch;
+
+    while (!candidates.isEmpty()) {
+      final float d = candidates.peekKey();
+      if (results.size() >= ef && d > results.peekKey()) {
+        break;
+      }
+      final int current = candidates.pop();
+      final int[] neighbors = links[current][level];
+      for (int i = 1; i <= neighbors[0]; i++) {
+        final int n = neighbors[i];
+        if (visited[n] == visitEpoch) {
+          continue;
+        }
+        visited[n] = visitEpoch;
+        final float dn = gallery.distance(q, n);
+        if (results.size() < ef || dn < results.peekKey()) {
+          candidates.push(n, dn);
+          results.push(n, dn);
+          if (results.size() > ef) {
+            results.pop();
+          }
+        }
+      }
+    }
+
+    final int count = results.size();
+    if (found.length < count) {
+      found = new int[count];
+      foundDistances = new float[count];
+    }
+    for (int i = count - 1; i >= 0; i--) {
+      foundDistances[i] = results.peekKey();
+      found[i] = results.pop();
+    }
+    return count;
+  }
+
+  /**
+   * Neighbor selection heuristic: walks candidates nearest first and keeps one only if it is
+   * closer to the base than to every neighbor kept so far, which preserves long-range links.
+   */
+  private int selectNeighbors(
+      final int[] candidates, final float[] distances, final int count, final int max,
+      final int[] out) {
+    int kept = 0;
+    for (int i = 0; i < count && kept < max; i++) {
+      final int c = candidates[i];
+      boolean good = true;
+      for (int j = 0; j < kept; j++) {
+        if (gallery.distance(c, out[j]) < distances[i]) {
+          good = false;
+          break;
+        }
+      }
+      if (good) {
+        out[kept++] = c;
+      }
+    }
+    return kept;
+  }
+
+  /** Adds a link {@code from -> to}, pruning {@code from}'s list when it overflows. */
+  private void connect(final int from, final int to, final int level, final int max) {
+    final int[] list = links[from][level];
+    if (list[0] < max) {
+      list[++list[0]] = to;
+      return;
+    }
+
+    final int n = list[0] + 1;
+    final int[] ids = new int[n];
+    final float[] distances = new float[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = i < n - 1 ? list[i + 1] : to;
+      distances[i] = gallery.distance(from, ids[i]);
+    }
+    // insertion sort, lists are at most 2 * m long
+    for (int i = 1; i < n; i++) {
+      final int id = ids[i];
+      final float d = distances[i];
+      int j = i - 1;
+      while (j >= 0 && distances[j] > d) {
+        ids[j + 1] = ids[j];
+        distances[j + 1] = distances[j];
+        j--;
+      }
+      ids[j + 1] = id;
+      distances[j + 1] = d;
+    }
+    final int[] kept = new int[max];
+    final int count = selectNeighbors(ids, distances, n, max, kept);
+    list[0] = count;
+    System.arraycopy(kept, 0, list, 1, count);
+  }
+
+  private void ensureCapacity(final int rows) {
+    if (rows <= levels.length) {
+      return;
+    }
+    final int capacity = Math.max(rows, levels.length * 2);
+    final int old = levels.length;
+    levels = Arrays.copyOf(levels, capacity);
+    Arrays.fill(levels, old, capacity, -1);
+    links = Arrays.copyOf(links, capacity);
+    deleted = Arrays.copyOf(deleted, capacity);
+    visited = Arrays.copyOf(visited, capacity);
+    if (selected.length < 2 * m + 1) {
+      selected = new int[2 * m + 1];
+    }
+  }
+}
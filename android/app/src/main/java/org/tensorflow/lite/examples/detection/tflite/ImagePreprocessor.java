@@ -0,0 +1,247 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
+import org.tensorflow.lite.examples.engine.Component;
+import org.tensorflow.lite.examples.engine.Preprocessor;
+
+/**
+ * Turns a square ARGB bitmap into the model's input tensor, appending it at the buffer position.
+ *
+ * <p>The float/quantized choice is made once by {@link #create}, so the per-pixel loop has no
+ * branches. The float path normalizes through a 256-entry table and writes each image into the
+ * buffer with one bulk {@code FloatBuffer.put}; the native path does the same conversion with NEON
+ * in the engine library. {@link #process(YuvFrame, Matrix, ByteBuffer)} samples a face straight
+ * from the camera planes instead of going through intermediate bitmaps.
+ */
+public abstract class ImagePreprocessor {
+  protected final int inputSize;
+  protected final int[] pixels;
+
+  ImagePreprocessor(final int inputSize) {
+    this.inputSize = inputSize;
+    this.pixels = new int[inputSize * inputSize];
+  }
+
+  /**
+   * @param useNative use the engine's native implementation for float models when it is available;
+   *     falls back to the lookup table otherwise.
+   */
+  public static ImagePreprocessor create(
+      final int inputSize, final boolean quantized, final float mean, final float std,
+      final boolean useNative) {
+    if (quantized) {
+      return new Quantized(inputSize);
+    }
+    if (useNative) {
+      final Preprocessor engine = new Preprocessor();
+      if (Component.Companion.getLibraryFound()) {
+        return new Native(inputSize, mean, std, engine);
+      }
+    }
+    return new Lookup(inputSize, mean, std);
+  }
+
+  /** Bytes one image takes in the input buffer. */
+  public abstract int getBytesPerImage();
+
+  /** Writes {@code bitmap} at {@code buffer}'s position and advances the position past it. */
+  public void process(final Bitmap bitmap, final ByteBuffer buffer) {
+    bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+    writePixels(buffer);
+  }
+
+  /**
+   * Samples the input straight from a camera frame and writes it like {@link #process(Bitmap,
+   * ByteBuffer)}. {@code inputToFrame} maps input pixel centres to frame coordinates, so face crop,
+   * scaling, rotation and mirroring are a single affine transform; sampling is nearest-neighbour
+   * like an unfiltered {@code Canvas.drawBitmap}.
+   */
+  public void process(final YuvFrame frame, final Matrix inputToFrame, final ByteBuffer buffer) {
+    sample(frame, inputToFrame, pixelSink);
+    writePixels(buffer);
+  }
+
+  /** Short name used in stat output. */
+  public abstract String getName();
+
+  /** Converts {@link #pixels} into the buffer at its position and advances it. */
+  protected abstract void writePixels(ByteBuffer buffer);
+
+  protected interface PixelSink {
+    void put(int i, int argb);
+  }
+
+  private final float[] affine = new float[9];
+  private final PixelSink pixelSink = new PixelSink() {
+    @Override
+    public void put(final int i, final int argb) {
+      pixels[i] = argb;
+    }
+  };
+
+  protected void sample(final YuvFrame frame, final Matrix inputToFrame, final PixelSink sink) {
+    inputToFrame.getValues(affine);
+    final float a = affine[Matrix.MSCALE_X];
+    final float b = affine[Matrix.MSKEW_X];
+    final float c = affine[Matrix.MTRANS_X];
+    final float d = affine[Matrix.MSKEW_Y];
+    final float e = affine[Matrix.MSCALE_Y];
+    final float f = affine[Matrix.MTRANS_Y];
+    for (int oy = 0, i = 0; oy < inputSize; oy++) {
+      float fx = a * 0.5f + b * (oy + 0.5f) + c;
+      float fy = d * 0.5f + e * (oy + 0.5f) + f;
+      for (int ox = 0; ox < inputSize; ox++, i++) {
+        sink.put(i, frame.argbAt((int) Math.floor(fx), (int) Math.floor(fy)));
+        fx += a;
+        fy += d;
+      }
+    }
+  }
+
+  private static class Quantized extends ImagePreprocessor {
+    private final byte[] staging;
+
+    Quantized(final int inputSize) {
+      super(inputSize);
+      staging = new byte[inputSize * inputSize * 3];
+    }
+
+    @Override
+    public int getBytesPerImage() {
+      return staging.length;
+    }
+
+    @Override
+    protected void writePixels(final ByteBuffer buffer) {
+      for (int i = 0, o = 0; i < pixels.length; i++, o += 3) {
+        final int p = pixels[i];
+        staging[o] = (byte) (p >> 16);
+        staging[o + 1] = (byte) (p >> 8);
+        staging[o + 2] = (byte) p;
+      }
+      buffer.put(staging);
+    }
+
+    @Override
+    public String getName() {
+      return "quantized";
+    }
+  }
+
+  private static class Lookup extends ImagePreprocessor {
+    private final float[] table = new float[256];
+    private final float[] staging;
+    // float view of the last buffer written to, so steady state doesn't allocate views
+    private ByteBuffer viewOf;
+    private FloatBuffer view;
+
+    Lookup(final int inputSize, final float mean, final float std) {
+      super(inputSize);
+      for (int v = 0; v < 256; v++) {
+        table[v] = (v - mean) / std;
+      }
+      staging = new float[inputSize * inputSize * 3];
+    }
+
+    @Override
+    public int getBytesPerImage() {
+      return staging.length * 4;
+    }
+
+    @Override
+    protected void writePixels(final ByteBuffer buffer) {
+      for (int i = 0; i < pixels.length; i++) {
+        store(i, pixels[i]);
+      }
+      flush(buffer);
+    }
+
+    // Single pass: each sampled pixel goes straight from YUV to normalized floats.
+    @Override
+    public void process(final YuvFrame frame, final Matrix inputToFrame, final ByteBuffer buffer) {
+      sample(frame, inputToFrame, sink);
+      flush(buffer);
+    }
+
+    private final PixelSink sink = new PixelSink() {
+      @Override
+      public void put(final int i, final int argb) {
+        store(i, argb);
+      }
+    };
+
+    private void store(final int i, final int p) {
+      final int o = i * 3;
+      staging[o] = table[(p >> 16) & 0xFF];
+      staging[o + 1] = table[(p >> 8) & 0xFF];
+      staging[o + 2] = table[p & 0xFF];
+    }
+
+    private void flush(final ByteBuffer buffer) {
+      if (viewOf != buffer) {
+        viewOf = buffer;
+        final ByteBuffer whole = buffer.duplicate();
+        whole.clear();
+        view = whole.order(buffer.order()).asFloatBuffer();
+      }
+      final int position = buffer.position();
+      view.position(position / 4);
+      view.put(staging);
+      buffer.position(position + staging.length * 4);
+    }
+
+    @Override
+    public String getName() {
+      return "lut";
+    }
+  }
+
+  private static class Native extends ImagePreprocessor {
+    private final float mean;
+    private final float std;
+    private final Preprocessor engine;
+    // used when the buffer isn't direct or the call fails
+    private final Lookup fallback;
+
+    Native(final int inputSize, final float mean, final float std, final Preprocessor engine) {
+      super(inputSize);
+      this.mean = mean;
+      this.std = std;
+      this.engine = engine;
+      this.fallback = new Lookup(inputSize, mean, std);
+    }
+
+    @Override
+    public int getBytesPerImage() {
+      return pixels.length * 3 * 4;
+    }
+
+    @Override
+    protected void writePixels(final ByteBuffer buffer) {
+      final int position = buffer.position();
+      if (engine.normalize(pixels, pixels.length, mean, std, buffer, position)) {
+        buffer.position(position + getBytesPerImage());
+      } else {
+        System.arraycopy(pixels, 0, fallback.pixels, 0, pixels.length);
+        fallback.writePixels(buffer);
+      }
+    }
+
+    // Sampling already touches every pixel, so the table version is cheaper than a second pass.
+    @Override
+    public void process(final YuvFrame frame, final Matrix inputToFrame, final ByteBuffer buffer) {
+      fallback.process(frame, inputToFrame, buffer);
+    }
+
+    @Override
+    public String getName() {
+      return engine.getHasNeon() ? "neon" : "native";
+    }
+  }
+}
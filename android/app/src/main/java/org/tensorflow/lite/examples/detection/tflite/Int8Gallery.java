@@ -0,0 +1,417 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+import org.tensorflow.lite.examples.engine.Component;
+import org.tensorflow.lite.examples.engine.Int8Dot;
+
+/**
+ * Gallery storing each embedding as symmetric int8 with a per-vector scale, a quarter of the
+ * float32 memory.
+ *
+ * <p>Row {@code r} is {@code scales[r] * codes[r * dim, (r + 1) * dim)} with components in [-127,
+ * 127]. A query is quantized the same way, so the scan is one integer dot product per row, done by
+ * the engine's NEON kernel when it is available and in plain Java otherwise. L2 distances are
+ * recovered as {@code |q|^2 + |r|^2 - 2 q.r} with {@code |r|^2} kept per row; under {@link
+ * Metric#COSINE} rows are normalized before quantization. Distances are therefore approximations;
+ * {@link #measureAgreement} compares the ranking with the float gallery it was built from.
+ *
+ * <p>Searches share query scratch, so concurrent searches take turns.
+ */
+public class Int8Gallery implements EmbeddingGallery {
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int REMOVED = -1;
+  private static final int MAX_CODE = 127;
+
+  private final int dim;
+  private final Metric metric;
+
+  private byte[] codes;
+  private float[] scales;
+  // squared norm of each stored vector, before quantization
+  private float[] norms;
+  private int[] rowLabels;
+  private int rowCount;
+  private int removedCount;
+  private final LabelTable labels;
+
+  private Int8Dot engine;
+
+  // query scratch
+  private final byte[] queryCodes;
+  private int[] dots = new int[INITIAL_CAPACITY];
+
+  public Int8Gallery(final int dim, final Metric metric) {
+    this.dim = dim;
+    this.metric = metric;
+    this.codes = new byte[INITIAL_CAPACITY * dim];
+    this.scales = new float[INITIAL_CAPACITY];
+    this.norms = new float[INITIAL_CAPACITY];
+    this.rowLabels = new int[INITIAL_CAPACITY];
+    this.labels = new LabelTable();
+    this.queryCodes = new byte[dim];
+  }
+
+  private Int8Gallery(final Int8Gallery other) {
+    this.dim = other.dim;
+    this.metric = other.metric;
+    this.codes = other.codes.clone();
+    this.scales = other.scales.clone();
+    this.norms = other.norms.clone();
+    this.rowLabels = other.rowLabels.clone();
+    this.rowCount = other.rowCount;
+    this.removedCount = other.removedCount;
+    this.labels = other.labels.copy();
+    this.engine = other.engine;
+    this.queryCodes = new byte[dim];
+  }
+
+  @Override
+  public Int8Gallery copy() {
+    return new Int8Gallery(this);
+  }
+
+  /** Quantizes the live samples of {@code source} into a new gallery of the same metric. */
+  public static Int8Gallery quantize(final FaceGallery source) {
+    final Int8Gallery gallery = new Int8Gallery(source.getDim(), source.getMetric());
+    final float[] row = new float[source.getDim()];
+    for (int r = 0; r < source.rowCount(); r++) {
+      if (source.isLive(r)) {
+        source.getEmbedding(r, row);
+        gallery.add(source.getLabel(r), row);
+      }
+    }
+    return gallery;
+  }
+
+  /** Scans with the engine's native kernel when the library is available. */
+  public synchronized void setUseNative(final boolean useNative) {
+    engine = null;
+    if (useNative) {
+      final Int8Dot dot = new Int8Dot();
+      if (Component.Companion.getLibraryFound()) {
+        engine = dot;
+      }
+    }
+  }
+
+  /** "neon", "native" or "java", whichever computes the dot products. */
+  public synchronized String getKernelName() {
+    return engine == null ? "java" : engine.getHasNeon() ? "neon" : "native";
+  }
+
+  /** Bytes used by codes, scales, norms and labels of the rows. */
+  public long getStorageBytes() {
+    return (long) rowCount * (dim + 3 * 4);
+  }
+
+  @Override
+  public int getDim() {
+    return dim;
+  }
+
+  @Override
+  public Metric getMetric() {
+    return metric;
+  }
+
+  @Override
+  public int size() {
+    return rowCount - removedCount;
+  }
+
+  @Override
+  public int labelCount() {
+    return labels.liveCount();
+  }
+
+  @Override
+  public int samplesOf(final String label) {
+    return labels.samplesOf(label);
+  }
+
+  @Override
+  public int add(final String label, final float[] embedding) {
+    if (embedding.length != dim) {
+      throw new IllegalArgumentException(
+          "Embedding has " + embedding.length + " dimensions, gallery expects " + dim);
+    }
+    ensureRowCapacity(rowCount + 1);
+    final int row = rowCount++;
+    final int idx = labels.intern(label);
+    rowLabels[row] = idx;
+    labels.addSample(idx);
+
+    final float[] v = embedding.clone();
+    if (metric == Metric.COSINE) {
+      Metric.normalize(v, 0, dim);
+    }
+    final float norm = Metric.norm(v, 0, dim);
+    norms[row] = norm * norm;
+    scales[row] = quantize(v, codes, row * dim);
+    return row;
+  }
+
+  @Override
+  public int remove(final String label) {
+    final int idx = labels.find(label);
+    if (idx < 0 || labels.samples(idx) == 0) {
+      return 0;
+    }
+    int removed = 0;
+    for (int row = 0; row < rowCount; row++) {
+      if (rowLabels[row] == idx) {
+        rowLabels[row] = REMOVED;
+        removed++;
+      }
+    }
+    labels.clearSamples(idx);
+    removedCount += removed;
+    if (removedCount > size()) {
+      compact();
+    }
+    return removed;
+  }
+
+  @Override
+  public void compact() {
+    if (removedCount == 0) {
+      return;
+    }
+    int dst = 0;
+    for (int src = 0; src < rowCount; src++) {
+      if (rowLabels[src] == REMOVED) {
+        continue;
+      }
+      if (dst != src) {
+        System.arraycopy(codes, src * dim, codes, dst * dim, dim);
+        scales[dst] = scales[src];
+        norms[dst] = norms[src];
+        rowLabels[dst] = rowLabels[src];
+      }
+      dst++;
+    }
+    rowCount = dst;
+    removedCount = 0;
+  }
+
+  @Override
+  public void clear() {
+    rowCount = 0;
+    removedCount = 0;
+    labels.clear();
+  }
+
+  @Override
+  public synchronized boolean findNearest(final float[] query, final Neighbor out) {
+    final float queryScale = scanDots(query);
+    float best = Float.MAX_VALUE;
+    int bestRow = -1;
+    for (int row = 0; row < rowCount; row++) {
+      if (rowLabels[row] == REMOVED) {
+        continue;
+      }
+      final float key = key(row, queryScale);
+      if (key < best) {
+        best = key;
+        bestRow = row;
+      }
+    }
+
+    if (bestRow < 0) {
+      out.clear();
+      return false;
+    }
+    out.set(labels.get(rowLabels[bestRow]), reportedDistance(query, best), bestRow);
+    return true;
+  }
+
+  @Override
+  public synchronized int findNearest(final float[] query, final int k, final Neighbor[] out) {
+    if (k <= 0) {
+      return 0;
+    }
+    final float queryScale = scanDots(query);
+    final float[] labelBest = new float[labels.size()];
+    final int[] labelRow = new int[labels.size()];
+    Arrays.fill(labelRow, -1);
+    for (int row = 0; row < rowCount; row++) {
+      final int label = rowLabels[row];
+      if (label == REMOVED) {
+        continue;
+      }
+      final float key = key(row, queryScale);
+      if (labelRow[label] < 0 || key < labelBest[label]) {
+        labelBest[label] = key;
+        labelRow[label] = row;
+      }
+    }
+
+    // bounded heap keeps the k nearest labels, worst on top
+    final IntFloatHeap nearest = new IntFloatHeap(k + 1, true);
+    for (int label = 0; label < labelRow.length; label++) {
+      if (labelRow[label] < 0) {
+        continue;
+      }
+      if (nearest.size() < k) {
+        nearest.push(label, labelBest[label]);
+      } else if (labelBest[label] < nearest.peekKey()) {
+        nearest.pop();
+        nearest.push(label, labelBest[label]);
+      }
+    }
+    final int count = nearest.size();
+    for (int i = count - 1; i >= 0; i--) {
+      final float distance = reportedDistance(query, nearest.peekKey());
+      final int label = nearest.pop();
+      out[i].set(labels.get(label), distance, labelRow[label]);
+    }
+    return count;
+  }
+
+  /**
+   * Fraction of the {@code k} nearest labels {@code reference} finds for each query that this
+   * gallery finds as well (recall@k of the int8 ranking against the float one). With {@code k}
+   * 1 this is how often both agree on the best match.
+   */
+  public float measureAgreement(
+      final EmbeddingGallery reference, final float[][] queries, final int k) {
+    final Neighbor[] expected = new Neighbor[k];
+    final Neighbor[] actual = new Neighbor[k];
+    for (int i = 0; i < k; i++) {
+      expected[i] = new Neighbor();
+      actual[i] = new Neighbor();
+    }
+    int total = 0;
+    int hits = 0;
+    for (final float[] query : queries) {
+      final int n = reference.findNearest(query, k, expected);
+      final int m = findNearest(query, k, actual);
+      for (int i = 0; i < n; i++) {
+        for (int j = 0; j < m; j++) {
+          if (expected[i].getLabel().equals(actual[j].getLabel())) {
+            hits++;
+            break;
+          }
+        }
+      }
+      total += n;
+    }
+    return total == 0 ? 1f : hits / (float) total;
+  }
+
+  // Accessors for GalleryFile.
+
+  int rowCount() {
+    return rowCount;
+  }
+
+  boolean isLive(final int row) {
+    return rowLabels[row] != REMOVED;
+  }
+
+  String getLabel(final int row) {
+    final int idx = rowLabels[row];
+    return idx == REMOVED ? null : labels.get(idx);
+  }
+
+  float getScale(final int row) {
+    return scales[row];
+  }
+
+  /** Squared norm of the vector stored at {@code row}, before quantization. */
+  float getSquaredNorm(final int row) {
+    return norms[row];
+  }
+
+  /** Copies the codes of {@code row} into {@code out[offset]}. */
+  void getCodes(final int row, final byte[] out, final int offset) {
+    System.arraycopy(codes, row * dim, out, offset, dim);
+  }
+
+  /** Appends an already quantized sample, as read back from a file. */
+  int addEncoded(
+      final String label, final byte[] rowCodes, final int offset, final float scale,
+      final float squaredNorm) {
+    ensureRowCapacity(rowCount + 1);
+    final int row = rowCount++;
+    final int idx = labels.intern(label);
+    rowLabels[row] = idx;
+    labels.addSample(idx);
+    System.arraycopy(rowCodes, offset, codes, row * dim, dim);
+    scales[row] = scale;
+    norms[row] = squaredNorm;
+    return row;
+  }
+
+  /**
+   * Quantizes {@code query} into {@link #queryCodes}, fills {@link #dots} with its integer dot
+   * product with every row and returns the query's scale.
+   */
+  private float scanDots(final float[] query) {
+    final float queryScale = quantize(query, queryCodes, 0);
+    if (dots.length < rowCount) {
+      dots = new int[rowLabels.length];
+    }
+    if (engine == null || !engine.dotAll(queryCodes, codes, rowCount, dim, dots)) {
+      final byte[] q = queryCodes;
+      final byte[] codes = this.codes;
+      for (int row = 0, base = 0; row < rowCount; row++, base += dim) {
+        int dot = 0;
+        for (int i = 0; i < dim; i++) {
+          dot += q[i] * codes[base + i];
+        }
+        dots[row] = dot;
+      }
+    }
+    return queryScale;
+  }
+
+  /**
+   * Ranking key of the last scanned query against {@code row}, smaller is nearer: {@code |r|^2 -
+   * 2 q.r} (the squared L2 distance without the query's constant {@code |q|^2}), or {@code -q.r}
+   * under {@link Metric#COSINE}.
+   */
+  private float key(final int row, final float queryScale) {
+    final float dot = dots[row] * queryScale * scales[row];
+    return metric == Metric.COSINE ? -dot : norms[row] - 2 * dot;
+  }
+
+  private float reportedDistance(final float[] query, final float key) {
+    final float norm = Metric.norm(query, 0, dim);
+    if (metric == Metric.COSINE) {
+      return norm > 0 ? 1 + key / norm : 1;
+    }
+    return (float) Math.sqrt(Math.max(0, norm * norm + key));
+  }
+
+  /**
+   * Writes {@code v} as int8 at {@code out[offset]}, scaled so its largest component maps to
+   * +-127, and returns the scale to multiply the codes by.
+   */
+  private static float quantize(final float[] v, final byte[] out, final int offset) {
+    float maxAbs = 0;
+    for (final float x : v) {
+      maxAbs = Math.max(maxAbs, Math.abs(x));
+    }
+    if (maxAbs == 0) {
+      Arrays.fill(out, offset, offset + v.length, (byte) 0);
+      return 0;
+    }
+    final float inverse = MAX_CODE / maxAbs;
+    for (int i = 0; i < v.length; i++) {
+      out[offset + i] = (byte) Math.round(v[i] * inverse);
+    }
+    return maxAbs / MAX_CODE;
+  }
+
+  private void ensureRowCapacity(final int rows) {
+    if (rows <= rowLabels.length) {
+      return;
+    }
+    final int capacity = Math.max(rows, rowLabels.length * 2);
+    codes = Arrays.copyOf(codes, capacity * dim);
+    scales = Arrays.copyOf(scales, capacity);
+    norms = Arrays.copyOf(norms, capacity);
+    rowLabels = Arrays.copyOf(rowLabels, capacity);
+  }
+}
@@ -0,0 +1,89 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of (int, float) pairs ordered by the float key, backed by primitive arrays so the
+ * search loops can reuse one instance instead of boxing into a PriorityQueue.
+ */
+class IntFloatHeap {
+  private final boolean maxHeap;
+  private int[] values;
+  private float[] keys;
+  private int size;
+
+  IntFloatHeap(final int capacity, final boolean maxHeap) {
+    this.maxHeap = maxHeap;
+    this.values = new int[Math.max(1, capacity)];
+    this.keys = new float[Math.max(1, capacity)];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  float peekKey() {
+    return keys[0];
+  }
+
+  int peekValue() {
+    return values[0];
+  }
+
+  void push(final int value, final float key) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+      keys = Arrays.copyOf(keys, size * 2);
+    }
+    int i = size++;
+    while (i > 0) {
+      final int parent = (i - 1) >>> 1;
+      if (!before(key, keys[parent])) {
+        break;
+      }
+      values[i] = values[parent];
+      keys[i] = keys[parent];
+      i = parent;
+    }
+    values[i] = value;
+    keys[i] = key;
+  }
+
+  /** Removes the top element and returns its value. */
+  int pop() {
+    final int top = values[0];
+    final int lastValue = values[--size];
+    final float lastKey = keys[size];
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && before(keys[child + 1], keys[child])) {
+        child++;
+      }
+      if (!before(keys[child], lastKey)) {
+        break;
+      }
+      values[i] = values[child];
+      keys[i] = keys[child];
+      i = child;
+    }
+    values[i] = lastValue;
+    keys[i] = lastKey;
+    return top;
+  }
+
+  private boolean before(final float a, final float b) {
+    return maxHeap ? a > b : a < b;
+  }
+}
@@ -0,0 +1,379 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
+
+/**
+ * A fixed set of interpreters over one memory-mapped model, so several threads can compute
+ * embeddings at the same time.
+ *
+ * <p>An {@link Interpreter} is not thread-safe, so each {@link Slot} owns one together with its
+ * input buffers, output holders and preprocessor, and belongs to a single thread between {@link
+ * #acquire} and {@link #release}. The model buffer is read-only and shared by every interpreter.
+ * Slots are created with their own thread counts and {@link #acquire} hands out the free slot with
+ * the lowest index, so the first slot can be given the most threads. Settings changed at run time
+ * reach a slot the next time it is acquired, never while it runs.
+ */
+public class InterpreterPool {
+  /** The calls a slot makes on its {@link Interpreter}, so tests can run the pool without one. */
+  interface Runner {
+    void run(Object[] inputs, Map<Integer, Object> outputs);
+
+    void resizeInput(int index, int[] shape);
+
+    void setNumThreads(int numThreads);
+
+    void setUseNNAPI(boolean useNNAPI);
+
+    void close();
+  }
+
+  /** Creates the runner of one slot over the shared model. */
+  interface RunnerFactory {
+    Runner create(ByteBuffer model, int numThreads);
+  }
+
+  private static final RunnerFactory INTERPRETERS = new RunnerFactory() {
+    @Override
+    public Runner create(final ByteBuffer model, final int numThreads) {
+      final Interpreter interpreter =
+          new Interpreter(model, new Interpreter.Options().setNumThreads(numThreads));
+      return new Runner() {
+        @Override
+        public void run(final Object[] inputs, final Map<Integer, Object> outputs) {
+          interpreter.runForMultipleInputsOutputs(inputs, outputs);
+        }
+
+        @Override
+        public void resizeInput(final int index, final int[] shape) {
+          interpreter.resizeInput(index, shape);
+        }
+
+        @Override
+        public void setNumThreads(final int numThreads) {
+          interpreter.setNumThreads(numThreads);
+        }
+
+        @Override
+        public void setUseNNAPI(final boolean useNNAPI) {
+          interpreter.setUseNNAPI(useNNAPI);
+        }
+
+        @Override
+        public void close() {
+          interpreter.close();
+        }
+      };
+    }
+  };
+
+  /** One interpreter and the buffers it runs on. */
+  static class Slot implements Comparable<Slot> {
+    private final int index;
+    private final Runner interpreter;
+    private final int inputSize;
+    private final ByteBuffer[] batchImgData;
+    private final float[][][] batchOutputs;
+    // Reused by every invocation so steady-state recognition doesn't allocate
+    private final Object[] inputArray = new Object[1];
+    private final Map<Integer, Object> outputMap = new HashMap<>();
+    private ImagePreprocessor preprocessor;
+    private int bytesPerImage;
+    // batch size the input tensor is currently resized to
+    private int inputBatchSize = 1;
+    private int settingsVersion;
+
+    private boolean logStats;
+    private long preprocessNanos;
+    private long inferenceNanos;
+    private int statImages;
+    private int statRuns;
+
+    private Slot(
+        final int index, final Runner interpreter, final int inputSize, final int maxBatchSize) {
+      this.index = index;
+      this.inputSize = inputSize;
+      this.interpreter = interpreter;
+      batchImgData = new ByteBuffer[maxBatchSize + 1];
+      batchOutputs = new float[maxBatchSize + 1][][];
+    }
+
+    /** Runs one bitmap through the model into {@code out}. */
+    void run(final Bitmap bitmap, final float[] out) {
+      Trace.beginSection("preprocessBitmap");
+      final long start = logStats ? SystemClock.elapsedRealtimeNanos() : 0;
+      final ByteBuffer input = input(1);
+      input.rewind();
+      preprocessor.process(bitmap, input);
+      if (logStats) {
+        preprocessNanos += SystemClock.elapsedRealtimeNanos() - start;
+        statImages++;
+      }
+      Trace.endSection(); // preprocessBitmap
+
+      batchOutput(1)[0] = out;
+      invoke(1);
+    }
+
+    /**
+     * Runs faces [start, start + n) through the model in one invocation, straight into out rows.
+     * Faces come either from bitmaps or are sampled from frame with inputToFrame.
+     */
+    void runBatch(
+        final List<Bitmap> bitmaps, final YuvFrame frame, final Matrix[] inputToFrame,
+        final int start, final int n, final float[][] out) {
+      Trace.beginSection("recognizeBatch");
+
+      Trace.beginSection("preprocessBitmap");
+      final ByteBuffer input = input(n);
+      final long startNanos = logStats ? SystemClock.elapsedRealtimeNanos() : 0;
+      input.rewind();
+      final float[][] output = batchOutput(n);
+      for (int i = 0; i < n; i++) {
+        if (bitmaps != null) {
+          preprocessor.process(bitmaps.get(start + i), input);
+        } else {
+          preprocessor.process(frame, inputToFrame[start + i], input);
+        }
+        output[i] = out[start + i];
+      }
+      if (logStats) {
+        preprocessNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+        statImages += n;
+      }
+      Trace.endSection(); // preprocessBitmap
+
+      invoke(n);
+
+      Trace.endSection(); // recognizeBatch
+    }
+
+    // Input buffer for a batch of n, allocated on first use.
+    private ByteBuffer input(final int n) {
+      ByteBuffer input = batchImgData[n];
+      if (input == null) {
+        input = ByteBuffer.allocateDirect(n * bytesPerImage);
+        input.order(ByteOrder.nativeOrder());
+        batchImgData[n] = input;
+      }
+      return input;
+    }
+
+    // Output holder for a batch of n; its rows are pointed at the caller's arrays before each run.
+    private float[][] batchOutput(final int n) {
+      if (batchOutputs[n] == null) {
+        batchOutputs[n] = new float[n][];
+      }
+      return batchOutputs[n];
+    }
+
+    // Runs the model on batchImgData[n] into batchOutputs[n] reusing the input and output holders.
+    private void invoke(final int n) {
+      resizeInputBatch(n);
+      inputArray[0] = batchImgData[n];
+      outputMap.put(0, batchOutputs[n]);
+
+      Trace.beginSection("run");
+      final long start = logStats ? SystemClock.elapsedRealtimeNanos() : 0;
+      interpreter.run(inputArray, outputMap);
+      if (logStats) {
+        inferenceNanos += SystemClock.elapsedRealtimeNanos() - start;
+        statRuns++;
+      }
+      Trace.endSection();
+
+      // don't keep the caller's arrays reachable
+      Arrays.fill(batchOutputs[n], null);
+    }
+
+    // Resizing reallocates the interpreter's tensors, so only do it when the batch size changes.
+    private void resizeInputBatch(final int n) {
+      if (n != inputBatchSize) {
+        interpreter.resizeInput(0, new int[] {n, inputSize, inputSize, 3});
+        inputBatchSize = n;
+      }
+    }
+
+    @Override
+    public int compareTo(final Slot other) {
+      return Integer.compare(index, other.index);
+    }
+  }
+
+  private final Slot[] slots;
+  private final PriorityBlockingQueue<Slot> free;
+  private final int inputSize;
+  private final boolean quantized;
+  private final float mean;
+  private final float std;
+
+  // run-time settings, applied to each slot on acquire when its version is behind
+  private int settingsVersion;
+  private int numThreads = -1;
+  private Boolean useNNAPI;
+  private boolean useNativePreprocessing;
+  private boolean logStats;
+
+  // stats of released slots
+  private long preprocessNanos;
+  private long inferenceNanos;
+  private int statImages;
+  private int statRuns;
+
+  /**
+   * @param model memory-mapped model shared by every interpreter.
+   * @param maxBatchSize largest number of faces one invocation takes.
+   * @param threadsPerSlot thread count of each interpreter; its length is the pool size.
+   */
+  public InterpreterPool(
+      final ByteBuffer model, final int inputSize, final boolean quantized, final float mean,
+      final float std, final int maxBatchSize, final int... threadsPerSlot) {
+    this(INTERPRETERS, model, inputSize, quantized, mean, std, maxBatchSize, threadsPerSlot);
+  }
+
+  InterpreterPool(
+      final RunnerFactory runners, final ByteBuffer model, final int inputSize,
+      final boolean quantized, final float mean, final float std, final int maxBatchSize,
+      final int... threadsPerSlot) {
+    if (threadsPerSlot.length == 0) {
+      throw new IllegalArgumentException("Need at least one interpreter");
+    }
+    this.inputSize = inputSize;
+    this.quantized = quantized;
+    this.mean = mean;
+    this.std = std;
+    slots = new Slot[threadsPerSlot.length];
+    free = new PriorityBlockingQueue<>(slots.length);
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new Slot(
+          i, runners.create(model, threadsPerSlot[i]), inputSize, maxBatchSize);
+      setPreprocessor(slots[i]);
+      free.add(slots[i]);
+    }
+  }
+
+  /** Takes a free slot, waiting for one if all are in use. */
+  Slot acquire() {
+    // callers have no way to proceed without a slot, so wait through interrupts and restore the flag
+    boolean interrupted = false;
+    Slot slot;
+    while (true) {
+      try {
+        slot = free.take();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    applySettings(slot);
+    return slot;
+  }
+
+  /** Returns a slot taken with {@link #acquire}. */
+  void release(final Slot slot) {
+    synchronized (this) {
+      preprocessNanos += slot.preprocessNanos;
+      inferenceNanos += slot.inferenceNanos;
+      statImages += slot.statImages;
+      statRuns += slot.statRuns;
+    }
+    slot.preprocessNanos = 0;
+    slot.inferenceNanos = 0;
+    slot.statImages = 0;
+    slot.statRuns = 0;
+    free.add(slot);
+  }
+
+  public int size() {
+    return slots.length;
+  }
+
+  /** Bytes one image takes in the input buffer. */
+  public int getBytesPerImage() {
+    return slots[0].bytesPerImage;
+  }
+
+  /** Overrides every interpreter's thread count. */
+  public synchronized void setNumThreads(final int numThreads) {
+    this.numThreads = numThreads;
+    settingsVersion++;
+  }
+
+  public synchronized void setUseNNAPI(final boolean useNNAPI) {
+    this.useNNAPI = useNNAPI;
+    settingsVersion++;
+  }
+
+  /** Switches input preprocessing between the Java lookup table and the engine's NEON code. */
+  public synchronized void setUseNativePreprocessing(final boolean useNative) {
+    useNativePreprocessing = useNative;
+    settingsVersion++;
+  }
+
+  public synchronized void enableStatLogging(final boolean logStats) {
+    this.logStats = logStats;
+    preprocessNanos = 0;
+    inferenceNanos = 0;
+    statImages = 0;
+    statRuns = 0;
+    settingsVersion++;
+  }
+
+  public synchronized String getStatString() {
+    if (!logStats || statRuns == 0) {
+      return "";
+    }
+    return String.format(
+        Locale.US, "%s preprocess=%.1fus/face run=%.2fms/invoke (%d faces, %d invokes, %d interpreters)",
+        slots[0].preprocessor.getName(), preprocessNanos / 1000.0 / Math.max(1, statImages),
+        inferenceNanos / 1e6 / statRuns, statImages, statRuns, slots.length);
+  }
+
+  /** Closes every interpreter; call once no slot is in use. */
+  public void close() {
+    for (final Slot slot : slots) {
+      slot.interpreter.close();
+    }
+  }
+
+  private synchronized void applySettings(final Slot slot) {
+    if (slot.settingsVersion == settingsVersion) {
+      return;
+    }
+    if (numThreads > 0) {
+      slot.interpreter.setNumThreads(numThreads);
+    }
+    if (useNNAPI != null) {
+      slot.interpreter.setUseNNAPI(useNNAPI);
+    }
+    setPreprocessor(slot);
+    slot.logStats = logStats;
+    slot.settingsVersion = settingsVersion;
+  }
+
+  private void setPreprocessor(final Slot slot) {
+    slot.preprocessor =
+        ImagePreprocessor.create(inputSize, quantized, mean, std, useNativePreprocessing);
+    final int bytesPerImage = slot.preprocessor.getBytesPerImage();
+    if (bytesPerImage != slot.bytesPerImage) {
+      Arrays.fill(slot.batchImgData, null);
+      slot.bytesPerImage = bytesPerImage;
+    }
+  }
+}
@@ -0,0 +1,484 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compressed gallery for memory-constrained devices (IVF-PQ).
+ *
+ * <p>Embeddings are assigned to the nearest of {@code nlist} coarse centroids (inverted file) and
+ * the residual is product-quantized to {@code m} bytes, so a sample costs {@code m} bytes of code
+ * plus two ints of bookkeeping instead of 768 bytes of floats. A query only visits the
+ * {@code nprobe} nearest lists and scores their codes with asymmetric distance tables, so reported
+ * distances are approximations of the L2 distance.
+ *
+ * <p>The gallery inherits the {@link Metric} of the gallery it was trained from. Under {@link
+ * Metric#COSINE} samples and queries are normalized, where the L2 order equals the dot product
+ * order, and the squared distance {@code d2} is reported as the cosine distance {@code d2 / 2}.
+ *
+ * <p>Codebooks are trained from enrolled data with {@link #train}; samples registered afterwards
+ * are encoded with the same codebooks. Searches share query scratch, so concurrent searches take
+ * turns.
+ */
+public class IvfPqGallery implements EmbeddingGallery {
+  public static final int DEFAULT_CODE_SIZE = 16;
+  public static final int DEFAULT_NPROBE = 8;
+  // fewer samples than this and the codebooks are too poor to be worth it
+  public static final int MIN_TRAINING_SAMPLES = 1000;
+  private static final int MAX_TRAINING_SAMPLES = 20000;
+  private static final int MAX_LISTS = 1024;
+  private static final int COARSE_ITERATIONS = 20;
+  private static final int REMOVED = -1;
+
+  private final int dim;
+  private final Metric metric;
+  private final int nlist;
+  private int nprobe;
+  private final float[] coarse;
+  private final ProductQuantizer pq;
+  private final int codeSize;
+
+  private byte[] codes;
+  private int[] rowLabels;
+  private int rowCount;
+  private int removedCount;
+  private final LabelTable labels;
+
+  // rows of each inverted list
+  private final int[][] lists;
+  private final int[] listSizes;
+
+  // query scratch
+  private final float[] unitQuery;
+  private final float[] residual;
+  private final float[] table;
+  private final IntFloatHeap probes;
+
+  /** An empty gallery over trained codebooks, see {@link #train} and {@link GalleryFile}. */
+  IvfPqGallery(
+      final int dim, final Metric metric, final float[] coarse, final int nlist,
+      final ProductQuantizer pq, final int nprobe) {
+    this.dim = dim;
+    this.metric = metric;
+    this.coarse = coarse;
+    this.nlist = nlist;
+    this.pq = pq;
+    this.codeSize = pq.getCodeSize();
+    this.nprobe = Math.min(nprobe, nlist);
+    this.codes = new byte[64 * codeSize];
+    this.rowLabels = new int[64];
+    this.lists = new int[nlist][];
+    this.listSizes = new int[nlist];
+    for (int i = 0; i < nlist; i++) {
+      lists[i] = new int[8];
+    }
+    this.labels = new LabelTable();
+    this.unitQuery = new float[dim];
+    this.residual = new float[dim];
+    this.table = new float[pq.getTableSize()];
+    this.probes = new IntFloatHeap(this.nprobe + 1, true);
+  }
+
+  // codebooks are never modified after training and are shared with the copy
+  private IvfPqGallery(final IvfPqGallery other) {
+    this.dim = other.dim;
+    this.metric = other.metric;
+    this.coarse = other.coarse;
+    this.nlist = other.nlist;
+    this.pq = other.pq;
+    this.codeSize = other.codeSize;
+    this.nprobe = other.nprobe;
+    this.codes = other.codes.clone();
+    this.rowLabels = other.rowLabels.clone();
+    this.rowCount = other.rowCount;
+    this.removedCount = other.removedCount;
+    this.labels = other.labels.copy();
+    this.lists = new int[nlist][];
+    for (int i = 0; i < nlist; i++) {
+      lists[i] = other.lists[i].clone();
+    }
+    this.listSizes = other.listSizes.clone();
+    this.unitQuery = new float[dim];
+    this.residual = new float[dim];
+    this.table = new float[pq.getTableSize()];
+    this.probes = new IntFloatHeap(this.nprobe + 1, true);
+  }
+
+  @Override
+  public IvfPqGallery copy() {
+    return new IvfPqGallery(this);
+  }
+
+  /**
+   * Trains coarse and product quantizers on the live samples of {@code source} and returns a
+   * compressed copy of it. {@code source} is left untouched.
+   *
+   * @param codeSize bytes per sample; must divide the embedding dimension.
+   */
+  public static IvfPqGallery train(
+      final FaceGallery source, final int codeSize, final int nprobe) {
+    final int n = source.size();
+    if (n == 0) {
+      throw new IllegalArgumentException("Nothing to train on");
+    }
+    final int dim = source.getDim();
+    final Random random = new Random(42);
+
+    // training set: every live row, subsampled for very large galleries
+    final int trainCount = Math.min(n, MAX_TRAINING_SAMPLES);
+    final float[] train = new float[trainCount * dim];
+    final float[] row = new float[dim];
+    int taken = 0;
+    int seen = 0;
+    for (int r = 0; r < source.rowCount() && taken < trainCount; r++) {
+      if (!source.isLive(r)) {
+        continue;
+      }
+      // reservoir-free stride sampling keeps the pass single and deterministic
+      if ((long) seen++ * trainCount / n >= taken) {
+        source.getEmbedding(r, row);
+        System.arraycopy(row, 0, train, taken++ * dim, dim);
+      }
+    }
+
+    final int nlist = Math.max(1, Math.min(MAX_LISTS, (int) Math.sqrt(taken)));
+    final float[] coarse = KMeans.train(train, taken, dim, nlist, COARSE_ITERATIONS, random);
+    final int lists = coarse.length / dim;
+
+    // product quantizer is trained on residuals to the coarse centroids
+    for (int p = 0; p < taken; p++) {
+      final int c = KMeans.nearest(coarse, lists, dim, train, p * dim);
+      for (int d = 0; d < dim; d++) {
+        train[p * dim + d] -= coarse[c * dim + d];
+      }
+    }
+    final ProductQuantizer pq = ProductQuantizer.train(train, taken, dim, codeSize, random);
+
+    final IvfPqGallery gallery =
+        new IvfPqGallery(dim, source.getMetric(), coarse, lists, pq, nprobe);
+    for (int r = 0; r < source.rowCount(); r++) {
+      if (source.isLive(r)) {
+        source.getEmbedding(r, row);
+        gallery.add(source.getLabel(r), row);
+      }
+    }
+    return gallery;
+  }
+
+  public void setNprobe(final int nprobe) {
+    this.nprobe = Math.max(1, Math.min(nprobe, nlist));
+  }
+
+  /** Bytes used by codes and per-sample bookkeeping, excluding codebooks. */
+  public long getStorageBytes() {
+    return (long) rowCount * (codeSize + 2 * 4);
+  }
+
+  @Override
+  public int getDim() {
+    return dim;
+  }
+
+  @Override
+  public Metric getMetric() {
+    return metric;
+  }
+
+  @Override
+  public int size() {
+    return rowCount - removedCount;
+  }
+
+  @Override
+  public int labelCount() {
+    return labels.liveCount();
+  }
+
+  @Override
+  public int samplesOf(final String label) {
+    return labels.samplesOf(label);
+  }
+
+  @Override
+  public int add(final String label, final float[] embedding) {
+    if (embedding.length != dim) {
+      throw new IllegalArgumentException(
+          "Embedding has " + embedding.length + " dimensions, gallery expects " + dim);
+    }
+    if (rowCount == rowLabels.length) {
+      rowLabels = Arrays.copyOf(rowLabels, rowCount * 2);
+      codes = Arrays.copyOf(codes, rowCount * 2 * codeSize);
+    }
+    final int row = rowCount++;
+    final int idx = labels.intern(label);
+    rowLabels[row] = idx;
+    labels.addSample(idx);
+
+    final float[] vector = metric == Metric.COSINE ? embedding.clone() : embedding;
+    if (metric == Metric.COSINE) {
+      Metric.normalize(vector, 0, dim);
+    }
+    final int list = KMeans.nearest(coarse, nlist, dim, vector, 0);
+    encodeResidual(vector, list, row);
+    appendToList(list, row);
+    return row;
+  }
+
+  @Override
+  public int remove(final String label) {
+    final int idx = labels.find(label);
+    if (idx < 0 || labels.samples(idx) == 0) {
+      return 0;
+    }
+    int removed = 0;
+    for (int row = 0; row < rowCount; row++) {
+      if (rowLabels[row] == idx) {
+        rowLabels[row] = REMOVED;
+        removed++;
+      }
+    }
+    labels.clearSamples(idx);
+    removedCount += removed;
+    if (removedCount > size()) {
+      compact();
+    }
+    return removed;
+  }
+
+  @Override
+  public void compact() {
+    if (removedCount == 0) {
+      return;
+    }
+    final int[] newRow = new int[rowCount];
+    int dst = 0;
+    for (int src = 0; src < rowCount; src++) {
+      if (rowLabels[src] == REMOVED) {
+        newRow[src] = REMOVED;
+        continue;
+      }
+      if (dst != src) {
+        System.arraycopy(codes, src * codeSize, codes, dst * codeSize, codeSize);
+        rowLabels[dst] = rowLabels[src];
+      }
+      newRow[src] = dst++;
+    }
+    rowCount = dst;
+    removedCount = 0;
+
+    for (int l = 0; l < nlist; l++) {
+      final int[] rows = lists[l];
+      int kept = 0;
+      for (int i = 0; i < listSizes[l]; i++) {
+        final int moved = newRow[rows[i]];
+        if (moved != REMOVED) {
+          rows[kept++] = moved;
+        }
+      }
+      listSizes[l] = kept;
+    }
+  }
+
+  @Override
+  public void clear() {
+    rowCount = 0;
+    removedCount = 0;
+    labels.clear();
+    Arrays.fill(listSizes, 0);
+  }
+
+  @Override
+  public synchronized boolean findNearest(final float[] rawQuery, final Neighbor out) {
+    final float[] query = selectProbes(rawQuery);
+    float best = Float.MAX_VALUE;
+    int bestRow = -1;
+    while (!probes.isEmpty()) {
+      final int list = probes.pop();
+      computeTable(query, list);
+      final int[] rows = lists[list];
+      for (int i = 0; i < listSizes[list]; i++) {
+        final int row = rows[i];
+        if (rowLabels[row] == REMOVED) {
+          continue;
+        }
+        final float distance = pq.distance(table, codes, row * codeSize);
+        if (distance < best) {
+          best = distance;
+          bestRow = row;
+        }
+      }
+    }
+
+    if (bestRow < 0) {
+      out.clear();
+      return false;
+    }
+    out.set(labels.get(rowLabels[bestRow]), reportedDistance(best), bestRow);
+    return true;
+  }
+
+  @Override
+  public synchronized int findNearest(final float[] rawQuery, final int k, final Neighbor[] out) {
+    if (k <= 0) {
+      return 0;
+    }
+    // nearest approximate distance per label over the probed lists
+    final float[] labelBest = new float[labels.size()];
+    final int[] labelRow = new int[labels.size()];
+    Arrays.fill(labelRow, -1);
+    final float[] query = selectProbes(rawQuery);
+    while (!probes.isEmpty()) {
+      final int list = probes.pop();
+      computeTable(query, list);
+      final int[] rows = lists[list];
+      for (int i = 0; i < listSizes[list]; i++) {
+        final int row = rows[i];
+        final int label = rowLabels[row];
+        if (label == REMOVED) {
+          continue;
+        }
+        final float distance = pq.distance(table, codes, row * codeSize);
+        if (labelRow[label] < 0 || distance < labelBest[label]) {
+          labelBest[label] = distance;
+          labelRow[label] = row;
+        }
+      }
+    }
+
+    // bounded heap keeps the k nearest labels, worst on top
+    final IntFloatHeap nearest = new IntFloatHeap(k + 1, true);
+    for (int label = 0; label < labelRow.length; label++) {
+      if (labelRow[label] < 0) {
+        continue;
+      }
+      if (nearest.size() < k) {
+        nearest.push(label, labelBest[label]);
+      } else if (labelBest[label] < nearest.peekKey()) {
+        nearest.pop();
+        nearest.push(label, labelBest[label]);
+      }
+    }
+    final int count = nearest.size();
+    for (int i = count - 1; i >= 0; i--) {
+      final float distance = reportedDistance(nearest.peekKey());
+      final int label = nearest.pop();
+      out[i].set(labels.get(label), distance, labelRow[label]);
+    }
+    return count;
+  }
+
+  // Approximate squared distance of the gallery's query space to the distance reported.
+  private float reportedDistance(final float squared) {
+    return metric == Metric.COSINE ? squared / 2 : (float) Math.sqrt(squared);
+  }
+
+  /**
+   * Fills {@link #probes} with the nprobe nearest non-empty lists and returns the query to score,
+   * normalized under {@link Metric#COSINE}.
+   */
+  private float[] selectProbes(final float[] rawQuery) {
+    if (metric == Metric.COSINE) {
+      System.arraycopy(rawQuery, 0, unitQuery, 0, dim);
+      Metric.normalize(unitQuery, 0, dim);
+    }
+    final float[] query = metric == Metric.COSINE ? unitQuery : rawQuery;
+    probes.clear();
+    for (int l = 0; l < nlist; l++) {
+      if (listSizes[l] == 0) {
+        continue;
+      }
+      float distance = 0;
+      for (int d = 0, base = l * dim; d < dim; d++) {
+        final float diff = query[d] - coarse[base + d];
+        distance += diff * diff;
+      }
+      if (probes.size() < nprobe) {
+        probes.push(l, distance);
+      } else if (distance < probes.peekKey()) {
+        probes.pop();
+        probes.push(l, distance);
+      }
+    }
+    return query;
+  }
+
+  // Distance table of the query's residual to the centroid of list.
+  private void computeTable(final float[] query, final int list) {
+    for (int d = 0, base = list * dim; d < dim; d++) {
+      residual[d] = query[d] - coarse[base + d];
+    }
+    pq.computeTable(residual, table);
+  }
+
+  // Accessors for GalleryFile, which persists the trained codebooks along with the codes.
+
+  int listCount() {
+    return nlist;
+  }
+
+  int getNprobe() {
+    return nprobe;
+  }
+
+  /** Coarse centroids, {@code [nlist][dim]}; must not be modified. */
+  float[] coarseCentroids() {
+    return coarse;
+  }
+
+  ProductQuantizer quantizer() {
+    return pq;
+  }
+
+  /** Rows of {@code list}, including removed ones. */
+  int listSize(final int list) {
+    return listSizes[list];
+  }
+
+  int listRow(final int list, final int i) {
+    return lists[list][i];
+  }
+
+  boolean isLive(final int row) {
+    return rowLabels[row] != REMOVED;
+  }
+
+  String getLabel(final int row) {
+    final int idx = rowLabels[row];
+    return idx == REMOVED ? null : labels.get(idx);
+  }
+
+  /** Copies the code of {@code row} into {@code out[offset]}. */
+  void getCode(final int row, final byte[] out, final int offset) {
+    System.arraycopy(codes, row * codeSize, out, offset, codeSize);
+  }
+
+  /** Appends a sample already encoded against {@code list}, as read back from a file. */
+  int addEncoded(final String label, final int list, final byte[] code, final int offset) {
+    if (rowCount == rowLabels.length) {
+      rowLabels = Arrays.copyOf(rowLabels, rowCount * 2);
+      codes = Arrays.copyOf(codes, rowCount * 2 * codeSize);
+    }
+    final int row = rowCount++;
+    final int idx = labels.intern(label);
+    rowLabels[row] = idx;
+    labels.addSample(idx);
+    System.arraycopy(code, offset, codes, row * codeSize, codeSize);
+    appendToList(list, row);
+    return row;
+  }
+
+  private void encodeResidual(final float[] embedding, final int list, final int row) {
+    final float[] r = new float[dim];
+    for (int d = 0, base = list * dim; d < dim; d++) {
+      r[d] = embedding[d] - coarse[base + d];
+    }
+    pq.encode(r, codes, row * codeSize);
+  }
+
+  private void appendToList(final int list, final int row) {
+    if (listSizes[list] == lists[list].length) {
+      lists[list] = Arrays.copyOf(lists[list], listSizes[list] * 2);
+    }
+    lists[list][listSizes[list]++] = row;
+  }
+}
@@ -0,0 +1,121 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Lloyd's k-means over row-major float points, used to train the quantizer codebooks. */
+final class KMeans {
+  private KMeans() {}
+
+  /**
+   * Clusters {@code n} points of {@code dim} floats.
+   *
+   * @return {@code k} centroids, row-major. {@code k} is clamped to {@code n}.
+   */
+  static float[] train(
+      final float[] points, final int n, final int dim, final int k, final int iterations,
+      final Random random) {
+    final int clusters = Math.min(k, n);
+    final float[] centroids = new float[clusters * dim];
+    initPlusPlus(points, n, dim, centroids, clusters, random);
+
+    final int[] assignment = new int[n];
+    final int[] counts = new int[clusters];
+    final float[] sums = new float[clusters * dim];
+    for (int iter = 0; iter < iterations; iter++) {
+      boolean changed = iter == 0;
+      for (int p = 0; p < n; p++) {
+        final int c = nearest(centroids, clusters, dim, points, p * dim);
+        if (c != assignment[p]) {
+          assignment[p] = c;
+          changed = true;
+        }
+      }
+      if (!changed) {
+        break;
+      }
+
+      Arrays.fill(counts, 0);
+      Arrays.fill(sums, 0f);
+      for (int p = 0; p < n; p++) {
+        final int c = assignment[p];
+        counts[c]++;
+        for (int d = 0; d < dim; d++) {
+          sums[c * dim + d] += points[p * dim + d];
+        }
+      }
+      for (int c = 0; c < clusters; c++) {
+        if (counts[c] == 0) {
+          // empty cluster: re-seed from a random point
+          System.arraycopy(points, random.nextInt(n) * dim, centroids, c * dim, dim);
+          continue;
+        }
+        for (int d = 0; d < dim; d++) {
+          centroids[c * dim + d] = sums[c * dim + d] / counts[c];
+        }
+      }
+    }
+    return centroids;
+  }
+
+  /** Index of the centroid nearest to the {@code dim} floats at {@code v[offset]}. */
+  static int nearest(
+      final float[] centroids, final int k, final int dim, final float[] v, final int offset) {
+    return nearest(centroids, k, dim, v, offset, 0);
+  }
+
+  /** Same as above for centroids starting at {@code centroids[centroidsOffset]}. */
+  static int nearest(
+      final float[] centroids, final int k, final int dim, final float[] v, final int offset,
+      final int centroidsOffset) {
+    int best = 0;
+    float bestDistance = Float.MAX_VALUE;
+    for (int c = 0, base = centroidsOffset; c < k; c++, base += dim) {
+      float distance = 0;
+      for (int d = 0; d < dim; d++) {
+        final float diff = v[offset + d] - centroids[base + d];
+        distance += diff * diff;
+      }
+      if (distance < bestDistance) {
+        bestDistance = distance;
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  private static void initPlusPlus(
+      final float[] points, final int n, final int dim, final float[] centroids, final int k,
+      final Random random) {
+    final float[] minDistance = new float[n];
+    Arrays.fill(minDistance, Float.MAX_VALUE);
+    System.arraycopy(points, random.nextInt(n) * dim, centroids, 0, dim);
+    for (int c = 1; c < k; c++) {
+      double total = 0;
+      final int prev = (c - 1) * dim;
+      for (int p = 0; p < n; p++) {
+        float distance = 0;
+        for (int d = 0; d < dim; d++) {
+          final float diff = points[p * dim + d] - centroids[prev + d];
+          distance += diff * diff;
+        }
+        if (distance < minDistance[p]) {
+          minDistance[p] = distance;
+        }
+        total += minDistance[p];
+      }
+      int pick = random.nextInt(n);
+      if (total > 0) {
+        double r = random.nextDouble() * total;
+        for (int p = 0; p < n; p++) {
+          r -= minDistance[p];
+          if (r <= 0) {
+            pick = p;
+            break;
+          }
+        }
+      }
+      System.arraycopy(points, pick * dim, centroids, c * dim, dim);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** Interned gallery labels plus the number of live samples each one owns. */
+class LabelTable {
+  private final List<String> labels = new ArrayList<>();
+  private final HashMap<String, Integer> indices = new HashMap<>();
+  private int[] samples = new int[64];
+
+  /** Index of {@code label}, interning it if needed. */
+  int intern(final String label) {
+    Integer idx = indices.get(label);
+    if (idx == null) {
+      idx = labels.size();
+      labels.add(label);
+      indices.put(label, idx);
+      if (idx >= samples.length) {
+        samples = Arrays.copyOf(samples, samples.length * 2);
+      }
+    }
+    return idx;
+  }
+
+  /** Index of {@code label}, or -1 if it was never interned. */
+  int find(final String label) {
+    final Integer idx = indices.get(label);
+    return idx == null ? -1 : idx;
+  }
+
+  String get(final int idx) {
+    return labels.get(idx);
+  }
+
+  /** Number of interned labels, including ones without samples left. */
+  int size() {
+    return labels.size();
+  }
+
+  int samples(final int idx) {
+    return samples[idx];
+  }
+
+  int samplesOf(final String label) {
+    final int idx = find(label);
+    return idx < 0 ? 0 : samples[idx];
+  }
+
+  void addSample(final int idx) {
+    samples[idx]++;
+  }
+
+  void clearSamples(final int idx) {
+    samples[idx] = 0;
+  }
+
+  /** Number of labels that still own at least one sample. */
+  int liveCount() {
+    int count = 0;
+    for (int i = 0; i < labels.size(); i++) {
+      if (samples[i] > 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  LabelTable copy() {
+    final LabelTable copy = new LabelTable();
+    copy.labels.addAll(labels);
+    copy.indices.putAll(indices);
+    copy.samples = samples.clone();
+    return copy;
+  }
+
+  void clear() {
+    labels.clear();
+    indices.clear();
+    Arrays.fill(samples, 0);
+  }
+}
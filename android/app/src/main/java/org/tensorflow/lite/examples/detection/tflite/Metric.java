@@ -0,0 +1,35 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * How a gallery compares embeddings. Reported distances are always smaller-is-nearer.
+ *
+ * <p>Under {@link #COSINE} the gallery L2-normalizes every embedding once when it is stored, so a
+ * query is scored with a plain dot product, and reports the cosine distance {@code 1 - cos}. The
+ * two scales are unrelated for raw embeddings, so each metric needs a threshold tuned on its own.
+ */
+public enum Metric {
+  /** Euclidean distance between the raw embeddings. */
+  L2,
+  /** Cosine distance, {@code 1 - cos}, between the embeddings. */
+  COSINE;
+
+  /** Euclidean norm of {@code v[offset, offset + dim)}. */
+  static float norm(final float[] v, final int offset, final int dim) {
+    float sum = 0;
+    for (int i = offset; i < offset + dim; i++) {
+      sum += v[i] * v[i];
+    }
+    return (float) Math.sqrt(sum);
+  }
+
+  /** Scales {@code v[offset, offset + dim)} to unit length in place; zero vectors are kept. */
+  static void normalize(final float[] v, final int offset, final int dim) {
+    final float norm = norm(v, offset, dim);
+    if (norm > 0) {
+      final float scale = 1 / norm;
+      for (int i = offset; i < offset + dim; i++) {
+        v[i] *= scale;
+      }
+    }
+  }
+}
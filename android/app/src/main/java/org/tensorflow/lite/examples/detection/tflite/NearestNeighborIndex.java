@@ -0,0 +1,28 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Search structure over the rows of a {@link FaceGallery}. The gallery owns the vectors and keeps
+ * the index in sync on add/remove; a compaction renumbers rows and triggers a {@link #rebuild()}.
+ */
+public interface NearestNeighborIndex {
+
+  void add(int row);
+
+  void remove(int row);
+
+  /** Discards the structure and re-inserts every live row of the gallery. */
+  void rebuild();
+
+  /** Copy of this index over {@code gallery}, a copy of the gallery this index belongs to. */
+  NearestNeighborIndex copyFor(FaceGallery gallery);
+
+  /**
+   * Finds up to {@code k} live rows nearest to {@code query}.
+   *
+   * @param rows receives the rows, nearest first.
+   * @param distances receives the gallery's ranking keys matching {@code rows}: squared L2
+   *     distances, or negated dot products under {@link Metric#COSINE}.
+   * @return the number of rows written.
+   */
+  int search(float[] query, int k, int[] rows, float[] distances);
+}
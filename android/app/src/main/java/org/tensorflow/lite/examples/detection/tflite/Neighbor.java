@@ -0,0 +1,40 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Mutable result holder for a gallery lookup, so the per-frame scan can report the nearest sample
+ * without allocating.
+ */
+public class Neighbor {
+  private String label;
+  private float distance = Float.MAX_VALUE;
+  private int row = -1;
+
+  public String getLabel() {
+    return label;
+  }
+
+  /** Distance between the query and the matched sample, in the gallery's {@link Metric}. */
+  public float getDistance() {
+    return distance;
+  }
+
+  /** Row of the matched sample inside the gallery, -1 if nothing matched. */
+  public int getRow() {
+    return row;
+  }
+
+  void set(final String label, final float distance, final int row) {
+    this.label = label;
+    this.distance = distance;
+    this.row = row;
+  }
+
+  void clear() {
+    set(null, Float.MAX_VALUE, -1);
+  }
+
+  @Override
+  public String toString() {
+    return label + " (" + distance + ")";
+  }
+}
@@ -0,0 +1,107 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Random;
+
+/**
+ * Splits a vector into {@code m} sub-vectors and encodes each one as the byte index of its nearest
+ * sub-centroid, so a 192-d float embedding shrinks to {@code m} bytes.
+ *
+ * <p>Queries are not encoded: {@link #computeTable} precomputes the squared distance from each
+ * query sub-vector to every sub-centroid once, after which the distance to any code is {@code m}
+ * table lookups (asymmetric distance computation).
+ */
+class ProductQuantizer {
+  static final int MAX_CENTROIDS = 256;
+  private static final int TRAIN_ITERATIONS = 15;
+
+  private final int dim;
+  private final int m;
+  private final int subDim;
+  private final int ks;
+  // [m][ks][subDim]
+  private final float[] codebooks;
+
+  /** Wraps trained codebooks, {@code [m][ks][dim / m]} row-major, e.g. read back from a file. */
+  ProductQuantizer(final int dim, final int m, final int ks, final float[] codebooks) {
+    this.dim = dim;
+    this.m = m;
+    this.subDim = dim / m;
+    this.ks = ks;
+    this.codebooks = codebooks;
+  }
+
+  /** Trains one 256-entry codebook per sub-space from {@code n} row-major vectors. */
+  static ProductQuantizer train(
+      final float[] data, final int n, final int dim, final int m, final Random random) {
+    if (m <= 0 || dim % m != 0) {
+      throw new IllegalArgumentException(dim + " dimensions can't be split into " + m);
+    }
+    final int subDim = dim / m;
+    final int ks = Math.min(MAX_CENTROIDS, n);
+    final float[] codebooks = new float[m * ks * subDim];
+    final float[] sub = new float[n * subDim];
+    for (int s = 0; s < m; s++) {
+      for (int p = 0; p < n; p++) {
+        System.arraycopy(data, p * dim + s * subDim, sub, p * subDim, subDim);
+      }
+      final float[] centroids = KMeans.train(sub, n, subDim, ks, TRAIN_ITERATIONS, random);
+      System.arraycopy(centroids, 0, codebooks, s * ks * subDim, centroids.length);
+    }
+    return new ProductQuantizer(dim, m, ks, codebooks);
+  }
+
+  int getCodeSize() {
+    return m;
+  }
+
+  /** Sub-centroids per sub-space, at most {@link #MAX_CENTROIDS}. */
+  int getCentroidCount() {
+    return ks;
+  }
+
+  /** The codebooks, {@code [m][ks][dim / m]}; must not be modified. */
+  float[] getCodebooks() {
+    return codebooks;
+  }
+
+  int getTableSize() {
+    return m * ks;
+  }
+
+  /** Writes the {@code m} byte code of {@code v} at {@code codes[offset]}. */
+  void encode(final float[] v, final byte[] codes, final int offset) {
+    for (int s = 0; s < m; s++) {
+      final int c = KMeans.nearest(codebooks, ks, subDim, v, s * subDim, s * ks * subDim);
+      codes[offset + s] = (byte) c;
+    }
+  }
+
+  /** Fills {@code table[s * ks + c]} with the squared distance of query sub-vector s to c. */
+  void computeTable(final float[] query, final float[] table) {
+    for (int s = 0; s < m; s++) {
+      final int qBase = s * subDim;
+      for (int c = 0; c < ks; c++) {
+        final int cBase = (s * ks + c) * subDim;
+        float distance = 0;
+        for (int d = 0; d < subDim; d++) {
+          final float diff = query[qBase + d] - codebooks[cBase + d];
+          distance += diff * diff;
+        }
+        table[s * ks + c] = distance;
+      }
+    }
+  }
+
+  /** Approximate squared distance between the tabled query and the code at {@code offset}. */
+  float distance(final float[] table, final byte[] codes, final int offset) {
+    float distance = 0;
+    for (int s = 0, t = 0; s < m; s++, t += ks) {
+      distance += table[t + (codes[offset + s] & 0xFF)];
+    }
+    return distance;
+  }
+
+  int getDim() {
+    return dim;
+  }
+}
@@ -16,18 +16,78 @@ limitations under the License.
 package org.tensorflow.lite.examples.detection.tflite;
 
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.graphics.RectF;
 import java.util.List;
 
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
+
 /** Generic interface for interacting with different recognition engines. */
 public interface SimilarityClassifier {
 
   void register(String name, Recognition recognition);
 
+  /** Forgets every face registered under {@code name}, returns how many were removed. */
+  int unregister(String name);
+
+  /**
+   * The enrolled embeddings matched by {@link #recognizeImage}: the current read-only snapshot.
+   * Change it through {@link #register}, {@link #unregister} or {@link #updateGallery}.
+   */
+  EmbeddingGallery getGallery();
+
+  /** Replaces the gallery, e.g. with a compressed copy of the current one. */
+  void setGallery(EmbeddingGallery gallery);
+
+  /** Applies {@code edit} to a copy of the gallery and publishes it, see {@link ConcurrentGallery}. */
+  void updateGallery(ConcurrentGallery.Edit edit);
+
+  /** Changes whenever the gallery does; results computed against the gallery can key on it. */
+  long getGalleryVersion();
+
   float[][] generateEmbeddings(Bitmap bitmap);
 
+  /** Writes the embedding of {@code bitmap} into {@code out} without allocating. */
+  void generateEmbedding(Bitmap bitmap, float[] out);
+
+  /** Embeds several faces with as few interpreter invocations as possible, one row per bitmap. */
+  float[][] generateEmbeddings(List<Bitmap> bitmaps);
+
+  /** Allocation-free {@link #generateEmbeddings(List)} writing row i into {@code out[i]}. */
+  void generateEmbeddings(List<Bitmap> bitmaps, float[][] out);
+
   List<Recognition> recognizeImage(Bitmap bitmap, boolean getExtra);
 
+  /**
+   * Allocation-free {@link #recognizeImage}: the embedding is written into {@code embedding} and
+   * the nearest enrolled face into {@code result}. Returns false if the gallery is empty.
+   */
+  boolean recognize(Bitmap bitmap, float[] embedding, Neighbor result);
+
+  /**
+   * Open-set recognition: the up to {@code k} enrolled identities nearest to the face, nearest
+   * first, one per label and no farther than {@code maxDistance} (in the gallery's {@link Metric}).
+   * An empty list means the face is unknown. Each result carries its {@link Recognition#getMargin
+   * margin} to the next identity, so callers can reject ambiguous matches.
+   */
+  List<Recognition> recognizeTopK(Bitmap bitmap, int k, float maxDistance);
+
+  /** Batched {@link #recognizeImage}, returns one recognition per bitmap in the same order. */
+  List<Recognition> recognizeImages(List<Bitmap> bitmaps, boolean getExtra);
+
+  /** Allocation-free {@link #recognizeImages(List, boolean)} filling one holder per bitmap. */
+  void recognizeImages(List<Bitmap> bitmaps, float[][] embeddings, Neighbor[] results);
+
+  /**
+   * Embeds {@code count} faces sampled straight from a camera frame. {@code inputToFrame[i]} maps
+   * the model input's pixel centres to frame coordinates for face i.
+   */
+  void generateEmbeddings(YuvFrame frame, Matrix[] inputToFrame, int count, float[][] out);
+
+  /** {@link #recognizeImages(List, float[][], Neighbor[])} for faces sampled from a frame. */
+  void recognizeFrame(
+      YuvFrame frame, Matrix[] inputToFrame, int count, float[][] embeddings, Neighbor[] results);
+
   void enableStatLogging(final boolean debug);
 
   String getStatString();
@@ -38,6 +98,8 @@ public interface SimilarityClassifier {
 
   void setUseNNAPI(boolean isChecked);
 
+  void setUseNativePreprocessing(boolean useNative);
+
   /** An immutable result returned by a Classifier describing what was recognized. */
   public class Recognition {
     /**
@@ -53,6 +115,12 @@ public interface SimilarityClassifier {
      * A sortable score for how good the recognition is relative to others. Lower should be better.
      */
     private final Float distance;
+
+    /**
+     * Distance of the next-nearest identity minus this one's, Float.MAX_VALUE if no other identity
+     * is near enough; null if not computed. A small margin means an ambiguous match.
+     */
+    private Float margin;
     // 重要：extra 放的是图像的特征矩阵，即 embeddings，一维、长度 192 的浮点数
     private Object extra;
 
@@ -95,6 +163,14 @@ public interface SimilarityClassifier {
       return distance;
     }
 
+    public Float getMargin() {
+      return margin;
+    }
+
+    public void setMargin(Float margin) {
+      this.margin = margin;
+    }
+
     public RectF getLocation() {
       return new RectF(location);
     }
@@ -18,27 +18,22 @@ package org.tensorflow.lite.examples.detection.tflite;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.os.Trace;
-import android.util.Pair;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Vector;
-import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
 
 /**
  * Wrapper for frozen detection models trained using the Tensorflow Object Detection API:
@@ -48,6 +43,9 @@ import org.tensorflow.lite.examples.detection.env.Logger;
  * To use pretrained models in the API or convert to TF Lite models, please see docs for details:
  * - https://github.com/tensorflow/models/blob/master/research/object_detection/g3doc/detection_model_zoo.md
  * - https://github.com/tensorflow/models/blob/master/research/object_detection/g3doc/running_on_mobile_tensorflowlite.md#running-our-model-on-android
+ *
+ * Embeddings are computed on an {@link InterpreterPool}, so the camera pipeline, the gallery loader
+ * and enrollment can call in from their own threads.
  */
 public class TFLiteObjectDetectionAPIModel
         implements SimilarityClassifier {
@@ -64,14 +62,15 @@ public class TFLiteObjectDetectionAPIModel
   private static final float IMAGE_MEAN = 128.0f;
   private static final float IMAGE_STD = 128.0f;
 
-  // Number of threads in the java app
-  private static final int NUM_THREADS = 4;
+  // Threads of each pooled interpreter; the first one is preferred and serves the camera
+  private static final int[] INTERPRETER_THREADS = {4, 2};
+  // Larger face lists are run in several invocations of at most this many faces
+  private static final int MAX_BATCH_SIZE = 8;
   private boolean isModelQuantized;
   // Config values.
   private int inputSize;
   // Pre-allocated buffers.
   private Vector<String> labels = new Vector<String>();
-  private int[] intValues;
   // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
   // contains the location of detected boxes
   private float[][][] outputLocations;
@@ -85,23 +84,47 @@ public class TFLiteObjectDetectionAPIModel
   // contains the number of detected boxes
   private float[] numDetections;
 
-  private float[][] embeddings;
-
-  private ByteBuffer imgData;
-
-  private Interpreter tfLite;
+  private InterpreterPool pool;
 
 // Face Mask Detector Output
   private float[][] output;
 
-  // 支持一个人多张人脸图
-  private HashMap<String, List<Recognition>> registered = new HashMap<>();
+  // 支持一个人多张人脸图，所有人脸特征连续存放
+  // 写入时复制：识别线程读快照不加锁，录入、加载、删除在副本上批量修改后发布
+  private final ConcurrentGallery galleries = new ConcurrentGallery(new FaceGallery(OUTPUT_SIZE));
+
   public void register(String name, Recognition rec) {
-      if (registered.get(name) == null) {
-        registered.put(name,new ArrayList<Recognition>(){{add(rec);}});
-      } else {
-        registered.get(name).add(rec);
-      }
+      final float[] embedding = ((float[][]) rec.getExtra())[0];
+      galleries.update(gallery -> gallery.add(name, embedding));
+  }
+
+  public int unregister(String name) {
+      final int[] removed = new int[1];
+      galleries.update(gallery -> removed[0] = gallery.remove(name));
+      return removed[0];
+  }
+
+  @Override
+  public EmbeddingGallery getGallery() {
+    return galleries.snapshot();
+  }
+
+  @Override
+  public void setGallery(EmbeddingGallery gallery) {
+    if (gallery.getDim() != OUTPUT_SIZE) {
+      throw new IllegalArgumentException("Gallery dimension must be " + OUTPUT_SIZE);
+    }
+    galleries.replace(gallery);
+  }
+
+  @Override
+  public void updateGallery(ConcurrentGallery.Edit edit) {
+    galleries.update(edit);
+  }
+
+  @Override
+  public long getGalleryVersion() {
+    return galleries.getVersion();
   }
 
   private TFLiteObjectDetectionAPIModel() {}
@@ -148,25 +171,14 @@ public class TFLiteObjectDetectionAPIModel
 
     d.inputSize = inputSize;
 
+    d.isModelQuantized = isQuantized;
     try {
-      d.tfLite = new Interpreter(loadModelFile(assetManager, modelFilename));
+      d.pool = new InterpreterPool(loadModelFile(assetManager, modelFilename), inputSize,
+          isQuantized, IMAGE_MEAN, IMAGE_STD, MAX_BATCH_SIZE, INTERPRETER_THREADS);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
 
-    d.isModelQuantized = isQuantized;
-    // Pre-allocate buffers.
-    int numBytesPerChannel;
-    if (isQuantized) {
-      numBytesPerChannel = 1; // Quantized
-    } else {
-      numBytesPerChannel = 4; // Floating point
-    }
-    d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
-    d.imgData.order(ByteOrder.nativeOrder());
-    d.intValues = new int[d.inputSize * d.inputSize];
-
-    d.tfLite.setNumThreads(NUM_THREADS);
     d.outputLocations = new float[1][NUM_DETECTIONS][4];
     d.outputClasses = new float[1][NUM_DETECTIONS];
     d.outputScores = new float[1][NUM_DETECTIONS];
@@ -174,122 +186,96 @@ public class TFLiteObjectDetectionAPIModel
     return d;
   }
 
-  // looks for the nearest embeeding in the dataset (using L2 norm)
-  // and returns the pair <id, distance>
-  private Pair<String, Float> findNearest(float[] emb) {
-
-    Pair<String, Float> ret = null;
-    for (Map.Entry<String, List<Recognition>> entry : registered.entrySet()) {
-        final String name = entry.getKey();
-        Iterator<Recognition> iter = entry.getValue().iterator();
-        // 当前这个人的最相似人脸
-        float nearestDistance = Float.MAX_VALUE;
-        while (iter.hasNext()) {
-          final float[] knownEmb = ((float[][]) iter.next().getExtra())[0];
-
-          float distance = 0;
-          for (int i = 0; i < emb.length; i++) {
-            float diff = emb[i] - knownEmb[i];
-            distance += diff*diff;
-          }
-          if (distance < nearestDistance) {
-            nearestDistance = distance;
-          }
-        }
-        nearestDistance = (float) Math.sqrt(nearestDistance);
-        if (ret == null || nearestDistance < ret.second) {
-          ret = new Pair<>(name, nearestDistance);
-        }
+  /** Returns a new [1][OUTPUT_SIZE] array; use {@link #generateEmbedding} on hot paths. */
+  public float[][] generateEmbeddings(final Bitmap bitmap) {
+    final float[][] result = new float[1][OUTPUT_SIZE];
+    generateEmbedding(bitmap, result[0]);
+    return result;
+  }
 
+  @Override
+  public void generateEmbedding(final Bitmap bitmap, final float[] out) {
+    checkEmbeddingSize(out);
+    final InterpreterPool.Slot slot = pool.acquire();
+    try {
+      slot.run(bitmap, out);
+    } finally {
+      pool.release(slot);
     }
-
-    return ret;
-
   }
 
-  public float[][] generateEmbeddings(final Bitmap bitmap) {
-    // Log this method so that it can be analyzed with systrace.
-    Trace.beginSection("recognizeImage");
+  @Override
+  public float[][] generateEmbeddings(final List<Bitmap> bitmaps) {
+    final float[][] result = new float[bitmaps.size()][OUTPUT_SIZE];
+    generateEmbeddings(bitmaps, result);
+    return result;
+  }
 
-    Trace.beginSection("preprocessBitmap");
-    // Preprocess the image data from 0-255 int to normalized float based
-    // on the provided parameters.
-    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-    imgData.rewind();
-    for (int i = 0; i < inputSize; ++i) {
-      for (int j = 0; j < inputSize; ++j) {
-        int pixelValue = intValues[i * inputSize + j];
-        if (isModelQuantized) {
-          // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
-        } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-        }
+  @Override
+  public void generateEmbeddings(final List<Bitmap> bitmaps, final float[][] out) {
+    if (out.length < bitmaps.size()) {
+      throw new IllegalArgumentException(
+          "Need " + bitmaps.size() + " output rows, got " + out.length);
+    }
+    checkEmbeddingSizes(out, bitmaps.size());
+    final InterpreterPool.Slot slot = pool.acquire();
+    try {
+      for (int start = 0; start < bitmaps.size(); start += MAX_BATCH_SIZE) {
+        final int n = Math.min(MAX_BATCH_SIZE, bitmaps.size() - start);
+        slot.runBatch(bitmaps, null, null, start, n, out);
       }
+    } finally {
+      pool.release(slot);
     }
-    Trace.endSection(); // preprocessBitmap
-
-    // Copy the input data into TensorFlow.
-    Trace.beginSection("feed");
-
-
-    Object[] inputArray = {imgData};
-
-    Trace.endSection();
-
-// Here outputMap is changed to fit the Face Mask detector
-    Map<Integer, Object> outputMap = new HashMap<>();
-
-    embeddings = new float[1][OUTPUT_SIZE];
-    outputMap.put(0, embeddings);
+  }
 
+  @Override
+  public void generateEmbeddings(
+      final YuvFrame frame, final Matrix[] inputToFrame, final int count, final float[][] out) {
+    if (out.length < count || inputToFrame.length < count) {
+      throw new IllegalArgumentException("Need " + count + " transforms and output rows");
+    }
+    checkEmbeddingSizes(out, count);
+    final InterpreterPool.Slot slot = pool.acquire();
+    try {
+      for (int start = 0; start < count; start += MAX_BATCH_SIZE) {
+        final int n = Math.min(MAX_BATCH_SIZE, count - start);
+        slot.runBatch(null, frame, inputToFrame, start, n, out);
+      }
+    } finally {
+      pool.release(slot);
+    }
+  }
 
-    // Run the inference call.
-    Trace.beginSection("run");
-    //tfLite.runForMultipleInputsOutputs(inputArray, outputMapBack);
-    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
-    Trace.endSection();
-    return embeddings;
+  private static void checkEmbeddingSize(final float[] embedding) {
+    if (embedding == null || embedding.length != OUTPUT_SIZE) {
+      throw new IllegalArgumentException("Embedding arrays must have " + OUTPUT_SIZE + " floats");
+    }
   }
 
+  private static void checkEmbeddingSizes(final float[][] out, final int count) {
+    for (int i = 0; i < count; i++) {
+      checkEmbeddingSize(out[i]);
+    }
+  }
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap, boolean withEmbeddings) {
-    float[][] embedding = generateEmbeddings(bitmap);
-
-//    String res = "[";
-//    for (int i = 0; i < embeedings[0].length; i++) {
-//      res += embeedings[0][i];
-//      if (i < embeedings[0].length - 1) res += ", ";
-//    }
-//    res += "]";
-
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+    final float[][] embedding = generateEmbeddings(bitmap);
 
     float distance = Float.MAX_VALUE;
     String id = "0";
     String label = "?";
 
-    if (registered.size() > 0) {
-        //LOGGER.i("dataset SIZE: " + registered.size());
-        final Pair<String, Float> nearest = findNearest(embeddings[0]);
-        if (nearest != null) {
-
-            final String name = nearest.first;
-            label = name;
-            distance = nearest.second;
-
-            LOGGER.i("nearest: " + name + " - distance: " + distance);
-
-
-        }
+    final Neighbor nearest = new Neighbor();
+    if (galleries.snapshot().findNearest(embedding[0], nearest)) {
+      label = nearest.getLabel();
+      distance = nearest.getDistance();
+      LOGGER.i("nearest: " + label + " - distance: " + distance);
     }
 
-
     final int numDetectionsOutput = 1;
     final ArrayList<Recognition> recognitions = new ArrayList<>(numDetectionsOutput);
     Recognition rec = new Recognition(
@@ -301,30 +287,115 @@ public class TFLiteObjectDetectionAPIModel
     recognitions.add( rec );
 
     if (withEmbeddings) {
-        rec.setExtra(embeddings);
+        rec.setExtra(embedding);
+    }
+
+    Trace.endSection();
+    return recognitions;
+  }
+
+  @Override
+  public List<Recognition> recognizeTopK(final Bitmap bitmap, final int k, final float maxDistance) {
+    Trace.beginSection("recognizeTopK");
+    final float[][] embedding = generateEmbeddings(bitmap);
+    // one more than asked, so the last result also has a runner-up for its margin
+    final Neighbor[] nearest = new Neighbor[k + 1];
+    for (int i = 0; i < nearest.length; i++) {
+      nearest[i] = new Neighbor();
+    }
+    final int found = galleries.snapshot().findNearest(embedding[0], k + 1, nearest);
+
+    final ArrayList<Recognition> recognitions = new ArrayList<>(Math.min(found, k));
+    for (int i = 0; i < Math.min(found, k) && nearest[i].getDistance() <= maxDistance; i++) {
+      final Recognition rec =
+          new Recognition("0", nearest[i].getLabel(), nearest[i].getDistance(), new RectF());
+      rec.setMargin(i + 1 < found
+          ? nearest[i + 1].getDistance() - nearest[i].getDistance() : Float.MAX_VALUE);
+      recognitions.add(rec);
     }
+    Trace.endSection();
+    return recognitions;
+  }
 
+  @Override
+  public boolean recognize(final Bitmap bitmap, final float[] embedding, final Neighbor result) {
+    Trace.beginSection("recognizeImage");
+    generateEmbedding(bitmap, embedding);
+    final boolean found = galleries.snapshot().findNearest(embedding, result);
     Trace.endSection();
+    return found;
+  }
+
+  @Override
+  public List<Recognition> recognizeImages(final List<Bitmap> bitmaps, boolean withEmbeddings) {
+    final float[][] batch = generateEmbeddings(bitmaps);
+    final ArrayList<Recognition> recognitions = new ArrayList<>(batch.length);
+    final Neighbor nearest = new Neighbor();
+    final EmbeddingGallery gallery = galleries.snapshot();
+    for (final float[] emb : batch) {
+      String label = "?";
+      float distance = Float.MAX_VALUE;
+      if (gallery.findNearest(emb, nearest)) {
+        label = nearest.getLabel();
+        distance = nearest.getDistance();
+      }
+      final Recognition rec = new Recognition("0", label, distance, new RectF());
+      if (withEmbeddings) {
+        rec.setExtra(new float[][] {emb});
+      }
+      recognitions.add(rec);
+    }
     return recognitions;
   }
 
   @Override
-  public void enableStatLogging(final boolean logStats) {}
+  public void recognizeImages(
+      final List<Bitmap> bitmaps, final float[][] embeddings, final Neighbor[] results) {
+    generateEmbeddings(bitmaps, embeddings);
+    final EmbeddingGallery gallery = galleries.snapshot();
+    for (int i = 0; i < bitmaps.size(); i++) {
+      gallery.findNearest(embeddings[i], results[i]);
+    }
+  }
+
+  @Override
+  public void recognizeFrame(
+      final YuvFrame frame, final Matrix[] inputToFrame, final int count,
+      final float[][] embeddings, final Neighbor[] results) {
+    generateEmbeddings(frame, inputToFrame, count, embeddings);
+    final EmbeddingGallery gallery = galleries.snapshot();
+    for (int i = 0; i < count; i++) {
+      gallery.findNearest(embeddings[i], results[i]);
+    }
+  }
+
+  @Override
+  public void enableStatLogging(final boolean logStats) {
+    pool.enableStatLogging(logStats);
+  }
 
   @Override
   public String getStatString() {
-    return "";
+    return pool.getStatString();
+  }
+
+  /** Switches input preprocessing between the Java lookup table and the engine's NEON code. */
+  @Override
+  public void setUseNativePreprocessing(boolean useNative) {
+    pool.setUseNativePreprocessing(useNative);
   }
 
   @Override
-  public void close() {}
+  public void close() {
+    pool.close();
+  }
 
   public void setNumThreads(int num_threads) {
-    if (tfLite != null) tfLite.setNumThreads(num_threads);
+    pool.setNumThreads(num_threads);
   }
 
   @Override
   public void setUseNNAPI(boolean isChecked) {
-    if (tfLite != null) tfLite.setUseNNAPI(isChecked);
+    pool.setUseNNAPI(isChecked);
   }
 }
@@ -0,0 +1,170 @@
+package org.tensorflow.lite.examples.detection.tracking;
+
+import android.graphics.RectF;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Remembers the identity and liveness verdict of each face track so they are not recomputed on
+ * every frame.
+ *
+ * <p>Entries are keyed by the track ids of {@link MultiBoxTracker}, which already associates faces
+ * across frames, one face per track. A cached verdict is reused while it has not expired (by time
+ * or by frame count) and the face has not moved far from where it was last recognized, and was
+ * recognized against the same gallery version; otherwise the caller recomputes it and {@link #put}s
+ * the new verdict, so registering or deleting someone only invalidates verdicts lazily. Entries of
+ * lost tracks are dropped with {@link #remove}, e.g. from a {@link MultiBoxTracker.TrackListener}.
+ */
+public class FaceResultCache {
+  /** Verdict of one face track. */
+  public static class Entry {
+    private int trackId;
+    private final RectF recognizedBox = new RectF();
+    private String label;
+    private float distance;
+    private float liveConfidence;
+    private boolean realFace;
+    private long recognizedAtMs;
+    private int recognizedAtFrame;
+    private long galleryVersion;
+
+    public String getLabel() {
+      return label;
+    }
+
+    public float getDistance() {
+      return distance;
+    }
+
+    public float getLiveConfidence() {
+      return liveConfidence;
+    }
+
+    public boolean isRealFace() {
+      return realFace;
+    }
+  }
+
+  private final float reuseIou;
+  private final long ttlMs;
+  private final int maxFrames;
+
+  private final List<Entry> entries = new ArrayList<>();
+  private final List<Entry> free = new ArrayList<>();
+  private int frame;
+  private long hits;
+  private long misses;
+
+  /**
+   * @param reuseIou IoU with the box at recognition time below which the face has moved too much
+   *     for the verdict to be reused.
+   * @param ttlMs how long a verdict is reused.
+   * @param maxFrames how many frames a verdict is reused.
+   */
+  public FaceResultCache(final float reuseIou, final long ttlMs, final int maxFrames) {
+    this.reuseIou = reuseIou;
+    this.ttlMs = ttlMs;
+    this.maxFrames = maxFrames;
+  }
+
+  /**
+   * Returns the verdict of track {@code trackId}, now at {@code box}, if it can be reused, or null
+   * if the caller has to recompute it and call {@link #put}. A negative id (untracked face) is
+   * always a miss.
+   *
+   * @param galleryVersion version of the gallery the caller would recognize against.
+   */
+  public synchronized Entry lookup(
+      final int trackId, final RectF box, final long nowMs, final long galleryVersion) {
+    final Entry entry = find(trackId);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    if (nowMs - entry.recognizedAtMs > ttlMs
+        || frame - entry.recognizedAtFrame > maxFrames
+        || entry.galleryVersion != galleryVersion
+        || MultiBoxTracker.iou(box, entry.recognizedBox) < reuseIou) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry;
+  }
+
+  /**
+   * Stores a freshly computed verdict for track {@code trackId} at {@code box}, recognized against
+   * gallery {@code galleryVersion}. Untracked faces (negative id) are not cached.
+   */
+  public synchronized void put(
+      final int trackId, final RectF box, final String label, final float distance,
+      final float liveConfidence, final boolean realFace, final long nowMs,
+      final long galleryVersion) {
+    if (trackId < 0) {
+      return;
+    }
+    Entry entry = find(trackId);
+    if (entry == null) {
+      entry = free.isEmpty() ? new Entry() : free.remove(free.size() - 1);
+      entry.trackId = trackId;
+      entries.add(entry);
+    }
+    entry.recognizedBox.set(box);
+    entry.label = label;
+    entry.distance = distance;
+    entry.liveConfidence = liveConfidence;
+    entry.realFace = realFace;
+    entry.recognizedAtMs = nowMs;
+    entry.recognizedAtFrame = frame;
+    entry.galleryVersion = galleryVersion;
+  }
+
+  /** Drops the verdict of a track that was lost. */
+  public synchronized void remove(final int trackId) {
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      if (entries.get(i).trackId == trackId) {
+        free.add(entries.remove(i));
+        return;
+      }
+    }
+  }
+
+  /** Counts a processed frame, for the frame limit of the verdicts. */
+  public synchronized void endFrame() {
+    frame++;
+  }
+
+  /** Forgets every verdict, e.g. after the liveness threshold changed. */
+  public synchronized void clear() {
+    free.addAll(entries);
+    entries.clear();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized String getStatString() {
+    final long total = hits + misses;
+    return String.format(
+        Locale.US, "face cache: %d tracks, %d hits, %d misses (%.1f%% hit)",
+        entries.size(), hits, misses, total == 0 ? 0f : 100f * hits / total);
+  }
+
+  private Entry find(final int trackId) {
+    if (trackId < 0) {
+      return null;
+    }
+    for (final Entry entry : entries) {
+      if (entry.trackId == trackId) {
+        return entry;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,83 @@
+package org.tensorflow.lite.examples.detection.tracking;
+
+import java.util.Locale;
+
+/**
+ * Decides on which camera frames full face detection runs; the frames in between are covered by
+ * propagating the tracked boxes.
+ *
+ * <p>Detection runs every {@code interval} frames. The interval adapts so one detection roughly
+ * spans the frames it skips: it is the measured detection time divided by the measured frame
+ * period, clamped to {@code [minInterval, maxInterval]}. A caller can force the next frame to be
+ * detected, e.g. when motion estimation loses confidence.
+ */
+public class FrameScheduler {
+  // weight of the newest sample in the moving averages
+  private static final float SMOOTHING = 0.2f;
+
+  private final int minInterval;
+  private final int maxInterval;
+  private int interval;
+  private long lastDetectionFrame = Long.MIN_VALUE / 2;
+  private boolean forced = true;
+
+  private long lastFrameMs = -1;
+  private float framePeriodMs;
+  private float detectionMs;
+  private long detections;
+  private long skipped;
+
+  public FrameScheduler(final int minInterval, final int maxInterval) {
+    this.minInterval = Math.max(1, minInterval);
+    this.maxInterval = Math.max(this.minInterval, maxInterval);
+    this.interval = this.minInterval;
+  }
+
+  /** Records a camera frame arriving at {@code nowMs}. */
+  public synchronized void onFrame(final long nowMs) {
+    if (lastFrameMs >= 0) {
+      framePeriodMs = average(framePeriodMs, nowMs - lastFrameMs);
+    }
+    lastFrameMs = nowMs;
+  }
+
+  /** Whether {@code frame} should go through full detection. */
+  public synchronized boolean shouldDetect(final long frame) {
+    if (forced || frame - lastDetectionFrame >= interval) {
+      forced = false;
+      lastDetectionFrame = frame;
+      detections++;
+      return true;
+    }
+    skipped++;
+    return false;
+  }
+
+  /** Makes the next frame a detection frame. */
+  public synchronized void requestDetection() {
+    forced = true;
+  }
+
+  /** Records how long a detection took and re-derives the interval. */
+  public synchronized void onDetectionFinished(final long elapsedMs) {
+    detectionMs = average(detectionMs, elapsedMs);
+    if (framePeriodMs > 0) {
+      final int frames = (int) Math.ceil(detectionMs / framePeriodMs);
+      interval = Math.max(minInterval, Math.min(maxInterval, frames));
+    }
+  }
+
+  public synchronized int getInterval() {
+    return interval;
+  }
+
+  public synchronized String getStatString() {
+    return String.format(
+        Locale.US, "scheduler: every %d frames, detect %.1fms, frame %.1fms, %d detected, %d skipped",
+        interval, detectionMs, framePeriodMs, detections, skipped);
+  }
+
+  private static float average(final float average, final float sample) {
+    return average == 0 ? sample : average + SMOOTHING * (sample - average);
+  }
+}
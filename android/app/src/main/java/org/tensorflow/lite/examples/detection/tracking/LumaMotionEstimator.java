@@ -0,0 +1,154 @@
+package org.tensorflow.lite.examples.detection.tracking;
+
+import android.graphics.RectF;
+
+/**
+ * Estimates how a box moved between two consecutive camera frames by block matching on a
+ * subsampled copy of the luma plane.
+ *
+ * <p>{@link #update} keeps the previous and current subsampled planes. {@link #estimate} takes the
+ * central part of a box in the previous plane and searches a small window of the current plane for
+ * the offset with the lowest mean absolute difference. Boxes may be given in a mirrored frame (front
+ * camera results are flipped before tracking); {@link #setMirror} maps them back to sensor
+ * coordinates and the measured motion forward again.
+ */
+public class LumaMotionEstimator {
+  // frame pixels per subsampled pixel
+  private static final int STEP = 4;
+  // search radius, in subsampled pixels
+  private static final int RADIUS = 6;
+  // largest block compared, in subsampled pixels
+  private static final int MAX_BLOCK = 24;
+  private static final int MIN_BLOCK = 4;
+
+  private final float maxMeanDifference;
+  private int frameWidth;
+  private int frameHeight;
+  private int width;
+  private int height;
+  private byte[] previous = new byte[0];
+  private byte[] current = new byte[0];
+  private boolean hasPrevious;
+  private boolean mirrorX;
+  private boolean mirrorY;
+  private float lastMeanDifference;
+
+  /**
+   * @param maxMeanDifference mean absolute luma difference of the best match above which an
+   *     estimate is reported as unreliable.
+   */
+  public LumaMotionEstimator(final float maxMeanDifference) {
+    this.maxMeanDifference = maxMeanDifference;
+  }
+
+  /** Boxes passed to {@link #estimate} are mirrored horizontally and/or vertically. */
+  public void setMirror(final boolean mirrorX, final boolean mirrorY) {
+    this.mirrorX = mirrorX;
+    this.mirrorY = mirrorY;
+  }
+
+  /** Makes {@code luma} the current frame and the former current frame the previous one. */
+  public void update(
+      final byte[] luma, final int rowStride, final int frameWidth, final int frameHeight) {
+    if (frameWidth != this.frameWidth || frameHeight != this.frameHeight) {
+      this.frameWidth = frameWidth;
+      this.frameHeight = frameHeight;
+      width = frameWidth / STEP;
+      height = frameHeight / STEP;
+      previous = new byte[width * height];
+      current = new byte[width * height];
+      hasPrevious = false;
+    } else {
+      final byte[] swap = previous;
+      previous = current;
+      current = swap;
+      hasPrevious = true;
+    }
+    for (int y = 0, i = 0; y < height; y++) {
+      final int row = y * STEP * rowStride;
+      for (int x = 0; x < width; x++, i++) {
+        current[i] = luma[row + x * STEP];
+      }
+    }
+  }
+
+  /** Forgets the previous frame, e.g. when frames were skipped. */
+  public void reset() {
+    hasPrevious = false;
+  }
+
+  /**
+   * Writes the motion of {@code box} from the previous to the current frame into {@code delta}
+   * ({dx, dy} in frame pixels, in the same possibly mirrored coordinates as the box).
+   *
+   * @return false if there is no previous frame or the best match is too poor to trust.
+   */
+  public boolean estimate(final RectF box, final float[] delta) {
+    delta[0] = 0;
+    delta[1] = 0;
+    if (!hasPrevious) {
+      return false;
+    }
+    final float left = mirrorX ? frameWidth - box.right : box.left;
+    final float top = mirrorY ? frameHeight - box.bottom : box.top;
+    final float cx = (left + box.width() / 2) / STEP;
+    final float cy = (top + box.height() / 2) / STEP;
+    final int bw = Math.min(MAX_BLOCK, (int) (box.width() / STEP / 2));
+    final int bh = Math.min(MAX_BLOCK, (int) (box.height() / STEP / 2));
+    final int x0 = (int) cx - bw / 2;
+    final int y0 = (int) cy - bh / 2;
+    if (bw < MIN_BLOCK || bh < MIN_BLOCK
+        || x0 < 0 || y0 < 0 || x0 + bw > width || y0 + bh > height) {
+      return false;
+    }
+
+    int best = Integer.MAX_VALUE;
+    int bestDx = 0;
+    int bestDy = 0;
+    for (int dy = -RADIUS; dy <= RADIUS; dy++) {
+      if (y0 + dy < 0 || y0 + dy + bh > height) {
+        continue;
+      }
+      for (int dx = -RADIUS; dx <= RADIUS; dx++) {
+        if (x0 + dx < 0 || x0 + dx + bw > width) {
+          continue;
+        }
+        final int sad = sad(x0, y0, x0 + dx, y0 + dy, bw, bh, best);
+        // prefer the smaller motion on ties so a static scene stays put
+        if (sad < best || (sad == best && dx * dx + dy * dy < bestDx * bestDx + bestDy * bestDy)) {
+          best = sad;
+          bestDx = dx;
+          bestDy = dy;
+        }
+      }
+    }
+
+    lastMeanDifference = best / (float) (bw * bh);
+    delta[0] = (mirrorX ? -bestDx : bestDx) * STEP;
+    delta[1] = (mirrorY ? -bestDy : bestDy) * STEP;
+    return lastMeanDifference <= maxMeanDifference;
+  }
+
+  /** Mean absolute difference of the last {@link #estimate}'s best match. */
+  public float getLastMeanDifference() {
+    return lastMeanDifference;
+  }
+
+  // sum of absolute differences, abandoned once it exceeds limit
+  private int sad(
+      final int px, final int py, final int cx, final int cy, final int bw, final int bh,
+      final int limit) {
+    int sum = 0;
+    for (int y = 0; y < bh; y++) {
+      int p = (py + y) * width + px;
+      int c = (cy + y) * width + cx;
+      for (int x = 0; x < bw; x++, p++, c++) {
+        sum += Math.abs((previous[p] & 0xFF) - (current[c] & 0xFF));
+      }
+      if (sum > limit) {
+        return sum;
+      }
+    }
+    return sum;
+  }
+}
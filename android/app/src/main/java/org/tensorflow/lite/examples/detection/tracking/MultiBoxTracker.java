@@ -26,20 +26,45 @@ import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.text.TextUtils;
-import android.util.Pair;
 import android.util.TypedValue;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
 import org.tensorflow.lite.examples.detection.tflite.SimilarityClassifier.Recognition;
 
-/** A tracker that handles non-max suppression and matches existing objects to new detections. */
+/**
+ * A tracker that matches new detections to existing tracks by IoU and keeps track identities
+ * across frames.
+ *
+ * <p>Each track carries a constant-velocity model of its box centre and size, corrected with fixed
+ * gains on every matched detection (an alpha-beta filter, the steady state of a Kalman filter for
+ * this model). {@link #predict} moves the boxes on frames where detection was skipped; tracks that
+ * go unmatched for more than {@link #MAX_MISSES} detection rounds are dropped. Frame timestamps are
+ * the caller's frame counter, so velocities are in pixels per frame.
+ *
+ * <p>Boxes are tracked with {@link #trackBoxes} as soon as they are detected, which hands out the
+ * track ids; what is shown for a track is set later with {@link #setTrackResult}, once the face has
+ * been recognized.
+ *
+ * <p>Detections may arrive several frames after the frame they were made on, when the tracks have
+ * already been moved further. Each track remembers how far it was moved over its recent frames, so
+ * a late detection is carried forward by that motion before it is associated and corrects the
+ * track; tracks never go back in time. Detections older than that history are not applied.
+ */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 18;
   private static final float MIN_SIZE = 16.0f;
+  // detections overlapping a predicted box less than this start a new track
+  private static final float MIN_IOU = 0.3f;
+  // detection rounds a track may go unmatched before it is dropped
+  private static final int MAX_MISSES = 2;
+  // filter gains for position and velocity
+  private static final float ALPHA = 0.6f;
+  private static final float BETA = 0.2f;
+  // frames of motion each track remembers for late detections
+  private static final int HISTORY = 32;
   private static final int[] COLORS = {
     Color.BLUE,
     Color.RED,
@@ -57,23 +82,44 @@ public class MultiBoxTracker {
     Color.parseColor("#AA33AA"),
     Color.parseColor("#0D0068")
   };
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
+
+  /** Track lifecycle callbacks, invoked on the thread calling {@link #trackBoxes}. */
+  public interface TrackListener {
+    void onTrackStarted(int id, RectF location, String title);
+
+    void onTrackUpdated(int id, RectF location, String title);
+
+    void onTrackLost(int id);
+  }
+
   private final Logger logger = new Logger();
-  private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  private final List<TrackedRecognition> trackedObjects = new ArrayList<TrackedRecognition>();
+  private final List<TrackedRecognition> freeTracks = new ArrayList<TrackedRecognition>();
   private final Paint boxPaint = new Paint();
+  private final Paint debugTextPaint = new Paint();
+  private final Paint debugBoxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
   private Matrix frameToCanvasMatrix;
+  private int canvasWidth;
+  private int canvasHeight;
+  private final RectF screenRect = new RectF();
   private int frameWidth;
   private int frameHeight;
   private int sensorOrientation;
+  private int nextId;
+  private TrackListener listener;
+
+  // association scratch, grown on demand
+  private float[] iouScratch = new float[0];
+  private boolean[] detectionMatched = new boolean[0];
+  private boolean[] trackMatched = new boolean[0];
+  private final float[] motionScratch = new float[2];
+  private final RectF projectedScratch = new RectF();
+  // newest frame the tracks have been moved to
+  private long latestTimestamp;
 
   public MultiBoxTracker(final Context context) {
-    for (final int color : COLORS) {
-      availableColors.add(color);
-    }
-
     boxPaint.setColor(Color.RED);
     boxPaint.setStyle(Style.STROKE);
     boxPaint.setStrokeWidth(10.0f);
@@ -81,6 +127,13 @@ public class MultiBoxTracker {
     boxPaint.setStrokeJoin(Join.ROUND);
     boxPaint.setStrokeMiter(100);
 
+    debugTextPaint.setColor(Color.WHITE);
+    debugTextPaint.setTextSize(60.0f);
+
+    debugBoxPaint.setColor(Color.RED);
+    debugBoxPaint.setAlpha(200);
+    debugBoxPaint.setStyle(Style.STROKE);
+
     textSizePx =
         TypedValue.applyDimension(
             TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, context.getResources().getDisplayMetrics());
@@ -92,53 +145,122 @@ public class MultiBoxTracker {
     frameWidth = width;
     frameHeight = height;
     this.sensorOrientation = sensorOrientation;
+    frameToCanvasMatrix = null;
+  }
+
+  public synchronized void setTrackListener(final TrackListener listener) {
+    this.listener = listener;
   }
 
   public synchronized void drawDebug(final Canvas canvas) {
-    final Paint textPaint = new Paint();
-    textPaint.setColor(Color.WHITE);
-    textPaint.setTextSize(60.0f);
+    final Matrix frameToCanvas = getFrameToCanvasMatrix(canvas);
+    for (final TrackedRecognition track : trackedObjects) {
+      frameToCanvas.mapRect(screenRect, track.location);
+      canvas.drawRect(screenRect, debugBoxPaint);
+      canvas.drawText("#" + track.id, screenRect.left, screenRect.top, debugTextPaint);
+      borderedText.drawText(
+          canvas, screenRect.centerX(), screenRect.centerY(), "" + track.detectionConfidence);
+    }
+  }
 
-    final Paint boxPaint = new Paint();
-    boxPaint.setColor(Color.RED);
-    boxPaint.setAlpha(200);
-    boxPaint.setStyle(Style.STROKE);
+  /**
+   * Associates boxes detected on frame {@code timestamp} with the tracks, corrects the matched
+   * tracks and starts new ones for the rest. Each box is matched at most once.
+   *
+   * @param trackIds receives the id of the track each box belongs to, or -1 if it is not tracked
+   *     (degenerate, or too many tracks).
+   */
+  public synchronized void trackBoxes(
+      final List<RectF> boxes, final long timestamp, final int[] trackIds) {
+    logger.v("Processing %d boxes from %d", boxes.size(), timestamp);
+    processBoxes(boxes, timestamp, trackIds);
+  }
+
+  /** Sets the title, confidence and colour shown for track {@code id}; ignored if it is gone. */
+  public synchronized void setTrackResult(final int id, final Recognition result) {
+    for (final TrackedRecognition track : trackedObjects) {
+      if (track.id == id) {
+        track.setAttributes(result);
+        return;
+      }
+    }
+  }
+
+  /** Moves every track to where its motion model puts it at {@code timestamp}. */
+  public synchronized void predict(final long timestamp) {
+    latestTimestamp = Math.max(latestTimestamp, timestamp);
+    for (final TrackedRecognition track : trackedObjects) {
+      track.predict(timestamp);
+    }
+  }
 
-    for (final Pair<Float, RectF> detection : screenRects) {
-      final RectF rect = detection.second;
-      canvas.drawRect(rect, boxPaint);
-      canvas.drawText("" + detection.first, rect.left, rect.top, textPaint);
-      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + detection.first);
+  /**
+   * Moves every track by the motion {@code motion} measured between the previous and the current
+   * frame, falling back to the motion model for tracks it can't measure reliably.
+   *
+   * @return the number of tracks whose motion could not be measured.
+   */
+  public synchronized int propagate(final long timestamp, final LumaMotionEstimator motion) {
+    latestTimestamp = Math.max(latestTimestamp, timestamp);
+    int unreliable = 0;
+    for (final TrackedRecognition track : trackedObjects) {
+      if (motion.estimate(track.location, motionScratch)) {
+        track.shift(motionScratch[0], motionScratch[1], timestamp);
+      } else {
+        track.predict(timestamp);
+        unreliable++;
+      }
     }
+    return unreliable;
   }
 
-  public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
-    logger.v("Processing %d results from %d", results.size(), timestamp);
-    processResults(results);
+  /** Number of live tracks. */
+  public synchronized int getTrackCount() {
+    return trackedObjects.size();
   }
 
-  private Matrix getFrameToCanvasMatrix() {
+  /** Intersection over union of two boxes, 0 when they don't overlap. */
+  public static float iou(final RectF a, final RectF b) {
+    final float left = Math.max(a.left, b.left);
+    final float top = Math.max(a.top, b.top);
+    final float right = Math.min(a.right, b.right);
+    final float bottom = Math.min(a.bottom, b.bottom);
+    if (right <= left || bottom <= top) {
+      return 0f;
+    }
+    final float intersection = (right - left) * (bottom - top);
+    final float union = a.width() * a.height() + b.width() * b.height() - intersection;
+    return union <= 0 ? 0f : intersection / union;
+  }
+
+  private Matrix getFrameToCanvasMatrix(final Canvas canvas) {
+    if (frameToCanvasMatrix == null
+        || canvas.getWidth() != canvasWidth
+        || canvas.getHeight() != canvasHeight) {
+      canvasWidth = canvas.getWidth();
+      canvasHeight = canvas.getHeight();
+      final boolean rotated = sensorOrientation % 180 == 90;
+      final float multiplier =
+          Math.min(
+              canvasHeight / (float) (rotated ? frameWidth : frameHeight),
+              canvasWidth / (float) (rotated ? frameHeight : frameWidth));
+      frameToCanvasMatrix =
+          ImageUtils.getTransformationMatrix(
+              frameWidth,
+              frameHeight,
+              (int) (multiplier * (rotated ? frameHeight : frameWidth)),
+              (int) (multiplier * (rotated ? frameWidth : frameHeight)),
+              sensorOrientation,
+              false);
+    }
     return frameToCanvasMatrix;
   }
 
   public synchronized void draw(final Canvas canvas) {
-    final boolean rotated = sensorOrientation % 180 == 90;
-    final float multiplier =
-        Math.min(
-            canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
-            canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
-    frameToCanvasMatrix =
-        ImageUtils.getTransformationMatrix(
-            frameWidth,
-            frameHeight,
-            (int) (multiplier * (rotated ? frameHeight : frameWidth)),
-            (int) (multiplier * (rotated ? frameWidth : frameHeight)),
-            sensorOrientation,
-            false);
+    final Matrix frameToCanvas = getFrameToCanvasMatrix(canvas);
     for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos = new RectF(recognition.location);
-
-      getFrameToCanvasMatrix().mapRect(trackedPos);
+      final RectF trackedPos = screenRect;
+      frameToCanvas.mapRect(trackedPos, recognition.location);
       boxPaint.setColor(recognition.color);
 
       float cornerSize = Math.min(trackedPos.width(), trackedPos.height()) / 8.0f;
@@ -161,64 +283,276 @@ public class MultiBoxTracker {
     }
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
+  private void processBoxes(final List<RectF> boxes, final long timestamp, final int[] trackIds) {
+    final int tracks = trackedObjects.size();
+    final int detections = boxes.size();
+    ensureScratch(tracks, detections);
 
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+    // the detections were made on frame timestamp, the tracks may already be further
+    latestTimestamp = Math.max(latestTimestamp, timestamp);
+    for (final TrackedRecognition track : trackedObjects) {
+      track.predict(latestTimestamp);
+    }
 
-    for (final Recognition result : results) {
-      if (result.getLocation() == null) {
-        continue;
+    // IoU of every (track, detection) pair, with the detection carried forward by the track's
+    // motion since its frame; degenerate detections never match
+    for (int d = 0; d < detections; d++) {
+      trackIds[d] = -1;
+      final RectF location = boxes.get(d);
+      final boolean valid =
+          location != null && location.width() >= MIN_SIZE && location.height() >= MIN_SIZE;
+      if (location != null && !valid) {
+        logger.w("Degenerate rectangle! " + location);
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
-
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
-
-      logger.v(
-          "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
-
-      screenRects.add(new Pair<Float, RectF>(result.getDistance(), detectionScreenRect));
+      detectionMatched[d] = !valid;
+    }
+    for (int t = 0; t < tracks; t++) {
+      final TrackedRecognition track = trackedObjects.get(t);
+      if (!track.motionSince(timestamp, motionScratch)) {
+        motionScratch[0] = 0;
+        motionScratch[1] = 0;
+      }
+      for (int d = 0; d < detections; d++) {
+        if (detectionMatched[d]) {
+          iouScratch[t * detections + d] = 0f;
+          continue;
+        }
+        projectedScratch.set(boxes.get(d));
+        projectedScratch.offset(motionScratch[0], motionScratch[1]);
+        iouScratch[t * detections + d] = iou(track.location, projectedScratch);
+      }
+    }
 
-      if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
-        logger.w("Degenerate rectangle! " + detectionFrameRect);
+    // greedy association: repeatedly take the best remaining pair
+    while (true) {
+      float best = MIN_IOU;
+      int bestTrack = -1;
+      int bestDetection = -1;
+      for (int t = 0; t < tracks; t++) {
+        if (trackMatched[t]) {
+          continue;
+        }
+        for (int d = 0; d < detections; d++) {
+          final float iou = iouScratch[t * detections + d];
+          if (!detectionMatched[d] && iou >= best) {
+            best = iou;
+            bestTrack = t;
+            bestDetection = d;
+          }
+        }
+      }
+      if (bestTrack < 0) {
+        break;
+      }
+      trackMatched[bestTrack] = true;
+      detectionMatched[bestDetection] = true;
+      final TrackedRecognition track = trackedObjects.get(bestTrack);
+      trackIds[bestDetection] = track.id;
+      if (!track.correct(boxes.get(bestDetection), timestamp, motionScratch)) {
+        logger.v("Ignoring detection from %d for track %d", timestamp, track.id);
         continue;
       }
-
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getDistance(), result));
+      if (listener != null) {
+        listener.onTrackUpdated(track.id, track.location, track.title);
+      }
     }
 
-    trackedObjects.clear();
-    if (rectsToTrack.isEmpty()) {
-      logger.v("Nothing to track, aborting.");
-      return;
+    // unmatched tracks coast on their prediction until they have missed too often
+    for (int t = tracks - 1; t >= 0; t--) {
+      if (trackMatched[t]) {
+        continue;
+      }
+      final TrackedRecognition track = trackedObjects.get(t);
+      if (++track.misses > MAX_MISSES) {
+        trackedObjects.remove(t);
+        freeTracks.add(track);
+        if (listener != null) {
+          listener.onTrackLost(track.id);
+        }
+      }
     }
 
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      if (potential.second.getColor() != null) {
-        trackedRecognition.color = potential.second.getColor();
+    for (int d = 0; d < detections && trackedObjects.size() < COLORS.length; d++) {
+      if (detectionMatched[d]) {
+        continue;
       }
-      else {
-        trackedRecognition.color = COLORS[trackedObjects.size()];
-
+      final TrackedRecognition track =
+          freeTracks.isEmpty()
+              ? new TrackedRecognition()
+              : freeTracks.remove(freeTracks.size() - 1);
+      track.id = nextId++;
+      track.start(boxes.get(d), timestamp, latestTimestamp, COLORS[track.id % COLORS.length]);
+      trackedObjects.add(track);
+      trackIds[d] = track.id;
+      if (listener != null) {
+        listener.onTrackStarted(track.id, track.location, track.title);
       }
-      trackedObjects.add(trackedRecognition);
+    }
+  }
 
-      if (trackedObjects.size() >= COLORS.length) {
-        break;
-      }
+  private void ensureScratch(final int tracks, final int detections) {
+    if (iouScratch.length < tracks * detections) {
+      iouScratch = new float[tracks * detections];
+    }
+    if (detectionMatched.length < detections) {
+      detectionMatched = new boolean[detections];
+    }
+    if (trackMatched.length < tracks) {
+      trackMatched = new boolean[tracks];
+    }
+    for (int t = 0; t < tracks; t++) {
+      trackMatched[t] = false;
     }
   }
 
   private static class TrackedRecognition {
-    RectF location;
+    int id;
+    final RectF location = new RectF();
     float detectionConfidence;
     int color;
+    int paletteColor;
     String title;
+    int misses;
+
+    // centre and size with centre velocity per frame
+    float cx;
+    float cy;
+    float w;
+    float h;
+    float vx;
+    float vy;
+    // frame the track has been moved to, and the frame of the detection that last corrected it
+    long timestamp;
+    long correctedAt;
+    long detectedAt;
+
+    // motion applied since the track started (propagation and prediction, not corrections), and
+    // its value at the track's recent frames in a ring
+    float movedX;
+    float movedY;
+    final long[] historyFrames = new long[HISTORY];
+    final float[] historyX = new float[HISTORY];
+    final float[] historyY = new float[HISTORY];
+    int historySize;
+    int historyNext;
+
+    /** Starts the track from a detection made on {@code frame}; the tracker is at {@code now}. */
+    void start(final RectF box, final long frame, final long now, final int paletteColor) {
+      cx = box.centerX();
+      cy = box.centerY();
+      w = box.width();
+      h = box.height();
+      vx = 0;
+      vy = 0;
+      misses = 0;
+      timestamp = now;
+      correctedAt = now;
+      detectedAt = frame;
+      movedX = 0;
+      movedY = 0;
+      historySize = 0;
+      historyNext = 0;
+      record(frame);
+      this.paletteColor = paletteColor;
+      // shown without a title until setTrackResult
+      detectionConfidence = -1;
+      title = null;
+      color = paletteColor;
+      updateLocation();
+    }
+
+    void predict(final long timestamp) {
+      final long dt = timestamp - this.timestamp;
+      if (dt <= 0) {
+        return;
+      }
+      cx += vx * dt;
+      cy += vy * dt;
+      movedX += vx * dt;
+      movedY += vy * dt;
+      this.timestamp = timestamp;
+      record(timestamp);
+      updateLocation();
+    }
+
+    /**
+     * Moves the box by a measured frame-to-frame motion; the velocity is left to detections. Frames
+     * the track has already been moved to are ignored.
+     */
+    void shift(final float dx, final float dy, final long timestamp) {
+      if (timestamp <= this.timestamp) {
+        return;
+      }
+      cx += dx;
+      cy += dy;
+      movedX += dx;
+      movedY += dy;
+      this.timestamp = timestamp;
+      record(timestamp);
+      updateLocation();
+    }
+
+    /**
+     * Corrects the track, already advanced to the tracker's latest frame, with a detection made on
+     * {@code frame}, carried forward by the motion the track received since then.
+     *
+     * @return false if the detection is older than the motion history or than the detection that
+     *     last corrected the track, and was ignored.
+     */
+    boolean correct(final RectF box, final long frame, final float[] motion) {
+      if (frame < detectedAt || !motionSince(frame, motion)) {
+        return false;
+      }
+      final long dt = Math.max(1, timestamp - correctedAt);
+      final float rx = box.centerX() + motion[0] - cx;
+      final float ry = box.centerY() + motion[1] - cy;
+      cx += ALPHA * rx;
+      cy += ALPHA * ry;
+      vx += BETA * rx / dt;
+      vy += BETA * ry / dt;
+      w += ALPHA * (box.width() - w);
+      h += ALPHA * (box.height() - h);
+      misses = 0;
+      correctedAt = timestamp;
+      detectedAt = frame;
+      updateLocation();
+      return true;
+    }
+
+    /**
+     * Writes the motion the track received after {@code frame} into {@code out}.
+     *
+     * @return false if {@code frame} is older than the history.
+     */
+    boolean motionSince(final long frame, final float[] out) {
+      // newest recorded frame at or before frame
+      for (int i = 1; i <= historySize; i++) {
+        final int slot = (historyNext - i + HISTORY) % HISTORY;
+        if (historyFrames[slot] <= frame) {
+          out[0] = movedX - historyX[slot];
+          out[1] = movedY - historyY[slot];
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void record(final long frame) {
+      historyFrames[historyNext] = frame;
+      historyX[historyNext] = movedX;
+      historyY[historyNext] = movedY;
+      historyNext = (historyNext + 1) % HISTORY;
+      historySize = Math.min(historySize + 1, HISTORY);
+    }
+
+    void setAttributes(final Recognition detection) {
+      detectionConfidence = detection.getDistance();
+      title = detection.getTitle();
+      color = detection.getColor() != null ? detection.getColor() : paletteColor;
+    }
+
+    private void updateLocation() {
+      location.set(cx - w / 2, cy - h / 2, cx + w / 2, cy + h / 2);
+    }
   }
 }
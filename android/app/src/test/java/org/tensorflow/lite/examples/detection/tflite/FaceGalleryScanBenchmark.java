@@ -0,0 +1,72 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Locale;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Times the full exhaustive scan of {@link FaceGallery} against the early-abandon scan, in storage
+ * and in variance order, on a seeded synthetic gallery. Queries are midpoints of neighbouring
+ * samples, so none of them sits in the gallery and drives the bound to 0 on its first hit. Prints
+ * the time and the dimensions summed per comparison rather than asserting on them.
+ * Ignored in the unit-test run; remove {@code @Ignore} locally to take a measurement.
+ */
+@Ignore("benchmark, run manually")
+public class FaceGalleryScanBenchmark {
+  private static final int DIM = SyntheticFaces.DIM;
+  private static final int IDENTITIES = 2000;
+  private static final int SAMPLES_PER_IDENTITY = 3;
+  private static final int QUERIES = 200;
+  private static final int EARLY_ABANDON_BLOCK = 16;
+
+  @Test
+  public void compareScans() {
+    final FaceGallery gallery = new FaceGallery(DIM);
+    new SyntheticFaces(7, IDENTITIES).addTo(gallery, SAMPLES_PER_IDENTITY);
+    final float[][] samples = gallery.sampleEmbeddings(QUERIES + 1);
+    final float[][] queries = new float[QUERIES][DIM];
+    for (int i = 0; i < QUERIES; i++) {
+      for (int d = 0; d < DIM; d++) {
+        queries[i][d] = (samples[i][d] + samples[i + 1][d]) / 2;
+      }
+    }
+
+    final float[] expected = new float[QUERIES];
+    gallery.setEarlyAbandon(0);
+    // warm-up pass, records the exhaustive results
+    time(gallery, queries, expected);
+    final long fullNanos = time(gallery, queries, expected);
+    gallery.setEarlyAbandon(EARLY_ABANDON_BLOCK);
+    final StringBuilder sb = new StringBuilder(String.format(
+        Locale.US, "scan of %d rows: full=%.1fus %d dims", gallery.size(), fullNanos / 1000.0, DIM));
+    for (final boolean varianceOrder : new boolean[] {false, true}) {
+      gallery.setVarianceOrder(varianceOrder);
+      gallery.resetScanStats();
+      final long nanos = time(gallery, queries, expected);
+      sb.append(String.format(Locale.US, " %s=%.1fus %.1f dims",
+          varianceOrder ? "abandon+variance" : "abandon", nanos / 1000.0,
+          gallery.getDimsPerComparison()));
+    }
+    System.out.println(sb);
+  }
+
+  // Average nanoseconds per query; fills expected on the first call and checks it afterwards.
+  // Distances rather than labels are compared: a midpoint ties between its two samples, and the
+  // variance order sums in another order, so rounding may pick the other one.
+  private static long time(final FaceGallery gallery, final float[][] queries,
+      final float[] expected) {
+    final Neighbor nearest = new Neighbor();
+    final long start = System.nanoTime();
+    for (int i = 0; i < queries.length; i++) {
+      gallery.findNearest(queries[i], nearest);
+      if (expected[i] == 0) {
+        expected[i] = nearest.getDistance();
+      } else {
+        assertEquals(expected[i], nearest.getDistance(), 1e-5f * expected[i]);
+      }
+    }
+    return (System.nanoTime() - start) / queries.length;
+  }
+}
@@ -0,0 +1,175 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Round trips of every gallery kind through {@link GalleryFile}. */
+public class GalleryFileTest {
+  private static final int DIM = SyntheticFaces.DIM;
+  private static final int IDENTITIES = 400;
+  private static final int SAMPLES_PER_IDENTITY = 3;
+
+  private FaceGallery source;
+  private float[][] queries;
+
+  @Before
+  public void setUp() {
+    final SyntheticFaces faces = new SyntheticFaces(99, IDENTITIES);
+    source = new FaceGallery(DIM, Metric.COSINE);
+    faces.addTo(source, SAMPLES_PER_IDENTITY);
+    // tombstones are not written
+    source.remove(SyntheticFaces.label(0));
+    queries = faces.queries(100, 1);
+  }
+
+  @Test
+  public void floatGalleryRoundTrips() throws IOException {
+    final File file = tempFile();
+    GalleryFile.save(source, file);
+    final FaceGallery loaded = new FaceGallery(DIM, Metric.COSINE);
+    assertEquals(source.size(), GalleryFile.load(file, loaded));
+    assertEquals(source.labelCount(), loaded.labelCount());
+    assertEquals(0, loaded.samplesOf(SyntheticFaces.label(0)));
+    assertSameResults(source, loaded);
+  }
+
+  @Test
+  public void floatGalleryKeepsRawEmbeddings() throws IOException {
+    final File file = tempFile();
+    GalleryFile.save(source, file);
+    final FaceGallery loaded = new FaceGallery(DIM, Metric.L2);
+    GalleryFile.load(file, loaded);
+    final float[] expected = new float[DIM];
+    final float[] actual = new float[DIM];
+    int row = 0;
+    for (int r = 0; r < source.rowCount(); r++) {
+      if (!source.isLive(r)) {
+        continue;
+      }
+      source.getRawEmbedding(r, expected);
+      loaded.getEmbedding(row++, actual);
+      for (int d = 0; d < DIM; d++) {
+        assertEquals(expected[d], actual[d], 1e-5f * Math.abs(expected[d]) + 1e-6f);
+      }
+    }
+    assertEquals(source.size(), row);
+  }
+
+  @Test
+  public void ivfPqGalleryRoundTrips() throws IOException {
+    final IvfPqGallery compressed = IvfPqGallery.train(source, IvfPqGallery.DEFAULT_CODE_SIZE, 4);
+    final File file = tempFile();
+    GalleryFile.save(compressed, file);
+    final IvfPqGallery loaded = GalleryFile.loadIvfPq(file, DIM, Metric.COSINE);
+    assertEquals(compressed.size(), loaded.size());
+    assertEquals(compressed.labelCount(), loaded.labelCount());
+    assertSameResults(compressed, loaded);
+
+    // samples enrolled after loading are encoded with the stored codebooks
+    loaded.add("newcomer", queries[0]);
+    final Neighbor nearest = new Neighbor();
+    assertTrue(loaded.findNearest(queries[0], nearest));
+    assertEquals("newcomer", nearest.getLabel());
+  }
+
+  @Test
+  public void int8GalleryRoundTrips() throws IOException {
+    final Int8Gallery quantized = Int8Gallery.quantize(source);
+    quantized.remove("person1");
+    final File file = tempFile();
+    GalleryFile.save(quantized, file);
+    final Int8Gallery loaded = GalleryFile.loadInt8(file, DIM, Metric.COSINE);
+    assertEquals(quantized.size(), loaded.size());
+    assertEquals(0, loaded.samplesOf("person1"));
+    assertSameResults(quantized, loaded);
+  }
+
+  @Test
+  public void concurrentSavesLeaveAValidFile() throws Exception {
+    final File file = tempFile();
+    final FaceGallery smaller = source.copy();
+    smaller.remove("person1");
+    final Throwable[] error = new Throwable[1];
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final FaceGallery gallery = t % 2 == 0 ? source : smaller;
+      threads[t] = new Thread(() -> {
+        try {
+          for (int i = 0; i < 20; i++) {
+            GalleryFile.save(gallery, file);
+          }
+        } catch (Throwable e) {
+          error[0] = e;
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(null, error[0]);
+
+    final FaceGallery loaded = new FaceGallery(DIM, Metric.COSINE);
+    final int rows = GalleryFile.load(file, loaded);
+    assertTrue(rows == source.size() || rows == smaller.size());
+    final File[] leftovers = file.getParentFile().listFiles(
+        (dir, name) -> name.startsWith(file.getName()) && name.endsWith(".tmp"));
+    assertEquals(0, leftovers.length);
+  }
+
+  @Test
+  public void compressedGalleryOfAnotherMetricIsRejected() throws IOException {
+    final File file = tempFile();
+    GalleryFile.save(Int8Gallery.quantize(source), file);
+    try {
+      GalleryFile.loadInt8(file, DIM, Metric.L2);
+      fail("loaded a cosine gallery as L2");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void corruptFileIsRejected() throws IOException {
+    final File file = tempFile();
+    GalleryFile.save(source, file);
+    final RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.seek(file.length() / 2);
+      final int b = out.read();
+      out.seek(file.length() / 2);
+      out.write(b ^ 0xFF);
+    } finally {
+      out.close();
+    }
+    try {
+      GalleryFile.load(file, new FaceGallery(DIM, Metric.COSINE));
+      fail("loaded a corrupt file");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  private void assertSameResults(final EmbeddingGallery expected, final EmbeddingGallery actual) {
+    final Neighbor a = new Neighbor();
+    final Neighbor b = new Neighbor();
+    for (final float[] query : queries) {
+      assertEquals(expected.findNearest(query, a), actual.findNearest(query, b));
+      assertEquals(a.getLabel(), b.getLabel());
+      assertEquals(a.getDistance(), b.getDistance(), 1e-5f);
+    }
+  }
+
+  private static File tempFile() throws IOException {
+    final File file = File.createTempFile("gallery", ".bin");
+    file.deleteOnExit();
+    return file;
+  }
+}
@@ -0,0 +1,120 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Recall of {@link HnswIndex} against the exhaustive scan of a seeded synthetic gallery. */
+public class HnswIndexTest {
+  private static final int IDENTITIES = 1000;
+  private static final int SAMPLES_PER_IDENTITY = 3;
+  private static final int QUERIES = 300;
+  private static final float MIN_RECALL = 0.95f;
+
+  private SyntheticFaces faces;
+
+  @Before
+  public void setUp() {
+    faces = new SyntheticFaces(1234, IDENTITIES);
+  }
+
+  @Test
+  public void recallAtOneMeetsTargetUnderL2() {
+    final FaceGallery gallery = indexedGallery(Metric.L2);
+    assertRecall(gallery, queries());
+  }
+
+  @Test
+  public void recallAtOneMeetsTargetUnderCosine() {
+    final FaceGallery gallery = indexedGallery(Metric.COSINE);
+    assertRecall(gallery, queries());
+  }
+
+  @Test
+  public void removedIdentitiesAreNeverReturned() {
+    final FaceGallery gallery = indexedGallery(Metric.L2);
+    // a few removals stay tombstones in the graph
+    for (int p = 0; p < IDENTITIES; p += 10) {
+      assertEquals(SAMPLES_PER_IDENTITY, gallery.remove(SyntheticFaces.label(p)));
+    }
+    assertTrue(gallery.rowCount() > gallery.size());
+
+    final Neighbor nearest = new Neighbor();
+    for (int p = 0; p < IDENTITIES; p += 10) {
+      assertTrue(gallery.findNearest(faces.sample(p), nearest));
+      assertFalse(nearest.getLabel().equals(SyntheticFaces.label(p)));
+    }
+    assertRecall(gallery, queries());
+  }
+
+  @Test
+  public void compactionRebuildsTheGraph() {
+    final FaceGallery gallery = indexedGallery(Metric.L2);
+    for (int p = 0; p < IDENTITIES * 2 / 3; p++) {
+      gallery.remove(SyntheticFaces.label(p));
+    }
+    // renumbers the rows and rebuilds the index over the survivors
+    gallery.compact();
+    assertEquals(gallery.size(), gallery.rowCount());
+
+    final Neighbor nearest = new Neighbor();
+    for (int p = IDENTITIES * 2 / 3; p < IDENTITIES; p += 7) {
+      assertTrue(gallery.findNearest(faces.sample(p), nearest));
+      assertEquals(SyntheticFaces.label(p), nearest.getLabel());
+    }
+    assertRecall(gallery, queries());
+  }
+
+  @Test
+  public void incrementalInsertsAreSearchable() {
+    final FaceGallery gallery = indexedGallery(Metric.L2);
+    final float[] embedding = faces.sample(3);
+    gallery.add("newcomer", embedding);
+
+    final Neighbor nearest = new Neighbor();
+    assertTrue(gallery.findNearest(embedding, nearest));
+    assertEquals("newcomer", nearest.getLabel());
+    assertEquals(0f, nearest.getDistance(), 1e-3f);
+  }
+
+  @Test
+  public void copyHasAnIndependentIndex() {
+    final FaceGallery gallery = indexedGallery(Metric.L2);
+    final FaceGallery copy = gallery.copy();
+    assertNotSame(gallery.getIndex(), copy.getIndex());
+
+    final float[] embedding = faces.sample(5);
+    copy.add("newcomer", embedding);
+    copy.remove(SyntheticFaces.label(7));
+
+    final Neighbor nearest = new Neighbor();
+    assertTrue(copy.findNearest(embedding, nearest));
+    assertEquals("newcomer", nearest.getLabel());
+    assertTrue(gallery.findNearest(embedding, nearest));
+    assertEquals(SyntheticFaces.label(5), nearest.getLabel());
+    assertTrue(gallery.findNearest(faces.sample(7), nearest));
+    assertEquals(SyntheticFaces.label(7), nearest.getLabel());
+    assertRecall(gallery, queries());
+    assertRecall(copy, queries());
+  }
+
+  private FaceGallery indexedGallery(final Metric metric) {
+    final FaceGallery gallery = new FaceGallery(SyntheticFaces.DIM, metric);
+    gallery.setIndex(new HnswIndex(gallery));
+    faces.addTo(gallery, SAMPLES_PER_IDENTITY);
+    return gallery;
+  }
+
+  private static void assertRecall(final FaceGallery gallery, final float[][] queries) {
+    final float recall = gallery.measureIndexRecall(queries);
+    assertTrue("recall@1 " + recall + " below " + MIN_RECALL, recall >= MIN_RECALL);
+  }
+
+  private float[][] queries() {
+    return faces.queries(QUERIES, 0);
+  }
+}
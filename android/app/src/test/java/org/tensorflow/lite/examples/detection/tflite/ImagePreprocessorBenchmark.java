@@ -0,0 +1,64 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Times the original per-pixel loop against every float {@link ImagePreprocessor} available on
+ * this machine; the native variant only runs where the engine library loads. Prints the average
+ * time per image rather than asserting on it.
+ * Ignored in the unit-test run; remove {@code @Ignore} locally to take a measurement.
+ */
+@Ignore("benchmark, run manually")
+public class ImagePreprocessorBenchmark {
+  private static final int WARM_UP = 20;
+  private static final int ITERATIONS = 200;
+
+  @Test
+  public void compareVariants() {
+    final int size = ImagePreprocessorTest.INPUT_SIZE;
+    final float mean = ImagePreprocessorTest.MEAN;
+    final float std = ImagePreprocessorTest.STD;
+    final Random random = new Random(1);
+    final int[] pixels = new int[size * size];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = random.nextInt();
+    }
+
+    final StringBuilder sb = new StringBuilder("preprocess");
+    final long referenceNanos = time(() -> ImagePreprocessorTest.reference(pixels));
+    sb.append(String.format(Locale.US, " reference=%.1fus", referenceNanos / 1000.0));
+    final ImagePreprocessor[] variants = {
+        ImagePreprocessor.create(size, false, mean, std, false),
+        ImagePreprocessor.create(size, false, mean, std, true),
+    };
+    for (final ImagePreprocessor variant : variants) {
+      if (variant != variants[0] && variant.getName().equals(variants[0].getName())) {
+        continue;
+      }
+      final ByteBuffer buffer = ImagePreprocessorTest.buffer(variant.getBytesPerImage());
+      System.arraycopy(pixels, 0, variant.pixels, 0, pixels.length);
+      final long nanos = time(() -> {
+        buffer.rewind();
+        variant.writePixels(buffer);
+      });
+      sb.append(String.format(Locale.US, " %s=%.1fus", variant.getName(), nanos / 1000.0));
+    }
+    System.out.println(sb);
+  }
+
+  // Average nanoseconds per run after warming up.
+  private static long time(final Runnable run) {
+    for (int i = 0; i < WARM_UP; i++) {
+      run.run();
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      run.run();
+    }
+    return (System.nanoTime() - start) / ITERATIONS;
+  }
+}
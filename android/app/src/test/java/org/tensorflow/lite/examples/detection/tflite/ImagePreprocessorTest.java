@@ -0,0 +1,123 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Every {@link ImagePreprocessor} writes what the original per-pixel loop wrote. */
+public class ImagePreprocessorTest {
+  static final int INPUT_SIZE = 112;
+  static final float MEAN = 128f;
+  static final float STD = 128f;
+
+  private int[] pixels;
+
+  @Before
+  public void setUp() {
+    final Random random = new Random(5);
+    pixels = new int[INPUT_SIZE * INPUT_SIZE];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = random.nextInt();
+    }
+    // every channel value at least once
+    for (int v = 0; v < 256; v++) {
+      pixels[v] = 0xff000000 | v << 16 | (255 - v) << 8 | v;
+    }
+  }
+
+  @Test
+  public void lookupMatchesReference() {
+    final ImagePreprocessor lookup =
+        ImagePreprocessor.create(INPUT_SIZE, false, MEAN, STD, false);
+    assertEquals("lut", lookup.getName());
+    assertFloatsMatchReference(lookup);
+  }
+
+  @Test
+  public void nativeMatchesReference() {
+    final ImagePreprocessor variant = ImagePreprocessor.create(INPUT_SIZE, false, MEAN, STD, true);
+    assumeTrue("engine library not loaded", !"lut".equals(variant.getName()));
+    assertFloatsMatchReference(variant);
+  }
+
+  @Test
+  public void quantizedMatchesReference() {
+    final ImagePreprocessor quantized =
+        ImagePreprocessor.create(INPUT_SIZE, true, MEAN, STD, false);
+    final ByteBuffer expected = buffer(pixels.length * 3);
+    for (final int p : pixels) {
+      expected.put((byte) ((p >> 16) & 0xFF));
+      expected.put((byte) ((p >> 8) & 0xFF));
+      expected.put((byte) (p & 0xFF));
+    }
+    final ByteBuffer actual = buffer(quantized.getBytesPerImage());
+    System.arraycopy(pixels, 0, quantized.pixels, 0, pixels.length);
+    quantized.writePixels(actual);
+    assertEquals(actual.capacity(), actual.position());
+    assertArrayEquals(bytes(expected), bytes(actual));
+  }
+
+  @Test
+  public void consecutiveImagesAreAppended() {
+    final ImagePreprocessor lookup =
+        ImagePreprocessor.create(INPUT_SIZE, false, MEAN, STD, false);
+    final ByteBuffer batch = buffer(2 * lookup.getBytesPerImage());
+    System.arraycopy(pixels, 0, lookup.pixels, 0, pixels.length);
+    lookup.writePixels(batch);
+    lookup.writePixels(batch);
+    assertEquals(batch.capacity(), batch.position());
+
+    final float[] expected = reference(pixels);
+    final float[] second = new float[expected.length];
+    batch.position(lookup.getBytesPerImage());
+    batch.asFloatBuffer().get(second);
+    assertArrayEquals(expected, second, 0f);
+  }
+
+  private void assertFloatsMatchReference(final ImagePreprocessor variant) {
+    final ByteBuffer actual = buffer(variant.getBytesPerImage());
+    System.arraycopy(pixels, 0, variant.pixels, 0, pixels.length);
+    variant.writePixels(actual);
+    assertEquals(actual.capacity(), actual.position());
+
+    final float[] floats = new float[pixels.length * 3];
+    actual.rewind();
+    actual.asFloatBuffer().get(floats);
+    assertArrayEquals(reference(pixels), floats, 1e-6f);
+  }
+
+  /** The loop generateEmbeddings used before ImagePreprocessor, for float models. */
+  static float[] reference(final int[] pixels) {
+    final ByteBuffer buffer = buffer(pixels.length * 3 * 4);
+    for (int i = 0; i < INPUT_SIZE; ++i) {
+      for (int j = 0; j < INPUT_SIZE; ++j) {
+        int pixelValue = pixels[i * INPUT_SIZE + j];
+        buffer.putFloat((((pixelValue >> 16) & 0xFF) - MEAN) / STD);
+        buffer.putFloat((((pixelValue >> 8) & 0xFF) - MEAN) / STD);
+        buffer.putFloat(((pixelValue & 0xFF) - MEAN) / STD);
+      }
+    }
+    final float[] out = new float[pixels.length * 3];
+    buffer.rewind();
+    buffer.asFloatBuffer().get(out);
+    return out;
+  }
+
+  static ByteBuffer buffer(final int bytes) {
+    return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+  }
+
+  private static byte[] bytes(final ByteBuffer buffer) {
+    final byte[] out = new byte[buffer.capacity()];
+    final ByteBuffer view = buffer.duplicate();
+    view.rewind();
+    view.get(out);
+    return out;
+  }
+}
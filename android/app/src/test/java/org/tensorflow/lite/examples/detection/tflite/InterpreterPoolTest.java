@@ -0,0 +1,154 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+import android.graphics.Matrix;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
+
+/**
+ * The recognition path of {@link InterpreterPool} reuses its input and output holders, so once
+ * warmed up a call allocates nothing. The interpreter is replaced by a fake, which keeps the test
+ * on the JVM and the measurement limited to the pool's own code.
+ */
+public class InterpreterPoolTest {
+  private static final int INPUT_SIZE = 112;
+  private static final int EMBEDDING_SIZE = 192;
+  private static final int MAX_BATCH_SIZE = 4;
+  private static final int WARM_UP_CALLS = 20;
+  private static final int MEASURED_CALLS = 200;
+
+  /** Remembers what it was run on and writes the invocation count into every output row. */
+  private static class FakeRunner implements InterpreterPool.Runner {
+    Object[] inputs;
+    Map<Integer, Object> outputs;
+    Object input;
+    Object output;
+    int runs;
+    int resizes;
+
+    @Override
+    public void run(final Object[] inputs, final Map<Integer, Object> outputs) {
+      this.inputs = inputs;
+      this.outputs = outputs;
+      input = inputs[0];
+      output = outputs.get(0);
+      runs++;
+      for (final float[] row : (float[][]) output) {
+        row[0] = runs;
+      }
+    }
+
+    @Override
+    public void resizeInput(final int index, final int[] shape) {
+      resizes++;
+    }
+
+    @Override
+    public void setNumThreads(final int numThreads) {}
+
+    @Override
+    public void setUseNNAPI(final boolean useNNAPI) {}
+
+    @Override
+    public void close() {}
+  }
+
+  private FakeRunner runner;
+  private InterpreterPool pool;
+  private YuvFrame frame;
+  private Matrix[] transforms;
+  private float[][] embeddings;
+
+  @Before
+  public void setUp() {
+    runner = new FakeRunner();
+    pool = new InterpreterPool(
+        (model, numThreads) -> runner, ByteBuffer.allocate(0), INPUT_SIZE, false, 128f, 128f,
+        MAX_BATCH_SIZE, 1);
+    frame = new YuvFrame();
+    frame.setNv21(new byte[64 * 48 * 3 / 2], 64, 48);
+    transforms = new Matrix[MAX_BATCH_SIZE];
+    for (int i = 0; i < transforms.length; i++) {
+      transforms[i] = new Matrix();
+    }
+    embeddings = new float[MAX_BATCH_SIZE][EMBEDDING_SIZE];
+  }
+
+  @Test
+  public void fixedBatchSizeReusesBuffersAndHolders() {
+    recognize(3);
+    final Object[] inputs = runner.inputs;
+    final Map<Integer, Object> outputs = runner.outputs;
+    final Object input = runner.input;
+    final Object output = runner.output;
+    assertNotNull(input);
+    assertEquals(1, runner.resizes);
+
+    for (int i = 0; i < 10; i++) {
+      recognize(3);
+      assertSame(inputs, runner.inputs);
+      assertSame(outputs, runner.outputs);
+      assertSame(input, runner.input);
+      assertSame(output, runner.output);
+    }
+    // the interpreter is only resized when the batch size changes
+    assertEquals(1, runner.resizes);
+    // results land in the caller's arrays, not in copies
+    for (int i = 0; i < 3; i++) {
+      assertEquals(runner.runs, embeddings[i][0], 0f);
+    }
+
+    recognize(2);
+    assertEquals(2, runner.resizes);
+    recognize(3);
+    assertEquals(3, runner.resizes);
+    assertSame(input, runner.input);
+    assertSame(output, runner.output);
+  }
+
+  @Test
+  public void steadyStateAllocatesNothing() {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(
+        "thread allocation counters are not available",
+        bean instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled());
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    final long thread = Thread.currentThread().getId();
+
+    for (int i = 0; i < WARM_UP_CALLS; i++) {
+      recognize(3);
+    }
+    // reading the counter may itself allocate, measure that first
+    long overhead = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      final long before = threads.getThreadAllocatedBytes(thread);
+      overhead = Math.min(overhead, threads.getThreadAllocatedBytes(thread) - before);
+    }
+
+    final long before = threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < MEASURED_CALLS; i++) {
+      recognize(3);
+    }
+    final long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+    assertEquals("bytes allocated by " + MEASURED_CALLS + " calls", 0, allocated);
+  }
+
+  // What TFLiteObjectDetectionAPIModel.generateEmbeddings does for the faces of one frame.
+  private void recognize(final int faces) {
+    final InterpreterPool.Slot slot = pool.acquire();
+    try {
+      slot.runBatch(null, frame, transforms, 0, faces, embeddings);
+    } finally {
+      pool.release(slot);
+    }
+  }
+}
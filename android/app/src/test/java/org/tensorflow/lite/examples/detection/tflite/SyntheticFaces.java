@@ -0,0 +1,65 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Random;
+
+/**
+ * Seeded synthetic embeddings for gallery tests: every identity has a Gaussian centre, and each of
+ * its samples adds Gaussian noise to it. Identity {@code p} is labelled {@code "person" + p}.
+ */
+final class SyntheticFaces {
+  static final int DIM = 192;
+  static final float NOISE = 0.7f;
+
+  private final Random random;
+  private final float[][] centers;
+
+  SyntheticFaces(final long seed, final int identities) {
+    random = new Random(seed);
+    centers = new float[identities][DIM];
+    for (final float[] center : centers) {
+      for (int d = 0; d < DIM; d++) {
+        center[d] = (float) random.nextGaussian();
+      }
+    }
+  }
+
+  static String label(final int identity) {
+    return "person" + identity;
+  }
+
+  int identities() {
+    return centers.length;
+  }
+
+  /** A uniformly drawn identity in {@code [first, identities())}. */
+  int nextIdentity(final int first) {
+    return first + random.nextInt(centers.length - first);
+  }
+
+  /** A fresh noisy sample of {@code identity}. */
+  float[] sample(final int identity) {
+    final float[] v = new float[DIM];
+    for (int d = 0; d < DIM; d++) {
+      v[d] = centers[identity][d] + NOISE * (float) random.nextGaussian();
+    }
+    return v;
+  }
+
+  /** {@code count} samples of identities drawn from {@code [first, identities())}. */
+  float[][] queries(final int count, final int first) {
+    final float[][] queries = new float[count][];
+    for (int i = 0; i < count; i++) {
+      queries[i] = sample(nextIdentity(first));
+    }
+    return queries;
+  }
+
+  /** Adds {@code samplesPerIdentity} samples of every identity to {@code gallery}, in order. */
+  void addTo(final EmbeddingGallery gallery, final int samplesPerIdentity) {
+    for (int p = 0; p < centers.length; p++) {
+      for (int s = 0; s < samplesPerIdentity; s++) {
+        gallery.add(label(p), sample(p));
+      }
+    }
+  }
+}
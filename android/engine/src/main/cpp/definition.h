@@ -21,6 +21,12 @@
 #define LIVE_METHOD(METHOD_NAME) \
     Java_org_tensorflow_lite_examples_engine_Live_##METHOD_NAME
 
+#define PREPROCESSOR_METHOD(METHOD_NAME) \
+    Java_org_tensorflow_lite_examples_engine_Preprocessor_##METHOD_NAME
+
+#define INT8_DOT_METHOD(METHOD_NAME) \
+    Java_org_tensorflow_lite_examples_engine_Int8Dot_##METHOD_NAME
+
 struct FaceBox {
     float confidence;
     float x1;
@@ -7,7 +7,7 @@
 #include "img_process.h"
 #include "android_log.h"
 
-int ConvertBitmap2Mat(JNIEnv* env, jobject bitmap, cv::Mat& out) {
+int LockBitmap(JNIEnv* env, jobject bitmap, cv::Mat& rgba) {
     AndroidBitmapInfo info;
     void* pixels = nullptr;
     int ret;
@@ -27,8 +27,20 @@ int ConvertBitmap2Mat(JNIEnv* env, jobject bitmap, cv::Mat& out) {
         return ret;
     }
 
-    cv::Mat img(info.height, info.width, CV_8UC4, pixels, info.stride);
+    // 只是包装像素，调用方用完后需 AndroidBitmap_unlockPixels
+    rgba = cv::Mat(info.height, info.width, CV_8UC4, pixels, info.stride);
+    return 0;
+}
+
+int ConvertBitmap2Mat(JNIEnv* env, jobject bitmap, cv::Mat& out) {
+    cv::Mat img;
+    int ret = LockBitmap(env, bitmap, img);
+    if (ret != 0) {
+        return ret;
+    }
+
     cv::cvtColor(img, out, cv::COLOR_RGBA2BGR);
+    AndroidBitmap_unlockPixels(env, bitmap);
     return 0;
 }
 
@@ -47,35 +59,99 @@ void Yuv420sp2bgr(unsigned char* data, int width, int height, int orientation, c
 
     cv::cvtColor(yuv, dst, cv::COLOR_YUV2BGR_NV21);
 
+    ApplyOrientation(dst, orientation);
+}
+
+void ApplyOrientation(cv::Mat& image, int orientation) {
     switch (orientation) {
         case 1: // 不需要处理
             break;
         case 2: // 水平翻转
-            cv::flip(dst, dst, 1);
+            cv::flip(image, image, 1);
             break;
         case 3: // 先水平翻转 然后垂直翻转
-            cv::flip(dst, dst, -1);
+            cv::flip(image, image, -1);
             break;
         case 4: // 垂直翻转
-            cv::flip(dst, dst, 0);
+            cv::flip(image, image, 0);
             break;
         case 5: // transpose
-            cv::transpose(dst, dst);
+            cv::transpose(image, image);
             break;
         case 6: // 顺时针旋转90°
-            RotateClockWise90(dst);
+            RotateClockWise90(image);
             break;
         case 7: // 水平、垂直翻转 --> transpose
-            cv::flip(dst, dst, -1);
-            cv::transpose(dst, dst);
+            cv::flip(image, image, -1);
+            cv::transpose(image, image);
             break;
         case 8: // 逆时针旋转90°
-            RotateAntiClockWise90(dst);
+            RotateAntiClockWise90(image);
             break;
         default:break;
     }
 }
 
+cv::Size OrientedSize(int width, int height, int orientation) {
+    return orientation >= 5 && orientation <= 8 ? cv::Size(height, width) : cv::Size(width, height);
+}
+
+// 原图 (width x height) 上的点 (x, y) 经 orientation 变换后的坐标；inverse 为 true 时反过来
+static cv::Point OrientPoint(int x, int y, int width, int height, int orientation, bool inverse) {
+    switch (orientation) {
+        case 2: return cv::Point(width - 1 - x, y);
+        case 3: return cv::Point(width - 1 - x, height - 1 - y);
+        case 4: return cv::Point(x, height - 1 - y);
+        case 5: return cv::Point(y, x);
+        case 6: return inverse ? cv::Point(y, height - 1 - x) : cv::Point(height - 1 - y, x);
+        case 7: return inverse ? cv::Point(width - 1 - y, height - 1 - x)
+                               : cv::Point(height - 1 - y, width - 1 - x);
+        case 8: return inverse ? cv::Point(width - 1 - y, x) : cv::Point(y, width - 1 - x);
+        default: return cv::Point(x, y);
+    }
+}
+
+static cv::Rect OrientRect(const cv::Rect& rect, int width, int height, int orientation, bool inverse) {
+    cv::Point a = OrientPoint(rect.x, rect.y, width, height, orientation, inverse);
+    cv::Point b = OrientPoint(rect.x + rect.width - 1, rect.y + rect.height - 1,
+                              width, height, orientation, inverse);
+    return cv::Rect(cv::Point(std::min(a.x, b.x), std::min(a.y, b.y)),
+                    cv::Point(std::max(a.x, b.x) + 1, std::max(a.y, b.y) + 1));
+}
+
+/**
+ * 只转换 roi 覆盖的区域：roi 是 orientation 变换后图像上的矩形，先映射回 NV21 原图，
+ * 按 2 对齐（UV 每 2x2 像素一组）后拷出这一块的 Y、VU，再转 BGR、做方向变换。
+ * 返回 dst 在变换后图像上实际对应的矩形，因为对齐可能比 roi 略大。
+ */
+cv::Rect CropYuv420sp2bgr(unsigned char* data, int width, int height, int orientation,
+                          const cv::Rect& roi, cv::Mat& dst) {
+    cv::Size oriented = OrientedSize(width, height, orientation);
+    cv::Rect clipped = roi & cv::Rect(0, 0, oriented.width, oriented.height);
+    if (clipped.area() == 0) {
+        dst.release();
+        return clipped;
+    }
+
+    cv::Rect src = OrientRect(clipped, width, height, orientation, true);
+    int x1 = src.x & ~1;
+    int y1 = src.y & ~1;
+    int x2 = std::min((src.x + src.width + 1) & ~1, width & ~1);
+    int y2 = std::min((src.y + src.height + 1) & ~1, height & ~1);
+    src = cv::Rect(x1, y1, x2 - x1, y2 - y1);
+
+    // 拼成一块连续的 NV21：上面 Y，下面交错的 VU
+    cv::Mat crop(src.height + src.height / 2, src.width, CV_8UC1);
+    cv::Mat(height, width, CV_8UC1, data)(src).copyTo(crop.rowRange(0, src.height));
+    cv::Mat(height / 2, width, CV_8UC1, data + width * height)
+            (cv::Rect(src.x, src.y / 2, src.width, src.height / 2))
+            .copyTo(crop.rowRange(src.height, crop.rows));
+
+    cv::cvtColor(crop, dst, cv::COLOR_YUV2BGR_NV21);
+    ApplyOrientation(dst, orientation);
+    return OrientRect(src, width, height, orientation, false);
+}
+
 void RotateAntiClockWise90(cv::Mat &image) {
     if (image.empty()) return;
 
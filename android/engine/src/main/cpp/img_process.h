@@ -10,8 +10,17 @@
 
 int ConvertBitmap2Mat(JNIEnv* env, jobject bitmap, cv::Mat& out);
 
+int LockBitmap(JNIEnv* env, jobject bitmap, cv::Mat& rgba);
+
 void Yuv420sp2bgr(unsigned char* data, int width, int height, int orientation, cv::Mat& dst);
 
+cv::Rect CropYuv420sp2bgr(unsigned char* data, int width, int height, int orientation,
+                          const cv::Rect& roi, cv::Mat& dst);
+
+void ApplyOrientation(cv::Mat& image, int orientation);
+
+cv::Size OrientedSize(int width, int height, int orientation);
+
 void RotateClockWise90(cv::Mat& image);
 
 void RotateAntiClockWise90(cv::Mat& image);
@@ -0,0 +1,85 @@
+//
+// Dot products of an int8 query with int8 gallery rows, used by the quantized face gallery scan.
+//
+
+#include <jni.h>
+#include <cstdint>
+#if defined(__ARM_NEON)
+#include <arm_neon.h>
+#endif
+#include "definition.h"
+#include "android_log.h"
+
+extern "C" {
+
+JNIEXPORT jboolean JNICALL
+INT8_DOT_METHOD(nativeDotAll)(JNIEnv *env, jobject instance, jbyteArray query, jbyteArray codes,
+                              jint rows, jint dim, jintArray out);
+
+JNIEXPORT jboolean JNICALL
+INT8_DOT_METHOD(nativeHasNeon)(JNIEnv *env, jobject instance);
+
+}
+
+// Components are in [-127, 127], so two products summed in 16 bits stay below 32767.
+static int32_t Dot(const int8_t* a, const int8_t* b, int dim) {
+    int i = 0;
+    int32_t sum = 0;
+#if defined(__ARM_NEON)
+    int32x4_t acc = vdupq_n_s32(0);
+    for (; i + 16 <= dim; i += 16) {
+        int8x16_t va = vld1q_s8(a + i);
+        int8x16_t vb = vld1q_s8(b + i);
+        int16x8_t products = vmull_s8(vget_low_s8(va), vget_low_s8(vb));
+        products = vmlal_s8(products, vget_high_s8(va), vget_high_s8(vb));
+        acc = vpadalq_s16(acc, products);
+    }
+    int32x2_t pair = vadd_s32(vget_low_s32(acc), vget_high_s32(acc));
+    sum = vget_lane_s32(vpadd_s32(pair, pair), 0);
+#endif
+    for (; i < dim; i++) {
+        sum += a[i] * b[i];
+    }
+    return sum;
+}
+
+JNIEXPORT jboolean JNICALL
+INT8_DOT_METHOD(nativeDotAll)(JNIEnv *env, jobject instance, jbyteArray query, jbyteArray codes,
+        jint rows, jint dim, jintArray out) {
+    if (rows < 0 || dim <= 0 || env->GetArrayLength(query) < dim
+            || env->GetArrayLength(codes) < static_cast<jlong>(rows) * dim
+            || env->GetArrayLength(out) < rows) {
+        LOG_WARN("nativeDotAll: invalid arrays for %d rows of %d", rows, dim);
+        return JNI_FALSE;
+    }
+
+    auto* q = reinterpret_cast<int8_t*>(env->GetPrimitiveArrayCritical(query, nullptr));
+    auto* c = reinterpret_cast<int8_t*>(env->GetPrimitiveArrayCritical(codes, nullptr));
+    auto* dots = reinterpret_cast<int32_t*>(env->GetPrimitiveArrayCritical(out, nullptr));
+    jboolean ok = JNI_FALSE;
+    if (q != nullptr && c != nullptr && dots != nullptr) {
+        for (int r = 0; r < rows; r++) {
+            dots[r] = Dot(q, c + static_cast<size_t>(r) * dim, dim);
+        }
+        ok = JNI_TRUE;
+    }
+    if (dots != nullptr) {
+        env->ReleasePrimitiveArrayCritical(out, dots, ok ? 0 : JNI_ABORT);
+    }
+    if (c != nullptr) {
+        env->ReleasePrimitiveArrayCritical(codes, c, JNI_ABORT);
+    }
+    if (q != nullptr) {
+        env->ReleasePrimitiveArrayCritical(query, q, JNI_ABORT);
+    }
+    return ok;
+}
+
+JNIEXPORT jboolean JNICALL
+INT8_DOT_METHOD(nativeHasNeon)(JNIEnv *env, jobject instance) {
+#if defined(__ARM_NEON)
+    return JNI_TRUE;
+#else
+    return JNI_FALSE;
+#endif
+}
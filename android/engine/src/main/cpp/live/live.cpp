@@ -2,18 +2,31 @@
 // Created by yuanhao on 20-6-12.
 //
 
+#include <chrono>
+#include <cmath>
 #include <opencv2/imgproc.hpp>
 #include "live.h"
 #include "../android_log.h"
+#include "../img_process.h"
 
 Live::Live() {
     thread_num_ = 2;
+    model_num_ = 0;
+    concurrent_ = false;
+    cascade_ = false;
+    cascade_threshold_ = 0.5f;
+    cascade_band_ = 0.f;
+    first_ = 0;
+    for (auto &stat : cascade_stats_) {
+        stat = 0;
+    }
 
     option_.lightmode = true;
     option_.num_threads = thread_num_;
 }
 
 Live::~Live() {
+    pool_.reset();
     for (int i = 0; i < nets_.size(); ++i) {
         nets_[i]->clear();
         delete nets_[i];
@@ -42,33 +55,103 @@ int Live::LoadModel(AAssetManager *assetManager, std::vector<ModelConfig> &confi
         }
         nets_.emplace_back(net);
     }
+
+    // 级联模式先跑输入最小的模型，一样大时按配置顺序
+    first_ = 0;
+    for (int i = 1; i < model_num_; ++i) {
+        if (configs_[i].width * configs_[i].height < configs_[first_].width * configs_[first_].height) {
+            first_ = i;
+        }
+    }
     return 0;
 }
 
 float Live::Detect(cv::Mat &src, FaceBox &box) {
-    float confidence = 0.f;
+    CalculateBoxes(box, src.cols, src.rows);
+    return Classify(src, cv::Point(0, 0), box);
+}
+
+float Live::DetectYuv(unsigned char *nv21, int width, int height, int orientation, FaceBox &box) {
+    cv::Size size = OrientedSize(width, height, orientation);
+    cv::Rect roi = CalculateBoxes(box, size.width, size.height);
+    cv::Rect converted = CropYuv420sp2bgr(nv21, width, height, orientation, roi, region_);
+    return Classify(region_, converted.tl(), box);
+}
+
+float Live::DetectRgba(const cv::Mat &rgba, FaceBox &box) {
+    cv::Rect roi = CalculateBoxes(box, rgba.cols, rgba.rows) & cv::Rect(0, 0, rgba.cols, rgba.rows);
+    if (roi.area() <= 0) {
+        // 人脸框裁剪后为空（在画面外），cvtColor 会在 JNI 里断言失败，当作没有人脸
+        LOG_WARN("Live ROI is empty");
+        box.confidence = 0.f;
+        return 0.f;
+    }
+    cv::cvtColor(rgba(roi), region_, cv::COLOR_RGBA2BGR);
+    return Classify(region_, roi.tl(), box);
+}
+
+cv::Rect Live::CalculateBoxes(FaceBox &box, int w, int h) {
+    cv::Rect frame(0, 0, w, h);
+    cv::Rect united;
+    rects_.resize(model_num_);
     for (int i = 0; i < model_num_; i++) {
-        cv::Mat roi;
-        if(configs_[i].org_resize) {
-            cv::resize(src, roi, cv::Size(configs_[i].width, configs_[i].height));
-        } else {
-            cv::Rect rect = CalculateBox(box, src.cols, src.rows, configs_[i]);
-            // roi resize
-            cv::resize(src(rect), roi, cv::Size(configs_[i].width, configs_[i].height));
-        }
+        // org_resize 的模型用整帧
+        rects_[i] = configs_[i].org_resize ? frame : CalculateBox(box, w, h, configs_[i]) & frame;
+        united = i == 0 ? rects_[i] : (united | rects_[i]);
+    }
+    return united;
+}
+
+void Live::SetConcurrent(bool concurrent) {
+    concurrent_ = concurrent;
+    if (!concurrent) {
+        pool_.reset();
+    }
+}
 
-        ncnn::Mat in = ncnn::Mat::from_pixels(roi.data, ncnn::Mat::PIXEL_BGR, roi.cols, roi.rows);
+void Live::SetCascade(bool cascade, float threshold, float band) {
+    cascade_ = cascade;
+    cascade_threshold_ = threshold;
+    cascade_band_ = band;
+}
+
+void Live::GetCascadeStats(int64_t *stats) const {
+    for (int i = 0; i < CASCADE_STAT_NUM; i++) {
+        stats[i] = cascade_stats_[i].load();
+    }
+}
+
+float Live::Classify(const cv::Mat &region, const cv::Point &origin, FaceBox &box) {
+    rois_.resize(model_num_);
+    confidences_.assign(model_num_, -1.f);
+    times_.assign(model_num_, 0.f);
+    ok_.assign(model_num_, 0);
 
-        // inference
-        ncnn::Extractor extractor = nets_[i]->create_extractor();
-        extractor.set_light_mode(true);
-        extractor.set_num_threads(thread_num_);
+    if (cascade_ && model_num_ > 1) {
+        // 先跑最便宜的模型，置信度离阈值足够远就不再跑其他模型
+        if (!RunModel(first_, region, origin, thread_num_)) {
+            box.confidence = 0.f;
+            return 0.f;
+        }
+        float first = confidences_[first_];
+        if (std::fabs(first - cascade_threshold_) > cascade_band_) {
+            cascade_stats_[first > cascade_threshold_ ? CASCADE_EARLY_REAL : CASCADE_EARLY_FAKE]++;
+            box.confidence = first;
+            return first;
+        }
+        cascade_stats_[CASCADE_FULL]++;
+        ok_[first_] = 1;
+    }
 
-        extractor.input(net_input_name_.c_str(), in);
-        ncnn::Mat out;
-        extractor.extract(net_output_name_.c_str(), out);
+    RunModels(region, origin);
 
-        confidence += out.row(0)[1];
+    float confidence = 0.f;
+    for (int i = 0; i < model_num_; i++) {
+        if (!ok_[i]) {
+            box.confidence = 0.f;
+            return 0.f;
+        }
+        confidence += confidences_[i];
     }
     confidence /= model_num_;
 
@@ -76,6 +159,65 @@ float Live::Detect(cv::Mat &src, FaceBox &box) {
     return confidence;
 }
 
+void Live::RunModels(const cv::Mat &region, const cv::Point &origin) {
+    int remaining = 0;
+    for (int i = 0; i < model_num_; i++) {
+        remaining += ok_[i] ? 0 : 1;
+    }
+
+    if (concurrent_ && remaining > 1 && !pool_) {
+        pool_.reset(new ThreadPool(model_num_));
+    }
+
+    if (pool_ && remaining > 1) {
+        // 线程预算平分给各模型，避免 ncnn 线程数超过核数
+        int thread_num = std::max(1, thread_num_ / remaining);
+        pending_.clear();
+        for (int i = 0; i < model_num_; i++) {
+            if (ok_[i]) continue;
+            pending_.emplace_back(pool_->Submit([this, i, &region, &origin, thread_num] {
+                ok_[i] = RunModel(i, region, origin, thread_num);
+            }));
+        }
+        for (auto &f : pending_) {
+            f.wait();
+        }
+    } else {
+        for (int i = 0; i < model_num_; i++) {
+            if (ok_[i]) continue;
+            ok_[i] = RunModel(i, region, origin, thread_num_);
+        }
+    }
+}
+
+bool Live::RunModel(int i, const cv::Mat &region, const cv::Point &origin, int thread_num) {
+    auto begin = std::chrono::steady_clock::now();
+
+    cv::Rect rect = rects_[i] - origin;
+    if (rect.area() == 0 || (rect & cv::Rect(0, 0, region.cols, region.rows)) != rect) {
+        LOG_WARN("Live ROI outside of the converted region");
+        return false;
+    }
+    // roi resize
+    cv::Mat &roi = rois_[i];
+    cv::resize(region(rect), roi, cv::Size(configs_[i].width, configs_[i].height));
+
+    ncnn::Mat in = ncnn::Mat::from_pixels(roi.data, ncnn::Mat::PIXEL_BGR, roi.cols, roi.rows);
+
+    // inference
+    ncnn::Extractor extractor = nets_[i]->create_extractor();
+    extractor.set_light_mode(true);
+    extractor.set_num_threads(thread_num);
+
+    extractor.input(net_input_name_.c_str(), in);
+    ncnn::Mat out;
+    extractor.extract(net_output_name_.c_str(), out);
+
+    confidences_[i] = out.row(0)[1];
+    times_[i] = std::chrono::duration<float, std::milli>(std::chrono::steady_clock::now() - begin).count();
+    return true;
+}
+
 cv::Rect Live::CalculateBox(FaceBox &box, int w, int h, ModelConfig &config) {
     int x = static_cast<int>(box.x1);
     int y = static_cast<int>(box.y1);
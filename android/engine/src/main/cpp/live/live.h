@@ -5,9 +5,12 @@
 #ifndef LIVEBODYEXAMPLE_LIVE_H
 #define LIVEBODYEXAMPLE_LIVE_H
 
+#include <atomic>
+#include <memory>
 #include <opencv2/core/mat.hpp>
 #include "../include/ncnn/net.h"
 #include "../definition.h"
+#include "thread_pool.h"
 
 class Live {
 public:
@@ -19,9 +22,49 @@ public:
 
     float Detect(cv::Mat &src, FaceBox &box);
 
+    // 只转换两个模型 ROI 的并集，而不是整帧
+    float DetectYuv(unsigned char *nv21, int width, int height, int orientation, FaceBox &box);
+
+    float DetectRgba(const cv::Mat &rgba, FaceBox &box);
+
+    // 并发模式：每个模型在常驻线程池里各占一个线程，各自裁剪、缩放、推理，最后汇总
+    void SetConcurrent(bool concurrent);
+
+    // 级联模式：先跑输入最小的模型，置信度在 threshold ± band 之外就直接返回，否则跑完整个集成
+    void SetCascade(bool cascade, float threshold, float band);
+
+    enum CascadeStat {
+        CASCADE_EARLY_REAL = 0,
+        CASCADE_EARLY_FAKE,
+        CASCADE_FULL,
+        CASCADE_STAT_NUM
+    };
+
+    // 各出口累计次数，按 CascadeStat 顺序写入 stats
+    void GetCascadeStats(int64_t *stats) const;
+
+    int ModelNum() const { return model_num_; }
+
+    // 最近一次检测每个模型的置信度和耗时（毫秒），级联跳过的模型置信度为 -1、耗时为 0
+    const std::vector<float> &ModelConfidences() const { return confidences_; }
+
+    const std::vector<float> &ModelTimes() const { return times_; }
+
 private:
     cv::Rect CalculateBox(FaceBox &box, int w, int h, ModelConfig &config);
 
+    // 计算每个模型的 ROI 存入 rects_，返回它们的并集
+    cv::Rect CalculateBoxes(FaceBox &box, int w, int h);
+
+    // region 是原图中从 origin 开始的一块 BGR 图像，包含 rects_ 的所有区域
+    float Classify(const cv::Mat &region, const cv::Point &origin, FaceBox &box);
+
+    // 运行 ok_ 中还没有结果的模型
+    void RunModels(const cv::Mat &region, const cv::Point &origin);
+
+    // 运行第 i 个模型，结果写入 confidences_[i]、times_[i]
+    bool RunModel(int i, const cv::Mat &region, const cv::Point &origin, int thread_num);
+
 private:
     std::vector<ncnn::Net *> nets_;
     std::vector<ModelConfig> configs_;
@@ -31,6 +74,22 @@ private:
     int thread_num_;
 
     ncnn::Option option_;
+
+    std::vector<cv::Rect> rects_;
+    cv::Mat region_;
+    std::vector<cv::Mat> rois_;
+    std::vector<float> confidences_;
+    std::vector<float> times_;
+
+    bool concurrent_;
+    bool cascade_;
+    float cascade_threshold_;
+    float cascade_band_;
+    int first_;
+    std::atomic<int64_t> cascade_stats_[CASCADE_STAT_NUM];
+    std::unique_ptr<ThreadPool> pool_;
+    std::vector<std::future<void>> pending_;
+    std::vector<char> ok_;
 };
 
 #endif //LIVEBODYEXAMPLE_LIVE_H
@@ -3,6 +3,7 @@
 //
 
 #include <android/asset_manager_jni.h>
+#include <android/bitmap.h>
 #include "jni_long_field.h"
 #include "live/live.h"
 #include "android_log.h"
@@ -37,6 +38,33 @@ JNIEXPORT jfloat JNICALL
 LIVE_METHOD(nativeDetectYuv)(JNIEnv *env, jobject instance, jbyteArray yuv, jint preview_width,
                              jint preview_height, jint orientation, jint left, jint top, jint right, jint bottom);
 
+JNIEXPORT jfloat JNICALL
+LIVE_METHOD(nativeDetectYuvBuffer)(JNIEnv *env, jobject instance, jobject yuv, jint preview_width,
+                                   jint preview_height, jint orientation, jint left, jint top, jint right, jint bottom);
+
+JNIEXPORT jfloat JNICALL
+LIVE_METHOD(nativeDetectBitmap)(JNIEnv *env, jobject instance, jobject bitmap,
+                                jint left, jint top, jint right, jint bottom);
+
+JNIEXPORT void JNICALL
+LIVE_METHOD(nativeSetConcurrent)(JNIEnv *env, jobject instance, jboolean concurrent);
+
+JNIEXPORT jint JNICALL
+LIVE_METHOD(nativeGetModelStats)(JNIEnv *env, jobject instance, jfloatArray confidences, jfloatArray times);
+
+JNIEXPORT void JNICALL
+LIVE_METHOD(nativeSetCascade)(JNIEnv *env, jobject instance, jboolean cascade, jfloat threshold, jfloat band);
+
+JNIEXPORT void JNICALL
+LIVE_METHOD(nativeGetCascadeStats)(JNIEnv *env, jobject instance, jlongArray stats);
+
+}
+
+static void SetFaceBox(FaceBox& faceBox, jint left, jint top, jint right, jint bottom) {
+    faceBox.x1 = left;
+    faceBox.y1 = top;
+    faceBox.x2 = right;
+    faceBox.y2 = bottom;
 }
 
 
@@ -113,17 +141,77 @@ LIVE_METHOD(nativeDetectYuv)(JNIEnv *env, jobject instance, jbyteArray yuv, jint
         jint preview_height, jint orientation, jint left, jint top, jint right, jint bottom) {
     jbyte *yuv_ = env->GetByteArrayElements(yuv, nullptr);
 
-    cv::Mat bgr;
-    Yuv420sp2bgr(reinterpret_cast<unsigned char *>(yuv_), preview_width, preview_height, orientation, bgr);
+    FaceBox faceBox;
+    SetFaceBox(faceBox, left, top, right, bottom);
+
+    float confidence = get_live(env, instance)->DetectYuv(reinterpret_cast<unsigned char *>(yuv_),
+            preview_width, preview_height, orientation, faceBox);
+    env->ReleaseByteArrayElements(yuv, yuv_, JNI_ABORT);
+    return confidence;
+}
+
+// 相机帧直接以 direct ByteBuffer（NV21）传入，不经过 Java 数组拷贝
+JNIEXPORT jfloat JNICALL
+LIVE_METHOD(nativeDetectYuvBuffer)(JNIEnv *env, jobject instance, jobject yuv, jint preview_width,
+        jint preview_height, jint orientation, jint left, jint top, jint right, jint bottom) {
+    auto* data = reinterpret_cast<unsigned char *>(env->GetDirectBufferAddress(yuv));
+    if (data == nullptr || env->GetDirectBufferCapacity(yuv) < preview_width * preview_height * 3 / 2) {
+        LOG_WARN("nativeDetectYuvBuffer: not a direct buffer or too small");
+        return -1.f;
+    }
 
     FaceBox faceBox;
-    faceBox.x1 = left;
-    faceBox.y1 = top;
-    faceBox.x2 = right;
-    faceBox.y2 = bottom;
+    SetFaceBox(faceBox, left, top, right, bottom);
+    return get_live(env, instance)->DetectYuv(data, preview_width, preview_height, orientation, faceBox);
+}
+
+// ARGB_8888 Bitmap 直接锁定像素，只把人脸区域转成 BGR，省掉 Java 里的 RGB -> NV21 和 native 的 NV21 -> BGR
+JNIEXPORT jfloat JNICALL
+LIVE_METHOD(nativeDetectBitmap)(JNIEnv *env, jobject instance, jobject bitmap,
+        jint left, jint top, jint right, jint bottom) {
+    cv::Mat rgba;
+    if (LockBitmap(env, bitmap, rgba) != 0) {
+        return -1.f;
+    }
 
-    float confidence = get_live(env, instance)->Detect(bgr, faceBox);
-    env->ReleaseByteArrayElements(yuv, yuv_, 0);
+    FaceBox faceBox;
+    SetFaceBox(faceBox, left, top, right, bottom);
+    float confidence = get_live(env, instance)->DetectRgba(rgba, faceBox);
+    AndroidBitmap_unlockPixels(env, bitmap);
     return confidence;
 }
 
+JNIEXPORT void JNICALL
+LIVE_METHOD(nativeSetConcurrent)(JNIEnv *env, jobject instance, jboolean concurrent) {
+    get_live(env, instance)->SetConcurrent(concurrent);
+}
+
+// 把最近一次检测每个模型的置信度、耗时拷到 Java 数组，返回模型个数
+JNIEXPORT jint JNICALL
+LIVE_METHOD(nativeGetModelStats)(JNIEnv *env, jobject instance, jfloatArray confidences, jfloatArray times) {
+    Live* live = get_live(env, instance);
+    const std::vector<float>& c = live->ModelConfidences();
+    const std::vector<float>& t = live->ModelTimes();
+    jsize n = std::min(static_cast<jsize>(c.size()),
+            std::min(env->GetArrayLength(confidences), env->GetArrayLength(times)));
+    env->SetFloatArrayRegion(confidences, 0, n, c.data());
+    env->SetFloatArrayRegion(times, 0, n, t.data());
+    return n;
+}
+
+JNIEXPORT void JNICALL
+LIVE_METHOD(nativeSetCascade)(JNIEnv *env, jobject instance, jboolean cascade, jfloat threshold, jfloat band) {
+    get_live(env, instance)->SetCascade(cascade, threshold, band);
+}
+
+JNIEXPORT void JNICALL
+LIVE_METHOD(nativeGetCascadeStats)(JNIEnv *env, jobject instance, jlongArray stats) {
+    int64_t values[Live::CASCADE_STAT_NUM];
+    get_live(env, instance)->GetCascadeStats(values);
+    jlong out[Live::CASCADE_STAT_NUM];
+    for (int i = 0; i < Live::CASCADE_STAT_NUM; i++) {
+        out[i] = values[i];
+    }
+    jsize n = std::min(env->GetArrayLength(stats), static_cast<jsize>(Live::CASCADE_STAT_NUM));
+    env->SetLongArrayRegion(stats, 0, n, out);
+}
@@ -0,0 +1,84 @@
+//
+// ARGB_8888 pixels -> normalized RGB float tensor, used for the face recognition model input.
+//
+
+#include <jni.h>
+#include <cstdint>
+#if defined(__ARM_NEON)
+#include <arm_neon.h>
+#endif
+#include "definition.h"
+#include "android_log.h"
+
+extern "C" {
+
+JNIEXPORT jboolean JNICALL
+PREPROCESSOR_METHOD(nativeNormalize)(JNIEnv *env, jobject instance, jintArray pixels, jint count,
+                                     jfloat mean, jfloat std, jobject out, jint offset);
+
+JNIEXPORT jboolean JNICALL
+PREPROCESSOR_METHOD(nativeHasNeon)(JNIEnv *env, jobject instance);
+
+}
+
+// Java ints are 0xAARRGGBB, so in little-endian memory each pixel is B, G, R, A.
+static void Normalize(const uint8_t* src, int count, float scale, float bias, float* dst) {
+    int i = 0;
+#if defined(__ARM_NEON)
+    const float32x4_t v_scale = vdupq_n_f32(scale);
+    const float32x4_t v_bias = vdupq_n_f32(bias);
+    for (; i + 16 <= count; i += 16) {
+        uint8x16x4_t bgra = vld4q_u8(src + i * 4);
+        uint16x8_t r16[2] = {vmovl_u8(vget_low_u8(bgra.val[2])), vmovl_u8(vget_high_u8(bgra.val[2]))};
+        uint16x8_t g16[2] = {vmovl_u8(vget_low_u8(bgra.val[1])), vmovl_u8(vget_high_u8(bgra.val[1]))};
+        uint16x8_t b16[2] = {vmovl_u8(vget_low_u8(bgra.val[0])), vmovl_u8(vget_high_u8(bgra.val[0]))};
+        for (int h = 0; h < 2; h++) {
+            for (int q = 0; q < 2; q++) {
+                uint32x4_t r32 = q == 0 ? vmovl_u16(vget_low_u16(r16[h])) : vmovl_u16(vget_high_u16(r16[h]));
+                uint32x4_t g32 = q == 0 ? vmovl_u16(vget_low_u16(g16[h])) : vmovl_u16(vget_high_u16(g16[h]));
+                uint32x4_t b32 = q == 0 ? vmovl_u16(vget_low_u16(b16[h])) : vmovl_u16(vget_high_u16(b16[h]));
+                float32x4x3_t rgb;
+                rgb.val[0] = vmlaq_f32(v_bias, vcvtq_f32_u32(r32), v_scale);
+                rgb.val[1] = vmlaq_f32(v_bias, vcvtq_f32_u32(g32), v_scale);
+                rgb.val[2] = vmlaq_f32(v_bias, vcvtq_f32_u32(b32), v_scale);
+                vst3q_f32(dst + (i + h * 8 + q * 4) * 3, rgb);
+            }
+        }
+    }
+#endif
+    for (; i < count; i++) {
+        const uint8_t* p = src + i * 4;
+        dst[i * 3]     = p[2] * scale + bias;
+        dst[i * 3 + 1] = p[1] * scale + bias;
+        dst[i * 3 + 2] = p[0] * scale + bias;
+    }
+}
+
+JNIEXPORT jboolean JNICALL
+PREPROCESSOR_METHOD(nativeNormalize)(JNIEnv *env, jobject instance, jintArray pixels, jint count,
+        jfloat mean, jfloat std, jobject out, jint offset) {
+    auto* dst = reinterpret_cast<uint8_t*>(env->GetDirectBufferAddress(out));
+    jlong capacity = env->GetDirectBufferCapacity(out);
+    if (dst == nullptr || offset < 0 || offset + static_cast<jlong>(count) * 3 * sizeof(float) > capacity
+            || env->GetArrayLength(pixels) < count) {
+        LOG_WARN("nativeNormalize: invalid buffer or pixel count %d", count);
+        return JNI_FALSE;
+    }
+
+    auto* src = reinterpret_cast<uint8_t*>(env->GetPrimitiveArrayCritical(pixels, nullptr));
+    if (src == nullptr) {
+        return JNI_FALSE;
+    }
+    Normalize(src, count, 1.0f / std, -mean / std, reinterpret_cast<float*>(dst + offset));
+    env->ReleasePrimitiveArrayCritical(pixels, src, JNI_ABORT);
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL
+PREPROCESSOR_METHOD(nativeHasNeon)(JNIEnv *env, jobject instance) {
+#if defined(__ARM_NEON)
+    return JNI_TRUE;
+#else
+    return JNI_FALSE;
+#endif
+}
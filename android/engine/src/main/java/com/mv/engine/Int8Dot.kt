@@ -0,0 +1,41 @@
+package org.tensorflow.lite.examples.engine
+
+import androidx.annotation.Keep
+
+/**
+ * int8 人脸特征的点积，ARM 上用 NEON 实现
+ * 每个分量限定在 [-127, 127]，16 位累加不会溢出
+ */
+class Int8Dot : Component() {
+
+    /** 库加载成功且编译时启用了 NEON */
+    val hasNeon: Boolean = libraryFound && nativeHasNeon()
+
+    override fun createInstance(): Long = 0
+
+    override fun destroy() {}
+
+    /**
+     * out[r] = query 与 codes 第 r 行（codes[r * dim, (r + 1) * dim)）的点积，r < rows
+     */
+    fun dotAll(query: ByteArray, codes: ByteArray, rows: Int, dim: Int, out: IntArray): Boolean {
+        if (!libraryFound) {
+            return false
+        }
+        return nativeDotAll(query, codes, rows, dim, out)
+    }
+
+
+    ///////////////////////////////////// Native ////////////////////////////////////
+    @Keep
+    private external fun nativeDotAll(
+        query: ByteArray,
+        codes: ByteArray,
+        rows: Int,
+        dim: Int,
+        out: IntArray
+    ): Boolean
+
+    @Keep
+    private external fun nativeHasNeon(): Boolean
+}
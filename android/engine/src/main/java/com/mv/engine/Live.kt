@@ -1,6 +1,7 @@
 package org.tensorflow.lite.examples.engine
 
 import android.content.res.AssetManager
+import android.graphics.Bitmap
 import android.util.Log
 import androidx.annotation.Keep
 import org.json.JSONArray
@@ -8,6 +9,7 @@ import org.json.JSONObject
 import java.io.BufferedReader
 import java.io.InputStreamReader
 import java.lang.IllegalArgumentException
+import java.nio.ByteBuffer
 
 class Live : Component() {
 
@@ -32,9 +34,40 @@ class Live : Component() {
             return -1
         }
 
+        modelCount = configs.size
         return nativeLoadModel(assetManager, configs)
     }
 
+    /**
+     * 模型个数，loadModel 之后有效
+     */
+    var modelCount: Int = 0
+        private set
+
+    /**
+     * 并发模式下每个模型在 native 常驻线程池中各用一个线程推理，否则依次推理
+     */
+    fun setConcurrent(concurrent: Boolean) = nativeSetConcurrent(concurrent)
+
+    /**
+     * 级联模式：先跑输入最小的模型，置信度在 threshold ± band 之外时直接作为结果，
+     * 只有落在不确定区间内的人脸才跑完整个集成
+     */
+    fun setCascade(cascade: Boolean, threshold: Float, band: Float) =
+        nativeSetCascade(cascade, threshold, band)
+
+    /**
+     * 级联各出口累计次数：[提前判真, 提前判假, 完整集成]
+     */
+    fun getCascadeStats(stats: LongArray) = nativeGetCascadeStats(stats)
+
+    /**
+     * 最近一次 detect 每个模型的置信度和耗时（毫秒），数组长度至少为 modelCount；
+     * 级联跳过的模型置信度为 -1、耗时为 0
+     */
+    fun getModelStats(confidences: FloatArray, timesMs: FloatArray): Int =
+        nativeGetModelStats(confidences, timesMs)
+
     fun detect(
         yuv: ByteArray,
         previewWidth: Int,
@@ -62,6 +95,49 @@ class Live : Component() {
         )
     }
 
+    /**
+     * 直接使用相机帧，不经过 Java 数组：yuv 必须是 direct ByteBuffer，格式 NV21
+     */
+    fun detect(
+        yuv: ByteBuffer,
+        previewWidth: Int,
+        previewHeight: Int,
+        orientation: Int,
+        faceBox: FaceBox
+    ): Float {
+        if (!yuv.isDirect || yuv.capacity() < previewWidth * previewHeight * 3 / 2) {
+            throw IllegalArgumentException("Expect a direct NV21 buffer of the preview size")
+        }
+
+        return nativeDetectYuvBuffer(
+            yuv,
+            previewWidth,
+            previewHeight,
+            orientation,
+            faceBox.left,
+            faceBox.top,
+            faceBox.right,
+            faceBox.bottom
+        )
+    }
+
+    /**
+     * 直接使用 ARGB_8888 位图，native 层锁定像素后转 BGR，省掉 RGB -> YUV -> BGR 的来回转换
+     */
+    fun detect(bitmap: Bitmap, faceBox: FaceBox): Float {
+        if (bitmap.config != Bitmap.Config.ARGB_8888) {
+            throw IllegalArgumentException("Expect an ARGB_8888 bitmap")
+        }
+
+        return nativeDetectBitmap(
+            bitmap,
+            faceBox.left,
+            faceBox.top,
+            faceBox.right,
+            faceBox.bottom
+        )
+    }
+
     private fun parseConfig(assetManager: AssetManager): List<ModelConfig> {
         val inputStream = assetManager.open("live/config.json")
         val br = BufferedReader(InputStreamReader(inputStream))
@@ -117,4 +193,37 @@ class Live : Component() {
         right: Int,
         bottom: Int
     ): Float
+
+    @Keep
+    private external fun nativeDetectYuvBuffer(
+        yuv: ByteBuffer,
+        previewWidth: Int,
+        previewHeight: Int,
+        orientation: Int,
+        left: Int,
+        top: Int,
+        right: Int,
+        bottom: Int
+    ): Float
+
+    @Keep
+    private external fun nativeDetectBitmap(
+        bitmap: Bitmap,
+        left: Int,
+        top: Int,
+        right: Int,
+        bottom: Int
+    ): Float
+
+    @Keep
+    private external fun nativeSetConcurrent(concurrent: Boolean)
+
+    @Keep
+    private external fun nativeGetModelStats(confidences: FloatArray, times: FloatArray): Int
+
+    @Keep
+    private external fun nativeSetCascade(cascade: Boolean, threshold: Float, band: Float)
+
+    @Keep
+    private external fun nativeGetCascadeStats(stats: LongArray)
 }
\ No newline at end of file
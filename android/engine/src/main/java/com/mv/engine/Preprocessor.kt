@@ -0,0 +1,50 @@
+package org.tensorflow.lite.examples.engine
+
+import androidx.annotation.Keep
+import java.nio.ByteBuffer
+
+/**
+ * 人脸识别模型输入的预处理：ARGB 像素 -> 归一化的 RGB 浮点，ARM 上用 NEON 实现
+ */
+class Preprocessor : Component() {
+
+    /** 库加载成功且编译时启用了 NEON */
+    val hasNeon: Boolean = libraryFound && nativeHasNeon()
+
+    override fun createInstance(): Long = 0
+
+    override fun destroy() {}
+
+    /**
+     * 把 count 个像素写成 (v - mean) / std 的 RGB 浮点，从 out 的第 offset 字节开始
+     * out 必须是 native 字节序的 direct buffer
+     */
+    fun normalize(
+        pixels: IntArray,
+        count: Int,
+        mean: Float,
+        std: Float,
+        out: ByteBuffer,
+        offset: Int
+    ): Boolean {
+        if (!libraryFound || !out.isDirect) {
+            return false
+        }
+        return nativeNormalize(pixels, count, mean, std, out, offset)
+    }
+
+
+    ///////////////////////////////////// Native ////////////////////////////////////
+    @Keep
+    private external fun nativeNormalize(
+        pixels: IntArray,
+        count: Int,
+        mean: Float,
+        std: Float,
+        out: ByteBuffer,
+        offset: Int
+    ): Boolean
+
+    @Keep
+    private external fun nativeHasNeon(): Boolean
+}